@@ -0,0 +1,96 @@
+package apps;
+
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the cost of each bounds policy on an expression made mostly of array
+ * subscripts, all in range, through the interpreter, generated bytecode and evaluateRange.
+ * With every subscript in range, each policy should cost the same as THROW, which reads
+ * elements the way evaluation did before there were policies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BoundsPolicyBenchmarks {
+
+	/**
+	 * Bounds policy: throw, clamp or default
+	 */
+	@Param({ "throw", "clamp", "default" })
+	public String policy;
+
+	static final String EXPR = "A[i] * B[i] + A[B[i]] - B[A[i]] / (A[j] + B[j])";
+
+	/**
+	 * Length of A and B, and number of indices evaluated by evaluateRange
+	 */
+	static final int LENGTH = 4096;
+
+	private Expression compiled;
+	private Expression bytecode;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BoundsPolicy bounds;
+		if (policy.equals("throw")) {
+			bounds = BoundsPolicy.THROW;
+		} else if (policy.equals("clamp")) {
+			bounds = BoundsPolicy.CLAMP;
+		} else {
+			bounds = BoundsPolicy.defaultValue(0);
+		}
+		compiled = load(bounds);
+		compiled.compile();
+		bytecode = load(bounds);
+		bytecode.compileToBytecode();
+	}
+
+	private static Expression load(BoundsPolicy bounds) throws IOException {
+		StringBuilder values = new StringBuilder("i 5\nj 7\n");
+		for (String name : new String[] { "A", "B" }) {
+			values.append(name).append(' ').append(LENGTH);
+			for (int k = 0; k < LENGTH; k++) {
+				values.append(" (").append(k).append(',').append((k * 17 + name.charAt(0)) % LENGTH).append(')');
+			}
+			values.append('\n');
+		}
+		Expression expr = new Expression(EXPR);
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner(values.toString()));
+		expr.setBoundsPolicy(bounds);
+		return expr;
+	}
+
+	@Benchmark
+	public float evaluate() {
+		return compiled.evaluate();
+	}
+
+	@Benchmark
+	public float evaluateBytecode() {
+		return bytecode.evaluate();
+	}
+
+	@Benchmark
+	public float[] evaluateRange() {
+		return compiled.evaluateRange("i", 0, LENGTH);
+	}
+}
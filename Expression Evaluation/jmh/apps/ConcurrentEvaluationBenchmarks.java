@@ -0,0 +1,106 @@
+package apps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the throughput of many threads evaluating ONE shared compiled
+ * expression, each with its own Bindings. Run it with increasing numbers of threads and
+ * compare the scores, for example
+ *
+ *     java -jar target/benchmarks.jar ConcurrentEvaluationBenchmarks -t 1
+ *     java -jar target/benchmarks.jar ConcurrentEvaluationBenchmarks -t max
+ *
+ * Every thread checks its results against a single-threaded evaluation, so a data race
+ * between threads fails the run instead of only slowing it down.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentEvaluationBenchmarks {
+
+	/**
+	 * Expression the threads share, named as in ExpressionBenchmarks. Only generated
+	 * expressions are used: their subscripts stay within the arrays whatever the first
+	 * scalar is set to.
+	 */
+	@Param({ "gen-10x2", "gen-100x4", "gen-1000x8" })
+	public String workload;
+
+	private Expression expr;
+	private CompiledExpression compiled;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String[] w = ExpressionBenchmarks.workload(workload);
+		expr = ExpressionBenchmarks.load(w[0], w[1]);
+		compiled = expr.compile().optimize();
+	}
+
+	/**
+	 * Bindings of one thread. The first scalar is varied so that results are not all the
+	 * same, and each result is checked against the value computed before the run.
+	 */
+	@State(Scope.Thread)
+	public static class Worker {
+
+		Bindings bindings;
+		int slot;
+		float[] expected;
+		long evaluations, mismatches;
+
+		@Setup(Level.Trial)
+		public void setUp(ConcurrentEvaluationBenchmarks shared) {
+			bindings = shared.compiled.bind().load(shared.expr.scalars, shared.expr.arrays);
+			slot = shared.compiled.scalarCount() > 0 ? 0 : -1;
+			expected = new float[2];
+			for (int i = 0; i < expected.length; i++) {
+				vary(i);
+				expected[i] = bindings.evaluate();
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			if (mismatches != 0) {
+				throw new IllegalStateException(mismatches + " of " + evaluations
+						+ " results differ from single-threaded evaluation");
+			}
+		}
+
+		/* Alternates the first scalar between two values; its slot is known, so no lookup */
+		void vary(int which) {
+			if (slot != -1) {
+				bindings.setScalar(slot, which == 0 ? 1 : 2);
+			}
+		}
+	}
+
+	@Benchmark
+	public float evaluate(Worker worker) {
+		int which = (int) (worker.evaluations++ & 1);
+		worker.vary(which);
+		float result = worker.bindings.evaluate();
+		if (Float.floatToIntBits(result) != Float.floatToIntBits(worker.expected[which])) {
+			worker.mismatches++;
+		}
+		return result;
+	}
+}
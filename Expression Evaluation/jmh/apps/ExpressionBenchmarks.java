@@ -0,0 +1,222 @@
+package apps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for each phase of Expression: isLegallyMatched, buildSymbols,
+ * loadSymbolValues and evaluate, plus evaluation through generated bytecode for comparison
+ * (TextEvaluationBenchmarks covers evaluateText). Every benchmark runs on each workload: an
+ * expression on the values of each of etest1.txt to etest3.txt, and generated expressions
+ * named gen-NxD, with N operands at the top level nested up to D brackets deep.
+ *
+ * Build with "mvn package" in the project directory, then run for example
+ *
+ *     java -jar target/benchmarks.jar ExpressionBenchmarks
+ *     java -jar target/benchmarks.jar ExpressionBenchmarks.evaluate -p workload=etest1,gen-1000x8
+ *
+ * Saving the results with -rf json -rff before.json lets a later run be compared with them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpressionBenchmarks {
+
+	/**
+	 * Expression the benchmarks run on
+	 */
+	@Param({ "etest1", "etest2", "etest3", "gen-10x2", "gen-100x4", "gen-1000x8", "gen-10000x16" })
+	public String workload;
+
+	/**
+	 * Expression of each etest workload, and the symbol values file it is evaluated with
+	 */
+	static final String[][] WORKLOADS = {
+		{ "(a + A[a*2-b])", "etest1.txt" },
+		{ "varx + vary*arrayA[3]", "etest2.txt" },
+		{ "a*a[2]", "etest3.txt" },
+	};
+
+	/*
+	 * Scalars s0..s(SCALARS-1) and arrays A0..A(ARRAYS-1), of LENGTH values each, used by
+	 * generated expressions
+	 */
+	static final int SCALARS = 8;
+	static final int ARRAYS = 4;
+	static final int LENGTH = 16;
+
+	/**
+	 * Symbol values, in the format of the etest files
+	 */
+	private String values;
+
+	/**
+	 * Expression whose symbols have been built, for the first three phases
+	 */
+	private Expression parsed;
+
+	/**
+	 * Loaded and compiled expressions, for the evaluation engines
+	 */
+	private Expression compiled;
+	private Expression bytecode;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String[] w = workload(workload);
+		values = w[1];
+		parsed = load(w[0], values);
+		compiled = load(w[0], values);
+		compiled.compile();
+		bytecode = load(w[0], values);
+		bytecode.compileToBytecode();
+	}
+
+	@Benchmark
+	public boolean isLegallyMatched() {
+		return parsed.isLegallyMatched();
+	}
+
+	@Benchmark
+	public ArrayList<ScalarSymbol> buildSymbols() {
+		parsed.buildSymbols();
+		return parsed.scalars;
+	}
+
+	@Benchmark
+	public Expression loadSymbolValues() throws IOException {
+		parsed.loadSymbolValues(new Scanner(values));
+		return parsed;
+	}
+
+	@Benchmark
+	public float evaluate() {
+		return compiled.evaluate();
+	}
+
+	@Benchmark
+	public float evaluateBytecode() {
+		return bytecode.evaluate();
+	}
+
+	/**
+	 * Returns the text of a workload and its symbol values, in the format of the etest files.
+	 *
+	 * @param name etest1 to etest3, or gen-NxD
+	 * @return Expression and values
+	 * @throws IOException If the values file cannot be read
+	 */
+	static String[] workload(String name) throws IOException {
+		if (name.startsWith("gen-")) {
+			int x = name.indexOf('x');
+			int operands = Integer.parseInt(name.substring(4, x));
+			int depth = Integer.parseInt(name.substring(x + 1));
+			return new String[] { generate(operands, depth, new Random(operands * 31 + depth)), generatedValues() };
+		}
+		for (String[] w : WORKLOADS) {
+			if (w[1].equals(name + ".txt")) {
+				return new String[] { w[0], resource(w[1]) };
+			}
+		}
+		throw new IllegalArgumentException("unknown workload " + name);
+	}
+
+	static Expression load(String text, String values) throws IOException {
+		Expression expr = new Expression(text);
+		if (!expr.isLegallyMatched()) {
+			throw new IllegalArgumentException("not legally matched: " + text);
+		}
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner(values));
+		return expr;
+	}
+
+	private static String resource(String name) throws IOException {
+		InputStream in = ExpressionBenchmarks.class.getResourceAsStream("/" + name);
+		if (in == null) {
+			throw new IOException(name + " is not on the class path");
+		}
+		try {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Generates an expression of the given number of top-level operands, the k-th of which
+	 * is nested k % (depth+1) brackets deep, alternating parentheses and array subscripts.
+	 * Subscripts are of the form (...) * 0 + c, so they stay within the arrays.
+	 */
+	static String generate(int operands, int depth, Random random) {
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < operands; k++) {
+			if (k > 0) {
+				sb.append(' ').append("+-*/".charAt(random.nextInt(4))).append(' ');
+			}
+			operand(sb, k % (depth + 1), random);
+		}
+		return sb.toString();
+	}
+
+	private static void operand(StringBuilder sb, int depth, Random random) {
+		if (depth == 0) {
+			switch (random.nextInt(3)) {
+				case 0: sb.append('s').append(random.nextInt(SCALARS)); break;
+				case 1:
+					sb.append('A').append(random.nextInt(ARRAYS)).append('[').append(random.nextInt(LENGTH)).append(']');
+					break;
+				default: sb.append(1 + random.nextInt(9)); break;
+			}
+		} else if (depth % 2 == 1) {
+			sb.append('(');
+			operand(sb, 0, random);
+			sb.append(' ').append("+-*/".charAt(random.nextInt(4))).append(' ');
+			operand(sb, depth - 1, random);
+			sb.append(')');
+		} else {
+			sb.append('A').append(random.nextInt(ARRAYS)).append("[(");
+			operand(sb, depth - 1, random);
+			sb.append(") * 0 + ").append(random.nextInt(LENGTH)).append(']');
+		}
+	}
+
+	/**
+	 * Returns values for the symbols of generated expressions, with no zero values.
+	 */
+	static String generatedValues() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < SCALARS; i++) {
+			sb.append('s').append(i).append(' ').append(i + 2).append('\n');
+		}
+		for (int i = 0; i < ARRAYS; i++) {
+			sb.append('A').append(i).append(' ').append(LENGTH);
+			for (int j = 0; j < LENGTH; j++) {
+				sb.append(" (").append(j).append(',').append((j * 7 + i) % LENGTH + 1).append(')');
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,66 @@
+package apps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the startup of a worker that gets an expression: from its text
+ * (buildSymbols and compile) or from a program file written by saveCompiled (loadCompiled).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProgramFileBenchmarks {
+
+	/**
+	 * Expression the benchmark runs on, named as in ExpressionBenchmarks
+	 */
+	@Param({ "etest1", "gen-100x4", "gen-1000x8", "gen-10000x16" })
+	public String workload;
+
+	private String text;
+	private File program;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		text = ExpressionBenchmarks.workload(workload)[0];
+		program = File.createTempFile("expression", ".prog");
+		Expression expr = new Expression(text);
+		expr.saveCompiled(program);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		program.delete();
+	}
+
+	@Benchmark
+	public CompiledExpression compileText() {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		return expr.compile();
+	}
+
+	@Benchmark
+	public CompiledExpression loadCompiled() throws IOException {
+		return Expression.loadCompiled(program).compile();
+	}
+}
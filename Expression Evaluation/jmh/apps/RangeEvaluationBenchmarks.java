@@ -0,0 +1,91 @@
+package apps;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for evaluating an expression once per index, with evaluate, against
+ * evaluateRange over the same indices. The arrays of the expression are filled to the given
+ * length and its other scalars set to 3; the index variable is i. Setup checks that both
+ * give the same results.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RangeEvaluationBenchmarks {
+
+	/**
+	 * Expression evaluated over the range
+	 */
+	@Param({ "A[i] * B[i] + c", "(A[i] - c) * (B[i] + c) / (A[i] + B[i] + 1)" })
+	public String expression;
+
+	/**
+	 * Length of the arrays, and number of indices evaluated
+	 */
+	@Param({ "100000" })
+	public int length;
+
+	private Expression expr;
+	private ScalarSymbol index;
+	private float[] results;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		expr = new Expression(expression);
+		expr.buildSymbols();
+		for (ArraySymbol as : expr.arrays) {
+			as.values = new int[length];
+			for (int k = 0; k < length; k++) {
+				as.values[k] = (k * 31 + as.name.length()) % 1000;
+			}
+		}
+		for (ScalarSymbol ss : expr.scalars) {
+			ss.value = 3;
+			if (ss.name.equals("i")) {
+				index = ss;
+			}
+		}
+		if (index == null) {
+			throw new IllegalArgumentException("expression has no index variable i");
+		}
+		results = new float[length];
+
+		float[] perIndex = evaluatePerIndex();
+		float[] range = evaluateRange();
+		for (int k = 0; k < length; k++) {
+			if (Float.floatToIntBits(perIndex[k]) != Float.floatToIntBits(range[k])) {
+				throw new IllegalStateException("evaluateRange differs from evaluate at i = " + k);
+			}
+		}
+	}
+
+	@Benchmark
+	public float[] evaluatePerIndex() {
+		for (int k = 0; k < length; k++) {
+			index.value = k;
+			results[k] = expr.evaluate();
+		}
+		return results;
+	}
+
+	@Benchmark
+	public float[] evaluateRange() {
+		return expr.evaluateRange("i", 0, length);
+	}
+}
@@ -0,0 +1,92 @@
+package apps;
+
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for loading and evaluating an array that is declared large but has few
+ * elements set, stored sparse (as loadSymbolValues chooses) or dense (the same values
+ * expanded with SparseArray.toArray). Sparse reads cost a binary search each, in exchange
+ * for not allocating and zeroing the declared length.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SparseArrayBenchmarks {
+
+	/**
+	 * How A is stored: dense or sparse
+	 */
+	@Param({ "dense", "sparse" })
+	public String storage;
+
+	static final String EXPR = "A[i * 1024] + A[j] * c";
+
+	/**
+	 * Declared length of A, number of elements set, and number of indices evaluated by
+	 * evaluateRange
+	 */
+	static final int LENGTH = 1 << 22;
+	static final int SET = 4096;
+
+	private String values;
+	private Expression expr;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		StringBuilder sb = new StringBuilder("i 3\nj 5\nc 7\nA ").append(LENGTH);
+		for (int k = 0; k < SET; k++) {
+			sb.append(" (").append(k * (LENGTH / SET)).append(',').append(k % 100).append(')');
+		}
+		values = sb.append('\n').toString();
+		expr = new Expression(EXPR);
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner(values));
+		if (storage.equals("dense")) {
+			ArraySymbol a = expr.arrays.get(0);
+			a.values = a.sparse.toArray();
+			a.sparse = null;
+		}
+		expr.compile();
+	}
+
+	@Benchmark
+	public Expression loadSymbolValues() throws IOException {
+		Expression e = new Expression(EXPR);
+		e.buildSymbols();
+		e.loadSymbolValues(new Scanner(values));
+		if (storage.equals("dense")) {
+			ArraySymbol a = e.arrays.get(0);
+			a.values = a.sparse.toArray();
+			a.sparse = null;
+		}
+		return e;
+	}
+
+	@Benchmark
+	public float evaluate() {
+		return expr.evaluate();
+	}
+
+	@Benchmark
+	public float[] evaluateRange() {
+		return expr.evaluateRange("i", 0, SET);
+	}
+}
@@ -0,0 +1,98 @@
+package apps;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for loading one large array symbol with loadSymbolValues(Scanner) from the
+ * text format against loadSymbolValues(File) from the binary format (SymbolValuesFile).
+ * With -p entries=100000000 the text file is about 1.5GB on a single line, so run with a
+ * large heap, e.g. -jvmArgs -Xmx12g.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SymbolValuesBenchmarks {
+
+	/**
+	 * Number of entries of the array
+	 */
+	@Param({ "100000", "1000000" })
+	public int entries;
+
+	private File text;
+	private File binary;
+	private Expression expr;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		text = File.createTempFile("symbols", ".txt");
+		binary = File.createTempFile("symbols", ".bin");
+
+		/* The subscript n is a multiple of 256 so that it survives float evaluation exactly */
+		BufferedWriter bw = new BufferedWriter(new FileWriter(text), 1 << 16);
+		try {
+			bw.write("n " + (entries / 2 & ~0xff));
+			bw.newLine();
+			bw.write("A " + entries);
+			for (int i = 0; i < entries; i++) {
+				bw.write(" (" + i + "," + (i % 1000) + ")");
+			}
+			bw.newLine();
+		} finally {
+			bw.close();
+		}
+		Scanner sc = new Scanner(text);
+		try {
+			SymbolValuesFile.convert(sc, binary);
+		} finally {
+			sc.close();
+		}
+		expr = new Expression("A[n] + A[3]");
+		expr.buildSymbols();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		text.delete();
+		binary.delete();
+	}
+
+	@Benchmark
+	public float loadText() throws IOException {
+		Scanner sc = new Scanner(text);
+		try {
+			expr.loadSymbolValues(sc);
+		} finally {
+			sc.close();
+		}
+		return expr.evaluate();
+	}
+
+	@Benchmark
+	public float loadBinary() throws IOException {
+		expr.loadSymbolValues(binary);
+		return expr.evaluate();
+	}
+}
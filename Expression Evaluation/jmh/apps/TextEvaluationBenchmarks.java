@@ -0,0 +1,51 @@
+package apps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the original string-based evaluator, evaluateText, as the baseline for
+ * the other engines in ExpressionBenchmarks. It only runs on the workloads that evaluateText
+ * handles: it cannot evaluate subexpressions with negative values, which larger generated
+ * expressions have.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TextEvaluationBenchmarks {
+
+	/**
+	 * Expression the benchmark runs on, named as in ExpressionBenchmarks
+	 */
+	@Param({ "etest1", "etest2", "etest3", "gen-10x2" })
+	public String workload;
+
+	private Expression text;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String[] w = ExpressionBenchmarks.workload(workload);
+		text = ExpressionBenchmarks.load(w[0], w[1]);
+	}
+
+	@Benchmark
+	public float evaluateText() {
+		return text.evaluateText();
+	}
+}
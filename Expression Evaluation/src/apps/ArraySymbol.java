@@ -15,10 +15,15 @@ public class ArraySymbol {
 	public String name;
 	
 	/**
-	 * Array of integer values
+	 * Array of integer values, or null if the values are stored sparse
 	 */
 	public int[] values;
 	
+	/**
+	 * Values of a very large array with few elements set, or null if they are in values
+	 */
+	public SparseArray sparse;
+	
 	/**
 	 * Initializes this symbol with given name, and sets values to null.
 	 * 
@@ -27,12 +32,50 @@ public class ArraySymbol {
 	public ArraySymbol(String name) {
         this.name = name;
         values = null;
+        sparse = null;
     }
 	
+	/**
+	 * Returns the value of an element, wherever the values are stored.
+	 * 
+	 * @param index Index of the element
+	 * @return Value
+	 * @throws ArrayIndexOutOfBoundsException If index is outside the array
+	 */
+	public int get(int index)
+	throws ArrayIndexOutOfBoundsException {
+		return sparse != null ? sparse.get(index) : values[index];
+	}
+	
+	/**
+	 * Returns the length of the array, wherever the values are stored.
+	 * 
+	 * @return Length
+	 */
+	public int length() {
+		return sparse != null ? sparse.length() : values.length;
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
+		if (sparse != null) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(name);
+			sb.append("=[");
+			sb.append(sparse.length());
+			sb.append(':');
+			for (int k=0; k < sparse.size(); k++) {
+				sb.append(k == 0 ? " (" : ",(");
+				sb.append(sparse.indexAt(k));
+				sb.append(',');
+				sb.append(sparse.valueAt(k));
+				sb.append(')');
+			}
+			sb.append(']');
+			return sb.toString();
+		}
 		if (values == null || values.length == 0) {
 			return name + "=[ ]";
 		}
@@ -58,4 +101,11 @@ public class ArraySymbol {
 		ArraySymbol as = (ArraySymbol)o;
 		return name.equals(as.name);
 	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return name.hashCode();
+	}
 }
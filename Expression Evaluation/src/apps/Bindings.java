@@ -0,0 +1,199 @@
+package apps;
+
+import java.util.ArrayList;
+
+/**
+ * Symbol values for one evaluation context of a compiled expression. A CompiledExpression
+ * is immutable once built, so any number of threads can evaluate the same one at the same
+ * time, without locks, as long as each thread uses its own Bindings. A Bindings object
+ * also holds the work buffer for shared subexpressions and the operand stack, so float
+ * evaluation through it allocates nothing. Bindings are not thread-safe themselves.
+ */
+public class Bindings {
+
+	/**
+	 * Expression these values are bound to
+	 */
+	private final CompiledExpression compiled;
+
+	/**
+	 * Values of scalar variables, and value arrays of array variables, indexed by slot
+	 */
+	private final int[] scalarValues;
+	private final int[][] arrayValues;
+
+	/**
+	 * Arrays stored sparse, indexed by slot, created when the first one is set
+	 */
+	private SparseArray[] sparseValues;
+
+	/**
+	 * Shared subexpression values and operand stack, reused by every evaluation
+	 */
+	private final float[] work;
+
+	/**
+	 * Initializes bindings for a compiled expression, with every scalar 0 and every array
+	 * unset.
+	 *
+	 * @param compiled Compiled expression
+	 */
+	public Bindings(CompiledExpression compiled) {
+		this.compiled = compiled;
+		scalarValues = new int[compiled.scalarCount()];
+		arrayValues = new int[compiled.arrayCount()][];
+		work = new float[compiled.workSize()];
+	}
+
+	/**
+	 * Sets the value of a scalar variable.
+	 *
+	 * @param slot Slot of the scalar
+	 * @param val New value
+	 * @return These bindings
+	 */
+	public Bindings setScalar(int slot, int val) {
+		scalarValues[slot] = val;
+		return this;
+	}
+
+	/**
+	 * Sets the value of a scalar variable.
+	 *
+	 * @param name Name of the scalar
+	 * @param val New value
+	 * @return These bindings
+	 * @throws IllegalArgumentException If the expression has no such scalar
+	 */
+	public Bindings setScalar(String name, int val)
+	throws IllegalArgumentException {
+		int slot = compiled.scalarSlot(name);
+		if (slot == -1) {
+			throw new IllegalArgumentException("no scalar " + name);
+		}
+		scalarValues[slot] = val;
+		return this;
+	}
+
+	/**
+	 * Sets the values of an array variable. The array is not copied.
+	 *
+	 * @param slot Slot of the array
+	 * @param values New values
+	 * @return These bindings
+	 */
+	public Bindings setArray(int slot, int[] values) {
+		arrayValues[slot] = values;
+		if (sparseValues != null) {
+			sparseValues[slot] = null;
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the values of an array variable to a sparse array. The array is not copied.
+	 *
+	 * @param slot Slot of the array
+	 * @param values New values
+	 * @return These bindings
+	 */
+	public Bindings setArray(int slot, SparseArray values) {
+		if (sparseValues == null) {
+			sparseValues = new SparseArray[arrayValues.length];
+		}
+		arrayValues[slot] = null;
+		sparseValues[slot] = values;
+		return this;
+	}
+
+	/**
+	 * Sets the values of an array variable. The array is not copied.
+	 *
+	 * @param name Name of the array
+	 * @param values New values
+	 * @return These bindings
+	 * @throws IllegalArgumentException If the expression has no such array
+	 */
+	public Bindings setArray(String name, int[] values)
+	throws IllegalArgumentException {
+		int slot = compiled.arraySlot(name);
+		if (slot == -1) {
+			throw new IllegalArgumentException("no array " + name);
+		}
+		return setArray(slot, values);
+	}
+
+	/**
+	 * Sets the values of every variable of the expression that appears in the given symbol
+	 * lists, matching by name. Array values, dense or sparse, are not copied.
+	 *
+	 * @param scalars Scalar symbols
+	 * @param arrays Array symbols
+	 * @return These bindings
+	 */
+	public Bindings load(ArrayList<ScalarSymbol> scalars, ArrayList<ArraySymbol> arrays) {
+		for (ScalarSymbol ss : scalars) {
+			int slot = compiled.scalarSlot(ss.name);
+			if (slot != -1) {
+				scalarValues[slot] = ss.value;
+			}
+		}
+		for (ArraySymbol as : arrays) {
+			int slot = compiled.arraySlot(as.name);
+			if (slot != -1 && as.sparse != null) {
+				setArray(slot, as.sparse);
+			} else if (slot != -1) {
+				setArray(slot, as.values);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Evaluates the expression with these values.
+	 *
+	 * @return Result of evaluation
+	 */
+	public float evaluate() {
+		return compiled.evaluate(scalarValues, arrayValues, sparseValues, work);
+	}
+
+	/**
+	 * Evaluates the expression with these values in double arithmetic.
+	 *
+	 * @return Result of evaluation
+	 * @see CompiledExpression#evaluateDouble(int[], int[][])
+	 */
+	public double evaluateDouble() {
+		return compiled.evaluateDouble(scalarValues, arrayValues, sparseValues);
+	}
+
+	/**
+	 * Evaluates the expression with these values in long arithmetic.
+	 *
+	 * @return Result of evaluation
+	 * @see CompiledExpression#evaluateLong(int[], int[][])
+	 */
+	public long evaluateLong() {
+		return compiled.evaluateLong(scalarValues, arrayValues, sparseValues);
+	}
+
+	/**
+	 * Evaluates the expression with these values in overflow-checked long arithmetic.
+	 *
+	 * @return Result of evaluation
+	 * @see CompiledExpression#evaluateExact(int[], int[][])
+	 */
+	public long evaluateExact() {
+		return compiled.evaluateExact(scalarValues, arrayValues, sparseValues);
+	}
+
+	/**
+	 * Returns the expression these values are bound to.
+	 *
+	 * @return Compiled expression
+	 */
+	public CompiledExpression expression() {
+		return compiled;
+	}
+}
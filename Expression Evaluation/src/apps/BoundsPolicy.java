@@ -0,0 +1,126 @@
+package apps;
+
+/**
+ * What evaluation does with an array subscript that is outside its array: throw an
+ * exception (THROW, the default), read the nearest element (CLAMP), or use a fixed value
+ * (defaultValue). Every evaluation path checks a subscript against the array length once and
+ * reads the element directly when it is in range, which the JIT merges with its own bounds
+ * check; only a subscript that is out of range gets to the policy.
+ *
+ * @see Expression#setBoundsPolicy(BoundsPolicy)
+ * @see CompiledExpression#withBounds(BoundsPolicy)
+ */
+public class BoundsPolicy {
+
+	/*
+	 * Kinds of policy
+	 */
+	static final int THROWS = 0;
+	static final int CLAMPS = 1;
+	static final int DEFAULTS = 2;
+
+	/**
+	 * Throw an ArrayIndexOutOfBoundsException that names the array
+	 */
+	public static final BoundsPolicy THROW = new BoundsPolicy(THROWS, 0);
+
+	/**
+	 * Read element 0 for a negative subscript, and the last element for one past the end.
+	 * A subscript into an empty array still throws.
+	 */
+	public static final BoundsPolicy CLAMP = new BoundsPolicy(CLAMPS, 0);
+
+	/**
+	 * Kind of policy
+	 */
+	final int kind;
+
+	/**
+	 * Value of an out-of-range element, for DEFAULTS
+	 */
+	final int value;
+
+	private BoundsPolicy(int kind, int value) {
+		this.kind = kind;
+		this.value = value;
+	}
+
+	/**
+	 * Returns a policy that uses the given value for every element outside its array.
+	 *
+	 * @param value Value of out-of-range elements
+	 * @return Policy
+	 */
+	public static BoundsPolicy defaultValue(int value) {
+		return new BoundsPolicy(DEFAULTS, value);
+	}
+
+	/**
+	 * Returns the index to read for a subscript that is outside an array, or -1 if the
+	 * default value is to be used instead.
+	 *
+	 * @param name Name of the array, for the exception message
+	 * @param length Length of the array
+	 * @param index Subscript, not within 0..length-1
+	 * @return Index within the array, or -1
+	 * @throws ArrayIndexOutOfBoundsException If the policy is THROW, or CLAMP on an empty array
+	 */
+	int resolve(String name, int length, long index)
+	throws ArrayIndexOutOfBoundsException {
+		if (kind == DEFAULTS) {
+			return -1;
+		}
+		if (kind == CLAMPS && length > 0) {
+			return index < 0 ? 0 : length - 1;
+		}
+		throw new ArrayIndexOutOfBoundsException("index " + index + " out of bounds for " + name + "["
+				+ length + "]");
+	}
+
+	/**
+	 * Returns the value of an element for a subscript that is outside an array.
+	 *
+	 * @see #resolve(String, int, long)
+	 */
+	int outOfBounds(String name, int[] values, long index)
+	throws ArrayIndexOutOfBoundsException {
+		int i = resolve(name, values.length, index);
+		return i == -1 ? value : values[i];
+	}
+
+	/*
+	 * Element reads called by generated bytecode (see BytecodeGenerator), one per kind of
+	 * policy; the name of the array is only used in the exception message
+	 */
+	static int orThrow(int[] values, int index, String name) {
+		if (index >= 0 && index < values.length) {
+			return values[index];
+		}
+		return THROW.outOfBounds(name, values, index);
+	}
+
+	static int clamp(int[] values, int index, String name) {
+		if (index >= 0 && index < values.length) {
+			return values[index];
+		}
+		return CLAMP.outOfBounds(name, values, index);
+	}
+
+	static int orDefault(int[] values, int index, int value) {
+		if (index >= 0 && index < values.length) {
+			return values[index];
+		}
+		return value;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		switch (kind) {
+			case THROWS: return "throw";
+			case CLAMPS: return "clamp";
+			default: return "default " + value;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package apps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import structures.LongStack;
+
+/**
+ * Matches parentheses and square brackets of an expression that is fed to it in chunks, so
+ * the expression never has to be held in memory as a whole. Only the positions of brackets
+ * that are still open are kept, so memory use grows with nesting depth, not with expression
+ * length. Every matched pair is reported to a listener as soon as its closing bracket is
+ * seen, which means pairs are reported in order of their CLOSING brackets.
+ */
+public class BracketMatcher {
+
+	/**
+	 * Receives matched bracket pairs.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called for every matched pair.
+		 *
+		 * @param open Position of the opening bracket
+		 * @param close Position of the closing bracket
+		 */
+		void matched(long open, long close);
+	}
+
+	/**
+	 * Number of chars read from a Reader at a time
+	 */
+	static final int CHUNK_CHARS = 64 * 1024;
+
+	/**
+	 * Number of bytes of a file mapped into memory at a time
+	 */
+	static final int CHUNK_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * Positions of open brackets, shifted left one bit; the low bit is 1 for '[' and 0 for '('
+	 */
+	private final LongStack open;
+
+	/**
+	 * Listener for matched pairs, may be null
+	 */
+	private final Listener listener;
+
+	/**
+	 * Position of the next character to be fed
+	 */
+	private long pos;
+
+	/**
+	 * True once a mismatch has been seen
+	 */
+	private boolean mismatched;
+
+	/**
+	 * Initializes a matcher at position 0.
+	 *
+	 * @param listener Listener for matched pairs, or null if only validation is needed
+	 */
+	public BracketMatcher(Listener listener) {
+		open = new LongStack();
+		this.listener = listener;
+		pos = 0;
+		mismatched = false;
+	}
+
+	/**
+	 * Feeds the next chunk of the expression.
+	 *
+	 * @param chars Characters
+	 * @param off Offset of first character in chars
+	 * @param len Number of characters
+	 * @return False if a mismatch has been found (now or earlier), true otherwise
+	 */
+	public boolean feed(char[] chars, int off, int len) {
+		for (int i = off; i < off + len && !mismatched; i++) {
+			feed(chars[i]);
+		}
+		return !mismatched;
+	}
+
+	/**
+	 * Feeds the next chunk of the expression, as single-byte characters. Brackets are ASCII,
+	 * so this also works for UTF-8 text, with positions counted in bytes.
+	 *
+	 * @param bytes Mapped bytes, read from position 0 to the buffer's limit
+	 * @return False if a mismatch has been found (now or earlier), true otherwise
+	 */
+	public boolean feed(MappedByteBuffer bytes) {
+		int len = bytes.limit();
+		for (int i = 0; i < len && !mismatched; i++) {
+			feed((char) bytes.get(i));
+		}
+		return !mismatched;
+	}
+
+	private void feed(char ch) {
+		if (ch == '(') {
+			open.push(pos << 1);
+		} else if (ch == '[') {
+			open.push((pos << 1) | 1);
+		} else if (ch == ')' || ch == ']') {
+			if (open.isEmpty()) {
+				mismatched = true;
+				return;
+			}
+			long top = open.pop();
+			if (((top & 1) == 1) != (ch == ']')) {
+				mismatched = true;
+				return;
+			}
+			if (listener != null) {
+				listener.matched(top >>> 1, pos);
+			}
+		}
+		pos++;
+	}
+
+	/**
+	 * Ends the expression.
+	 *
+	 * @return True if all brackets fed so far are matched correctly, false if not
+	 */
+	public boolean finish() {
+		return !mismatched && open.isEmpty();
+	}
+
+	/**
+	 * Matches the brackets of an expression read from a Reader, CHUNK_CHARS at a time.
+	 * Positions are counted in chars.
+	 *
+	 * @param in Expression input
+	 * @param listener Listener for matched pairs, or null
+	 * @return True if brackets are matched correctly, false if not
+	 * @throws IOException If there is a problem reading the input
+	 */
+	public static boolean match(Reader in, Listener listener)
+	throws IOException {
+		BracketMatcher matcher = new BracketMatcher(listener);
+		char[] buf = new char[CHUNK_CHARS];
+		int n;
+		while ((n = in.read(buf, 0, buf.length)) != -1) {
+			if (!matcher.feed(buf, 0, n)) {
+				return false;
+			}
+		}
+		return matcher.finish();
+	}
+
+	/**
+	 * Matches the brackets of an expression in a file, mapping CHUNK_BYTES of it into memory
+	 * at a time. Positions are counted in bytes.
+	 *
+	 * @param file Expression file
+	 * @param listener Listener for matched pairs, or null
+	 * @return True if brackets are matched correctly, false if not
+	 * @throws IOException If there is a problem reading the file
+	 */
+	public static boolean match(File file, Listener listener)
+	throws IOException {
+		BracketMatcher matcher = new BracketMatcher(listener);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			for (long start = 0; start < size; start += CHUNK_BYTES) {
+				long len = Math.min(CHUNK_BYTES, size - start);
+				if (!matcher.feed(channel.map(FileChannel.MapMode.READ_ONLY, start, len))) {
+					return false;
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		return matcher.finish();
+	}
+}
@@ -0,0 +1,424 @@
+package apps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+
+/**
+ * Translates a compiled expression into a JVM class that computes the expression directly,
+ * and loads it as a hidden class. The generated class implements Formula with a single
+ * straight-line method, written in one pass over the expression's postfix program: each
+ * scalar is an iaload from the scalar values array, each array element an aaload of the
+ * array swapped under the (truncated) subscript and a call to the BoundsPolicy method of
+ * the expression's policy, which the JIT inlines, and each operator a single float
+ * instruction. Shared subexpressions of an optimized expression are stored into local
+ * variables as the program stores them. Since the code has no branches it needs no stack
+ * map frames.
+ */
+public class BytecodeGenerator {
+
+	/**
+	 * Class file major version (Java 8)
+	 */
+	private static final int CLASS_VERSION = 52;
+
+	/**
+	 * Longest method body the JVM accepts
+	 */
+	private static final int MAX_CODE_LENGTH = 65535;
+
+	/*
+	 * Opcodes used by the generator
+	 */
+	private static final int ICONST_0 = 0x03;
+	private static final int FCONST_0 = 0x0b;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC = 0x12;
+	private static final int LDC_W = 0x13;
+	private static final int FLOAD = 0x17;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int ALOAD_2 = 0x2c;
+	private static final int IALOAD = 0x2e;
+	private static final int AALOAD = 0x32;
+	private static final int FSTORE = 0x38;
+	private static final int SWAP = 0x5f;
+	private static final int FADD = 0x62;
+	private static final int FSUB = 0x66;
+	private static final int FMUL = 0x6a;
+	private static final int FDIV = 0x6e;
+	private static final int I2F = 0x86;
+	private static final int F2I = 0x8b;
+	private static final int FRETURN = 0xae;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int WIDE = 0xc4;
+
+	/**
+	 * First local variable used for temps; 0 is this, 1 and 2 are the arguments
+	 */
+	private static final int FIRST_TEMP_LOCAL = 3;
+
+	/*
+	 * Constant pool tags
+	 */
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	/**
+	 * Constant pool, without its count
+	 */
+	private final ByteArrayOutputStream poolBytes;
+	private final DataOutputStream pool;
+
+	/**
+	 * Number of constant pool entries so far, plus one (entries are numbered from 1)
+	 */
+	private int poolCount;
+
+	/**
+	 * Pool index of each int and float constant already added, so each is only added once
+	 */
+	private final HashMap<Integer,Integer> intConstants;
+	private final HashMap<Integer,Integer> floatConstants;
+
+	/**
+	 * Body of the evaluate method
+	 */
+	private final ByteArrayOutputStream code;
+
+	/**
+	 * Bounds policy of the expression, and the Methodref of the BoundsPolicy method that
+	 * reads an array element under it
+	 */
+	private BoundsPolicy bounds;
+	private int elementMethod;
+
+	/**
+	 * Names of the arrays, and the pool index of each one's String constant already added
+	 * (0 if none yet)
+	 */
+	private String[] arrayNames;
+	private int[] arrayNameConstants;
+
+	/**
+	 * Current and maximum operand stack depth of the evaluate method
+	 */
+	private int stack;
+	private int maxStack;
+
+	private BytecodeGenerator() {
+		poolBytes = new ByteArrayOutputStream();
+		pool = new DataOutputStream(poolBytes);
+		poolCount = 1;
+		intConstants = new HashMap<Integer,Integer>();
+		floatConstants = new HashMap<Integer,Integer>();
+		code = new ByteArrayOutputStream();
+		stack = 0;
+		maxStack = 0;
+	}
+
+	/**
+	 * Generates and loads a class that computes the given expression. If the class cannot be
+	 * generated or loaded (for instance because the expression is too large for a single JVM
+	 * method), the compiled expression itself is returned, so the caller always gets a
+	 * working Formula.
+	 *
+	 * @param compiled Compiled expression
+	 * @return Generated formula, or the tree interpreter if generation failed
+	 */
+	public static Formula generate(CompiledExpression compiled) {
+		try {
+			return define(new BytecodeGenerator().classBytes(compiled));
+		} catch (IOException e) {
+			return compiled;
+		} catch (IllegalArgumentException e) {
+			return compiled;
+		} catch (ReflectiveOperationException e) {
+			return compiled;
+		} catch (LinkageError e) {
+			return compiled;
+		}
+	}
+
+	/**
+	 * Loads class bytes as a hidden class in this package, and instantiates it.
+	 */
+	private static Formula define(byte[] bytes)
+	throws ReflectiveOperationException {
+		Class<?> cls = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+		return (Formula) cls.getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * Builds the class file for a compiled expression.
+	 */
+	private byte[] classBytes(CompiledExpression compiled)
+	throws IOException {
+		int thisClass = classConstant("apps/GeneratedFormula");
+		int superClass = classConstant("java/lang/Object");
+		int formula = classConstant("apps/Formula");
+		int init = utf8Constant("<init>");
+		int voidDesc = utf8Constant("()V");
+		int superInit = constant(CONSTANT_METHODREF, superClass, constant(CONSTANT_NAME_AND_TYPE, init, voidDesc));
+		int evaluate = utf8Constant("evaluate");
+		int evaluateDesc = utf8Constant("([I[[I)F");
+		int codeAttr = utf8Constant("Code");
+		bounds = compiled.bounds;
+		if (bounds.kind == BoundsPolicy.THROWS) {
+			elementMethod = methodConstant("apps/BoundsPolicy", "orThrow", "([IILjava/lang/String;)I");
+		} else if (bounds.kind == BoundsPolicy.CLAMPS) {
+			elementMethod = methodConstant("apps/BoundsPolicy", "clamp", "([IILjava/lang/String;)I");
+		} else {
+			elementMethod = methodConstant("apps/BoundsPolicy", "orDefault", "([III)I");
+		}
+		arrayNames = compiled.arrayNames;
+		arrayNameConstants = new int[arrayNames.length];
+
+		emit(compiled.program);
+		code.write(FRETURN);
+		if (code.size() > MAX_CODE_LENGTH) {
+			throw new IllegalArgumentException("expression too large for one method");
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(CLASS_VERSION);
+		out.writeShort(poolCount);
+		pool.flush();
+		poolBytes.writeTo(out);
+		out.writeShort(0x0001 | 0x0010 | 0x0020);		// public final super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(formula);
+		out.writeShort(0);					// no fields
+		out.writeShort(2);
+
+		// public <init>() { super(); }
+		byte[] initCode = { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit, (byte) RETURN };
+		writeMethod(out, init, voidDesc, codeAttr, 1, 1, initCode);
+
+		// public float evaluate(int[] scalarValues, int[][] arrayValues)
+		writeMethod(out, evaluate, evaluateDesc, codeAttr, maxStack,
+				FIRST_TEMP_LOCAL + compiled.shared.length, code.toByteArray());
+
+		out.writeShort(0);					// no class attributes
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void writeMethod(DataOutputStream out, int name, int desc, int codeAttr,
+			int maxStack, int maxLocals, byte[] body)
+	throws IOException {
+		out.writeShort(0x0001);				// public
+		out.writeShort(name);
+		out.writeShort(desc);
+		out.writeShort(1);
+		out.writeShort(codeAttr);
+		out.writeInt(12 + body.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(body.length);
+		out.write(body);
+		out.writeShort(0);					// no exception table
+		out.writeShort(0);					// no code attributes
+	}
+
+	/**
+	 * Emits code that leaves the float value of a program on the operand stack, one
+	 * instruction of the program at a time.
+	 */
+	private void emit(CompiledExpression.Program program)
+	throws IOException {
+		for (int instruction : program.code) {
+			int arg = instruction >>> 4;
+			switch (instruction & 0xF) {
+				case CompiledExpression.Program.CONST:
+					emitFloat(program.floats[arg]);
+					break;
+				case CompiledExpression.Program.SCALAR:
+					op(ALOAD_1, 1);
+					emitInt(arg);
+					op(IALOAD, -1);
+					op(I2F, 0);
+					break;
+				case CompiledExpression.Program.ARRAY:
+					/* The subscript is already on the stack, so the array goes under it */
+					op(F2I, 0);
+					op(ALOAD_2, 1);
+					emitInt(arg);
+					op(AALOAD, -1);
+					op(SWAP, 0);
+					if (bounds.kind == BoundsPolicy.DEFAULTS) {
+						emitInt(bounds.value);
+					} else {
+						emitLdc(arrayNameConstant(arg));
+					}
+					op(INVOKESTATIC, -2);
+					code.write(elementMethod >> 8);
+					code.write(elementMethod);
+					op(I2F, 0);
+					break;
+				case CompiledExpression.Program.TEMP:
+					local(FLOAD, FIRST_TEMP_LOCAL + arg, 1);
+					break;
+				case CompiledExpression.Program.STORE:
+					local(FSTORE, FIRST_TEMP_LOCAL + arg, -1);
+					break;
+				case CompiledExpression.Program.ADD: op(FADD, -1); break;
+				case CompiledExpression.Program.SUB: op(FSUB, -1); break;
+				case CompiledExpression.Program.MUL: op(FMUL, -1); break;
+				default: op(FDIV, -1); break;
+			}
+			if (code.size() > MAX_CODE_LENGTH) {
+				throw new IllegalArgumentException("expression too large for one method");
+			}
+		}
+	}
+
+	private void emitInt(int value)
+	throws IOException {
+		if (value >= -1 && value <= 5) {
+			op(ICONST_0 + value, 1);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			op(BIPUSH, 1);
+			code.write(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(SIPUSH, 1);
+			code.write(value >> 8);
+			code.write(value);
+		} else {
+			Integer index = intConstants.get(value);
+			if (index == null) {
+				index = constant(CONSTANT_INTEGER, value);
+				intConstants.put(value, index);
+			}
+			emitLdc(index);
+		}
+	}
+
+	private void emitFloat(float value)
+	throws IOException {
+		int bits = Float.floatToRawIntBits(value);
+		if (bits == Float.floatToRawIntBits(0f) || value == 1f || value == 2f) {
+			op(FCONST_0 + (int) value, 1);
+			return;
+		}
+		Integer index = floatConstants.get(bits);
+		if (index == null) {
+			index = constant(CONSTANT_FLOAT, bits);
+			floatConstants.put(bits, index);
+		}
+		emitLdc(index);
+	}
+
+	/**
+	 * Returns the pool index of the String constant of an array's name, adding it the first
+	 * time.
+	 */
+	private int arrayNameConstant(int slot)
+	throws IOException {
+		if (arrayNameConstants[slot] == 0) {
+			int name = utf8Constant(arrayNames[slot]);
+			pool.writeByte(CONSTANT_STRING);
+			pool.writeShort(name);
+			arrayNameConstants[slot] = poolCount++;
+		}
+		return arrayNameConstants[slot];
+	}
+
+	private void emitLdc(int index) {
+		if (index < 256) {
+			op(LDC, 1);
+			code.write(index);
+		} else {
+			op(LDC_W, 1);
+			code.write(index >> 8);
+			code.write(index);
+		}
+	}
+
+	/**
+	 * Writes a load or store of a local variable.
+	 */
+	private void local(int opcode, int index, int stackChange) {
+		if (index < 256) {
+			op(opcode, stackChange);
+			code.write(index);
+		} else {
+			code.write(WIDE);
+			op(opcode, stackChange);
+			code.write(index >> 8);
+			code.write(index);
+		}
+	}
+
+	/**
+	 * Writes an opcode, and tracks its effect on the operand stack depth.
+	 */
+	private void op(int opcode, int stackChange) {
+		code.write(opcode);
+		stack += stackChange;
+		if (stack > maxStack) {
+			maxStack = stack;
+		}
+	}
+
+	private int utf8Constant(String s)
+	throws IOException {
+		pool.writeByte(CONSTANT_UTF8);
+		pool.writeUTF(s);
+		return poolCount++;
+	}
+
+	private int classConstant(String internalName)
+	throws IOException {
+		int name = utf8Constant(internalName);
+		pool.writeByte(CONSTANT_CLASS);
+		pool.writeShort(name);
+		return poolCount++;
+	}
+
+	private int methodConstant(String owner, String name, String desc)
+	throws IOException {
+		int ownerClass = classConstant(owner);
+		int nameAndType = constant(CONSTANT_NAME_AND_TYPE, utf8Constant(name), utf8Constant(desc));
+		return constant(CONSTANT_METHODREF, ownerClass, nameAndType);
+	}
+
+	/**
+	 * Adds a constant made of two u2 indexes (Methodref, NameAndType).
+	 */
+	private int constant(int tag, int first, int second)
+	throws IOException {
+		pool.writeByte(tag);
+		pool.writeShort(first);
+		pool.writeShort(second);
+		return poolCount++;
+	}
+
+	/**
+	 * Adds a 4-byte constant (Integer, Float).
+	 */
+	private int constant(int tag, int bits)
+	throws IOException {
+		if (poolCount >= 0xFFFF) {
+			throw new IllegalArgumentException("too many constants");
+		}
+		pool.writeByte(tag);
+		pool.writeInt(bits);
+		return poolCount++;
+	}
+}
@@ -0,0 +1,1465 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import structures.IntStack;
+import structures.Stack;
+
+/**
+ * This class holds an expression that has been parsed ONCE into a tree of nodes. Variables
+ * in the tree are resolved to slots: a scalar variable refers to a position in the scalar
+ * symbols list, an array variable to a position in the array symbols list. Evaluating the tree
+ * only reads values out of those slots, so no Strings are built or parsed during evaluation.
+ *
+ * A compiled expression is immutable: symbol values are passed in on every call, or held
+ * in a Bindings object (see bind), so one instance can be shared by any number of threads.
+ */
+public class CompiledExpression implements Formula {
+
+	/**
+	 * A node in the compiled expression tree. The tree is what the optimizer and code
+	 * generators work on; evaluation runs the postfix Program built from it, or walks it
+	 * with explicit stacks (RangeEvaluator), so that no evaluation mode recurses once per
+	 * nesting level.
+	 */
+	static abstract class Node {
+	}
+
+	/**
+	 * Constant (number) in the expression. The constant is held at each precision, parsed
+	 * from the text of the expression, so double and long evaluation are not limited by
+	 * the float value.
+	 */
+	static class Constant extends Node {
+		final float value;
+		final double doubleValue;
+		final long longValue;
+
+		/**
+		 * True if the constant is a whole number that fits in a long (longValue is exact)
+		 */
+		final boolean integral;
+
+		Constant(float value, double doubleValue, long longValue, boolean integral) {
+			this.value = value;
+			this.doubleValue = doubleValue;
+			this.longValue = longValue;
+			this.integral = integral;
+		}
+
+		/**
+		 * Parses a constant token.
+		 *
+		 * @throws NumberFormatException If the token is not a number
+		 */
+		static Constant parse(String token)
+		throws NumberFormatException {
+			float f = Float.parseFloat(token);
+			double d = Double.parseDouble(token);
+			try {
+				return new Constant(f, d, Long.parseLong(token), true);
+			} catch (NumberFormatException e) {
+				boolean integral = d == Math.rint(d) && Math.abs(d) < 0x1p63;
+				return new Constant(f, d, integral ? (long) d : 0, integral);
+			}
+		}
+
+		/**
+		 * Folds an operation on two constants. Returns null if the operation cannot be
+		 * folded in every mode: integer division by zero, or long overflow, must still
+		 * happen at evaluation.
+		 */
+		static Constant fold(char op, Constant l, Constant r) {
+			float f;
+			double d;
+			switch (op) {
+				case '+': f = l.value + r.value; d = l.doubleValue + r.doubleValue; break;
+				case '-': f = l.value - r.value; d = l.doubleValue - r.doubleValue; break;
+				case '*': f = l.value * r.value; d = l.doubleValue * r.doubleValue; break;
+				default: f = l.value / r.value; d = l.doubleValue / r.doubleValue; break;
+			}
+			if (!l.integral || !r.integral) {
+				return new Constant(f, d, 0, false);
+			}
+			try {
+				return new Constant(f, d, exact(op, l.longValue, r.longValue), true);
+			} catch (ArithmeticException e) {
+				return null;
+			}
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Constant)) {
+				return false;
+			}
+			Constant other = (Constant) o;
+			return Float.floatToIntBits(value) == Float.floatToIntBits(other.value)
+					&& Double.doubleToLongBits(doubleValue) == Double.doubleToLongBits(other.doubleValue)
+					&& longValue == other.longValue && integral == other.integral;
+		}
+		public int hashCode() {
+			return Float.floatToIntBits(value);
+		}
+	}
+
+	/**
+	 * Scalar variable, resolved to its slot in the scalars list.
+	 */
+	static class Scalar extends Node {
+		final int slot;
+		Scalar(int slot) {
+			this.slot = slot;
+		}
+		public boolean equals(Object o) {
+			return o instanceof Scalar && slot == ((Scalar) o).slot;
+		}
+		public int hashCode() {
+			return 31 * slot + 1;
+		}
+	}
+
+	/**
+	 * Array variable with a subscript expression, resolved to its slot in the arrays list.
+	 */
+	static class ArrayElement extends Node {
+		final int slot;
+		final Node subscript;
+		ArrayElement(int slot, Node subscript) {
+			this.slot = slot;
+			this.subscript = subscript;
+		}
+
+		/* Children are compared by identity: two nodes are equal only once their children
+		 * have already been made identical by ExpressionOptimizer */
+		public boolean equals(Object o) {
+			if (!(o instanceof ArrayElement)) {
+				return false;
+			}
+			ArrayElement other = (ArrayElement) o;
+			return slot == other.slot && subscript == other.subscript;
+		}
+		public int hashCode() {
+			return 31 * slot + System.identityHashCode(subscript);
+		}
+	}
+
+	/**
+	 * Binary operation, one of '+', '-', '*' or '/'.
+	 */
+	static class BinaryOp extends Node {
+		final char op;
+		final Node left;
+		final Node right;
+		BinaryOp(char op, Node left, Node right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		/* Children are compared by identity, see ArrayElement */
+		public boolean equals(Object o) {
+			if (!(o instanceof BinaryOp)) {
+				return false;
+			}
+			BinaryOp other = (BinaryOp) o;
+			return op == other.op && left == other.left && right == other.right;
+		}
+		public int hashCode() {
+			return (31 * op + System.identityHashCode(left)) * 31 + System.identityHashCode(right);
+		}
+	}
+
+	/**
+	 * Reference to a shared subexpression, which is evaluated once per evaluation, before
+	 * the root, and stored in temps.
+	 */
+	static class Temp extends Node {
+		final int index;
+		Temp(int index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Applies an operator to two longs, throwing ArithmeticException on overflow or
+	 * division by zero.
+	 */
+	static long exact(char op, long l, long r) {
+		switch (op) {
+			case '+': return Math.addExact(l, r);
+			case '-': return Math.subtractExact(l, r);
+			case '*': return Math.multiplyExact(l, r);
+			default:
+				if (l == Long.MIN_VALUE && r == -1) {
+					throw new ArithmeticException("long overflow");
+				}
+				return l / r;
+		}
+	}
+
+	/**
+	 * Lists the nodes under root in post order (children before parents, left before right)
+	 * without recursing, so trees of any depth can be walked.
+	 *
+	 * @param root Root node
+	 * @param distinct True to list a node reached through several parents only once, false
+	 *        to list it once per parent
+	 * @return Nodes in post order
+	 */
+	static ArrayList<Node> postOrder(Node root, boolean distinct) {
+		ArrayList<Node> order = new ArrayList<Node>();
+		IdentityHashMap<Node,Node> seen = distinct ? new IdentityHashMap<Node,Node>() : null;
+		Stack<Node> nodes = new Stack<Node>();
+		IntStack expanded = new IntStack();
+		nodes.push(root);
+		expanded.push(0);
+		while (!nodes.isEmpty()) {
+			Node node = nodes.pop();
+			if (expanded.pop() == 1) {
+				order.add(node);
+				continue;
+			}
+			if (distinct && seen.put(node, node) != null) {
+				continue;
+			}
+			nodes.push(node);
+			expanded.push(1);
+			if (node instanceof BinaryOp) {
+				nodes.push(((BinaryOp) node).right);
+				expanded.push(0);
+				nodes.push(((BinaryOp) node).left);
+				expanded.push(0);
+			} else if (node instanceof ArrayElement) {
+				nodes.push(((ArrayElement) node).subscript);
+				expanded.push(0);
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * The expression in postfix form, which every evaluation mode runs in a loop over an
+	 * explicit operand stack. Each instruction is an opcode in the low 4 bits and an argument
+	 * (constant number, slot or temp number) in the rest. The code computes each shared
+	 * subexpression in turn and STOREs it, then computes the root, leaving it on the stack.
+	 */
+	static class Program {
+
+		/*
+		 * Opcodes
+		 */
+		static final int CONST = 0, SCALAR = 1, ARRAY = 2, TEMP = 3, STORE = 4;
+		static final int ADD = 5, SUB = 6, MUL = 7, DIV = 8;
+
+		final int[] code;
+
+		/**
+		 * Constants at each precision, indexed by constant number
+		 */
+		final float[] floats;
+		final double[] doubles;
+		final long[] longs;
+
+		/**
+		 * True for each constant that is a whole number that fits in a long
+		 */
+		final boolean[] wholes;
+
+		/**
+		 * Largest number of operands on the stack at once
+		 */
+		final int maxStack;
+
+		/**
+		 * Initializes a program with code and constants already built, as read back by
+		 * ProgramFile.
+		 */
+		Program(int[] code, float[] floats, double[] doubles, long[] longs, boolean[] wholes,
+				int maxStack) {
+			this.code = code;
+			this.floats = floats;
+			this.doubles = doubles;
+			this.longs = longs;
+			this.wholes = wholes;
+			this.maxStack = maxStack;
+		}
+
+		Program(Node root, Node[] shared) {
+			IntStack instructions = new IntStack();
+			ArrayList<Constant> constants = new ArrayList<Constant>();
+			int depth = 0, max = 0;
+			for (int i = 0; i <= shared.length; i++) {
+				for (Node node : postOrder(i < shared.length ? shared[i] : root, false)) {
+					if (node instanceof Constant) {
+						instructions.push(CONST | constants.size() << 4);
+						constants.add((Constant) node);
+						depth++;
+					} else if (node instanceof Scalar) {
+						instructions.push(SCALAR | ((Scalar) node).slot << 4);
+						depth++;
+					} else if (node instanceof Temp) {
+						instructions.push(TEMP | ((Temp) node).index << 4);
+						depth++;
+					} else if (node instanceof ArrayElement) {
+						instructions.push(ARRAY | ((ArrayElement) node).slot << 4);
+					} else {
+						switch (((BinaryOp) node).op) {
+							case '+': instructions.push(ADD); break;
+							case '-': instructions.push(SUB); break;
+							case '*': instructions.push(MUL); break;
+							default: instructions.push(DIV); break;
+						}
+						depth--;
+					}
+					max = Math.max(max, depth);
+				}
+				if (i < shared.length) {
+					instructions.push(STORE | i << 4);
+					depth--;
+				}
+			}
+
+			/* IntStack pops in reverse, so the code is filled from the end */
+			code = new int[instructions.size()];
+			for (int pc = code.length - 1; pc >= 0; pc--) {
+				code[pc] = instructions.pop();
+			}
+			floats = new float[constants.size()];
+			doubles = new double[constants.size()];
+			longs = new long[constants.size()];
+			wholes = new boolean[constants.size()];
+			for (int i = 0; i < floats.length; i++) {
+				floats[i] = constants.get(i).value;
+				doubles[i] = constants.get(i).doubleValue;
+				longs[i] = constants.get(i).longValue;
+				wholes[i] = constants.get(i).integral;
+			}
+			maxStack = max;
+		}
+	}
+
+	/**
+	 * Batches with more rows than this are split into fork/join tasks
+	 */
+	public static final int BATCH_SPLIT_THRESHOLD = 4096;
+
+	/**
+	 * Expressions longer than this many characters are parsed in parallel, and expressions
+	 * compiled to more than this many instructions can be evaluated in parallel
+	 */
+	public static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	/**
+	 * Returns whether parallel parsing and evaluation can pay off, that is, whether the
+	 * common fork/join pool has more than one worker. On a single core the tasks only take
+	 * turns, and cost more than the sequential parser and interpreter.
+	 *
+	 * @return True if large expressions should be parsed and evaluated in parallel
+	 */
+	static boolean parallel() {
+		return ForkJoinPool.getCommonPoolParallelism() > 1;
+	}
+
+	/**
+	 * Runs a task in the common fork/join pool. An exception thrown in another worker is
+	 * rethrown by fork/join as a new exception of the same class, without its message, that
+	 * has the original as its cause (at every level of joins it crosses); the original is
+	 * rethrown instead, so evaluation in parallel fails with the same exception as
+	 * sequential evaluation.
+	 */
+	static void invoke(ForkJoinTask<?> task) {
+		try {
+			ForkJoinPool.commonPool().invoke(task);
+		} catch (RuntimeException e) {
+			RuntimeException original = e;
+			while (original.getCause() != null && original.getCause().getClass() == original.getClass()) {
+				original = (RuntimeException) original.getCause();
+			}
+			throw original;
+		}
+	}
+
+	/**
+	 * Root of the expression tree
+	 */
+	final Node root;
+
+	/**
+	 * Shared subexpressions, in an order in which each one only refers to earlier ones
+	 */
+	final Node[] shared;
+
+	/**
+	 * Number of nodes removed by optimize, 0 if this expression was not optimized
+	 */
+	final int removedNodes;
+
+	/**
+	 * Names of scalar variables, indexed by slot
+	 */
+	final String[] scalarNames;
+
+	/**
+	 * Names of array variables, indexed by slot
+	 */
+	final String[] arrayNames;
+
+	/**
+	 * Slot of each scalar variable, keyed by name
+	 */
+	final HashMap<String,Integer> scalarSlots;
+
+	/**
+	 * Slot of each array variable, keyed by name
+	 */
+	final HashMap<String,Integer> arraySlots;
+
+	/**
+	 * True if every constant in the expression is a whole number that fits in a long, so
+	 * that it can be evaluated in integer arithmetic
+	 */
+	final boolean integral;
+
+	/**
+	 * Postfix form of root and shared, which evaluation runs
+	 */
+	final Program program;
+
+	/**
+	 * For a large unoptimized expression whose root is a chain of operations of the same
+	 * precedence, such as a + b - c + d, the code range partStart[i]..partEnd[i]-1 of each
+	 * operand, and the operator before each operand after the first; otherwise null
+	 */
+	final int[] partStart;
+	final int[] partEnd;
+	final char[] partOps;
+
+	/**
+	 * What evaluation does with a subscript outside its array
+	 */
+	final BoundsPolicy bounds;
+
+	/**
+	 * Initializes a compiled expression with a tree and its slot tables.
+	 *
+	 * @param root Root of expression tree
+	 * @param shared Shared subexpressions referred to by Temp nodes
+	 * @param removedNodes Number of nodes removed by optimization
+	 * @param scalarNames Names of scalar variables, indexed by slot
+	 * @param arrayNames Names of array variables, indexed by slot
+	 * @param scalarSlots Slot of each scalar variable, keyed by name
+	 * @param arraySlots Slot of each array variable, keyed by name
+	 * @param integral True if all constants are whole numbers that fit in a long
+	 */
+	CompiledExpression(Node root, Node[] shared, int removedNodes, String[] scalarNames,
+			String[] arrayNames, HashMap<String,Integer> scalarSlots, HashMap<String,Integer> arraySlots,
+			boolean integral) {
+		this(root, shared, removedNodes, scalarNames, arrayNames, scalarSlots, arraySlots, integral,
+				new Program(root, shared));
+	}
+
+	/**
+	 * Initializes a compiled expression with a tree, its slot tables, and the program
+	 * already built for it.
+	 */
+	private CompiledExpression(Node root, Node[] shared, int removedNodes, String[] scalarNames,
+			String[] arrayNames, HashMap<String,Integer> scalarSlots, HashMap<String,Integer> arraySlots,
+			boolean integral, Program program) {
+		this.root = root;
+		this.shared = shared;
+		this.removedNodes = removedNodes;
+		this.scalarNames = scalarNames;
+		this.arrayNames = arrayNames;
+		this.scalarSlots = scalarSlots;
+		this.arraySlots = arraySlots;
+		this.integral = integral;
+		bounds = BoundsPolicy.THROW;
+		this.program = program;
+
+		/* The operands of the root chain are collected from the bottom of its left spine up,
+		 * that is, in reverse */
+		if (shared.length == 0 && program.code.length > PARALLEL_THRESHOLD && root instanceof BinaryOp) {
+			boolean additive = isAdditive(((BinaryOp) root).op);
+			ArrayList<Node> operands = new ArrayList<Node>();
+			StringBuilder ops = new StringBuilder();
+			Node node = root;
+			while (node instanceof BinaryOp && isAdditive(((BinaryOp) node).op) == additive) {
+				operands.add(((BinaryOp) node).right);
+				ops.append(((BinaryOp) node).op);
+				node = ((BinaryOp) node).left;
+			}
+			operands.add(node);
+			int parts = operands.size();
+			partStart = new int[parts];
+			partEnd = new int[parts];
+			partOps = new char[parts];
+			int pc = 0;
+			for (int i = 0; i < parts; i++) {
+				partStart[i] = pc;
+				pc += postOrder(operands.get(parts - 1 - i), false).size();
+				partEnd[i] = pc;
+				if (i > 0) {
+					partOps[i] = ops.charAt(parts - 1 - i);
+					pc++;
+				}
+			}
+		} else {
+			partStart = partEnd = null;
+			partOps = null;
+		}
+	}
+
+	/**
+	 * Initializes a copy of a compiled expression with another bounds policy. The tree and
+	 * program are shared, not copied.
+	 */
+	private CompiledExpression(CompiledExpression from, BoundsPolicy bounds) {
+		root = from.root;
+		shared = from.shared;
+		removedNodes = from.removedNodes;
+		scalarNames = from.scalarNames;
+		arrayNames = from.arrayNames;
+		scalarSlots = from.scalarSlots;
+		arraySlots = from.arraySlots;
+		integral = from.integral;
+		program = from.program;
+		partStart = from.partStart;
+		partEnd = from.partEnd;
+		partOps = from.partOps;
+		this.bounds = bounds;
+	}
+
+	private static boolean isAdditive(char op) {
+		return op == '+' || op == '-';
+	}
+
+	/**
+	 * Parses an expression into a compiled tree. Variables are bound to the positions of their
+	 * symbols in the given scalars and arrays lists, so the value arrays passed to evaluate must
+	 * be laid out in the same order as these lists.
+	 *
+	 * @param expr Expression text
+	 * @param scalars Scalar symbols of the expression
+	 * @param arrays Array symbols of the expression
+	 * @return Compiled expression
+	 * @throws IllegalArgumentException If the expression is malformed, or uses a variable
+	 *         that is not in the symbol lists
+	 */
+	public static CompiledExpression compile(String expr, ArrayList<ScalarSymbol> scalars,
+			ArrayList<ArraySymbol> arrays)
+	throws IllegalArgumentException {
+		HashMap<String,Integer> scalarSlots = new HashMap<String,Integer>();
+		for (int i = 0; i < scalars.size(); i++) {
+			scalarSlots.put(scalars.get(i).name, i);
+		}
+		HashMap<String,Integer> arraySlots = new HashMap<String,Integer>();
+		for (int i = 0; i < arrays.size(); i++) {
+			arraySlots.put(arrays.get(i).name, i);
+		}
+		return compile(expr, scalars, arrays, scalarSlots, arraySlots);
+	}
+
+	/**
+	 * Parses an expression into a compiled tree, using already built name-to-slot tables
+	 * for the scalars and arrays lists.
+	 *
+	 * @param expr Expression text
+	 * @param scalars Scalar symbols of the expression
+	 * @param arrays Array symbols of the expression
+	 * @param scalarSlots Position of each scalar in scalars, keyed by name
+	 * @param arraySlots Position of each array in arrays, keyed by name
+	 * @return Compiled expression
+	 * @throws IllegalArgumentException If the expression is malformed, or uses a variable
+	 *         that is not in the symbol lists
+	 */
+	static CompiledExpression compile(String expr, ArrayList<ScalarSymbol> scalars,
+			ArrayList<ArraySymbol> arrays, HashMap<String,Integer> scalarSlots,
+			HashMap<String,Integer> arraySlots)
+	throws IllegalArgumentException {
+		return compile(expr, scalars, arrays, scalarSlots, arraySlots, null, null);
+	}
+
+	/**
+	 * Parses an expression into a compiled tree, using already built name-to-slot tables for
+	 * the scalars and arrays lists. If the bracket pairs of the expression are given and it
+	 * is at least PARALLEL_THRESHOLD characters long, it is parsed in parallel when there is
+	 * more than one core.
+	 *
+	 * @param expr Expression text
+	 * @param scalars Scalar symbols of the expression
+	 * @param arrays Array symbols of the expression
+	 * @param scalarSlots Position of each scalar in scalars, keyed by name
+	 * @param arraySlots Position of each array in arrays, keyed by name
+	 * @param openingBracketIndex Positions of opening brackets, in increasing order, or null
+	 * @param closingBracketIndex Positions of the matching closing brackets, or null
+	 * @return Compiled expression
+	 * @throws IllegalArgumentException If the expression is malformed, or uses a variable
+	 *         that is not in the symbol lists
+	 */
+	static CompiledExpression compile(String expr, ArrayList<ScalarSymbol> scalars,
+			ArrayList<ArraySymbol> arrays, HashMap<String,Integer> scalarSlots,
+			HashMap<String,Integer> arraySlots, int[] openingBracketIndex, int[] closingBracketIndex)
+	throws IllegalArgumentException {
+		String[] scalarNames = new String[scalars.size()];
+		for (int i = 0; i < scalarNames.length; i++) {
+			scalarNames[i] = scalars.get(i).name;
+		}
+		String[] arrayNames = new String[arrays.size()];
+		for (int i = 0; i < arrayNames.length; i++) {
+			arrayNames[i] = arrays.get(i).name;
+		}
+		scalarSlots = new HashMap<String,Integer>(scalarSlots);
+		arraySlots = new HashMap<String,Integer>(arraySlots);
+		if (openingBracketIndex != null && expr.length() >= PARALLEL_THRESHOLD && parallel()) {
+			ParallelParser parser = new ParallelParser(expr, scalarSlots, arraySlots,
+					openingBracketIndex, closingBracketIndex);
+			Node root = parser.parse();
+			return new CompiledExpression(root, new Node[0], 0, scalarNames, arrayNames,
+					scalarSlots, arraySlots, parser.integral());
+		}
+		Parser parser = new Parser(expr, scalarSlots, arraySlots);
+		Node root = parser.parse();
+		return new CompiledExpression(root, new Node[0], 0, scalarNames, arrayNames,
+				scalarSlots, arraySlots, parser.integral);
+	}
+
+	/**
+	 * Builds a compiled expression from a program read back from its postfix form (see
+	 * ProgramFile), without parsing any text. The program runs as it is; the tree that the
+	 * optimizer, code generator and other evaluators work on is rebuilt from it in one pass
+	 * over the code, which also checks that the code is well formed.
+	 *
+	 * @param program Code and constants, with any maxStack
+	 * @param sharedCount Number of shared subexpressions the code STOREs
+	 * @param removedNodes Number of nodes removed by optimization
+	 * @param scalarNames Names of scalar variables, indexed by slot
+	 * @param arrayNames Names of array variables, indexed by slot
+	 * @param integral True if all constants are whole numbers that fit in a long
+	 * @return Compiled expression
+	 * @throws IllegalArgumentException If the code is not a well formed program for these
+	 *         symbols
+	 */
+	static CompiledExpression fromProgram(Program program, int sharedCount, int removedNodes,
+			String[] scalarNames, String[] arrayNames, boolean integral)
+	throws IllegalArgumentException {
+		Node[] shared = new Node[sharedCount];
+		Node[] temps = new Node[sharedCount];
+		Stack<Node> operands = new Stack<Node>();
+		int stored = 0, depth = 0, max = 0;
+		int[] code = program.code;
+		for (int pc = 0; pc < code.length; pc++) {
+			int op = code[pc] & 0xF, arg = code[pc] >>> 4;
+			boolean ok;
+			switch (op) {
+				case Program.CONST: ok = arg < program.floats.length; break;
+				case Program.SCALAR: ok = arg < scalarNames.length; break;
+				case Program.ARRAY: ok = arg < arrayNames.length && depth >= 1; break;
+				case Program.TEMP: ok = arg < stored; break;
+				case Program.STORE: ok = arg == stored && arg < sharedCount && depth == 1; break;
+				default: ok = op <= Program.DIV && depth >= 2; break;
+			}
+			if (!ok) {
+				throw new IllegalArgumentException("bad instruction " + code[pc] + " at " + pc);
+			}
+			switch (op) {
+				case Program.CONST:
+					operands.push(new Constant(program.floats[arg], program.doubles[arg], program.longs[arg],
+							program.wholes[arg]));
+					depth++;
+					break;
+				case Program.SCALAR:
+					operands.push(new Scalar(arg));
+					depth++;
+					break;
+				case Program.ARRAY:
+					operands.push(new ArrayElement(arg, operands.pop()));
+					break;
+				case Program.TEMP:
+					if (temps[arg] == null) {
+						temps[arg] = new Temp(arg);
+					}
+					operands.push(temps[arg]);
+					depth++;
+					break;
+				case Program.STORE:
+					shared[stored++] = operands.pop();
+					depth--;
+					break;
+				default:
+					Node right = operands.pop();
+					Node left = operands.pop();
+					operands.push(new BinaryOp("+-*/".charAt(op - Program.ADD), left, right));
+					depth--;
+					break;
+			}
+			max = Math.max(max, depth);
+		}
+		if (depth != 1 || stored != sharedCount) {
+			throw new IllegalArgumentException("program leaves " + depth + " operands and stores "
+					+ stored + " of " + sharedCount + " shared subexpressions");
+		}
+		HashMap<String,Integer> scalarSlots = new HashMap<String,Integer>();
+		for (int i = 0; i < scalarNames.length; i++) {
+			scalarSlots.put(scalarNames[i], i);
+		}
+		HashMap<String,Integer> arraySlots = new HashMap<String,Integer>();
+		for (int i = 0; i < arrayNames.length; i++) {
+			arraySlots.put(arrayNames[i], i);
+		}
+		Program checked = new Program(code, program.floats, program.doubles, program.longs,
+				program.wholes, max);
+		return new CompiledExpression(operands.pop(), shared, removedNodes, scalarNames, arrayNames,
+				scalarSlots, arraySlots, integral, checked);
+	}
+
+	/**
+	 * Evaluates the compiled expression. A subscript outside its array is handled by the
+	 * bounds policy (see withBounds).
+	 *
+	 * @param scalarValues Values of scalar variables, indexed by slot
+	 * @param arrayValues Values of array variables, indexed by slot
+	 * @return Result of evaluation
+	 * @throws ArrayIndexOutOfBoundsException If a subscript is out of bounds and the policy
+	 *         is to throw
+	 */
+	public float evaluate(int[] scalarValues, int[][] arrayValues) {
+		return evaluate(scalarValues, arrayValues, null, new float[workSize()]);
+	}
+
+	/**
+	 * Evaluates the compiled expression with some arrays stored sparse. An array whose slot
+	 * in sparseValues is not null is read from there, and its slot in arrayValues is ignored
+	 * (it may be null).
+	 *
+	 * @param scalarValues Values of scalar variables, indexed by slot
+	 * @param arrayValues Values of dense array variables, indexed by slot
+	 * @param sparseValues Values of sparse array variables, indexed by slot, or null if
+	 *        there are none
+	 * @return Result of evaluation
+	 * @throws ArrayIndexOutOfBoundsException If a subscript is out of bounds and the policy
+	 *         is to throw
+	 */
+	public float evaluate(int[] scalarValues, int[][] arrayValues, SparseArray[] sparseValues) {
+		return evaluate(scalarValues, arrayValues, sparseValues, new float[workSize()]);
+	}
+
+	/**
+	 * Evaluates the compiled expression, using the given array to hold shared subexpressions
+	 * (at the start) and the operand stack (after them).
+	 *
+	 * @param scalarValues Values of scalar variables, indexed by slot
+	 * @param arrayValues Values of array variables, indexed by slot
+	 * @param sparseValues Sparse array variables, indexed by slot, or null
+	 * @param work Array of at least workSize() entries
+	 * @return Result of evaluation
+	 */
+	float evaluate(int[] scalarValues, int[][] arrayValues, SparseArray[] sparseValues, float[] work) {
+		return run(program.code, 0, program.code.length, program.floats, scalarValues, arrayValues,
+				sparseValues, work, shared.length);
+	}
+
+	/**
+	 * Runs the float code from..to-1 with the operand stack starting at work[sp], and returns
+	 * the value it leaves on top of the stack.
+	 */
+	private float run(int[] code, int from, int to, float[] constants, int[] scalarValues,
+			int[][] arrayValues, SparseArray[] sparseValues, float[] work, int sp) {
+		for (int pc = from; pc < to; pc++) {
+			int ins = code[pc];
+			switch (ins & 0xF) {
+				case Program.CONST: work[sp++] = constants[ins >>> 4]; break;
+				case Program.SCALAR: work[sp++] = scalarValues[ins >>> 4]; break;
+				case Program.ARRAY: work[sp-1] = element(arrayValues, sparseValues, ins >>> 4, (int) work[sp-1]); break;
+				case Program.TEMP: work[sp++] = work[ins >>> 4]; break;
+				case Program.STORE: work[ins >>> 4] = work[--sp]; break;
+				case Program.ADD: sp--; work[sp-1] = work[sp-1] + work[sp]; break;
+				case Program.SUB: sp--; work[sp-1] = work[sp-1] - work[sp]; break;
+				case Program.MUL: sp--; work[sp-1] = work[sp-1] * work[sp]; break;
+				default: sp--; work[sp-1] = work[sp-1] / work[sp]; break;
+			}
+		}
+		return work[sp-1];
+	}
+
+	/**
+	 * Reads an array element. A subscript within the array is read directly, with a check
+	 * the JIT merges with its own, so only a subscript out of range costs anything more, and
+	 * goes to the bounds policy. A sparse array has no dense values (its slot is null or
+	 * empty), so it always takes the slow path.
+	 */
+	int element(int[][] arrayValues, SparseArray[] sparseValues, int slot, long index) {
+		int[] values = arrayValues[slot];
+		if (values != null && index >= 0 && index < values.length) {
+			return values[(int) index];
+		}
+		if (sparseValues != null && sparseValues[slot] != null) {
+			SparseArray sparse = sparseValues[slot];
+			if (index >= 0 && index < sparse.length()) {
+				return sparse.get((int) index);
+			}
+			int i = bounds.resolve(arrayNames[slot], sparse.length(), index);
+			return i == -1 ? bounds.value : sparse.get(i);
+		}
+		return bounds.outOfBounds(arrayNames[slot], values, index);
+	}
+
+	/**
+	 * Evaluates the compiled expression, splitting the work across cores with fork/join if
+	 * the expression is large (more than PARALLEL_THRESHOLD instructions), unoptimized, and
+	 * its root is a chain of operations of the same precedence. The operands of that chain
+	 * are evaluated in parallel and then combined left to right, so the result is the same
+	 * as evaluate's. Other expressions, and every expression when there is only one core, are
+	 * evaluated sequentially.
+	 *
+	 * @param scalarValues Values of scalar variables, indexed by slot
+	 * @param arrayValues Values of array variables, indexed by slot
+	 * @return Result of evaluation
+	 */
+	public float evaluateParallel(int[] scalarValues, int[][] arrayValues) {
+		return evaluateParallel(scalarValues, arrayValues, null,
+				partStart == null || !parallel() ? new float[workSize()] : null);
+	}
+
+	/**
+	 * Evaluates the compiled expression like evaluateParallel, using the given work array if
+	 * it is evaluated sequentially.
+	 */
+	float evaluateParallel(int[] scalarValues, int[][] arrayValues, SparseArray[] sparseValues, float[] work) {
+		if (partStart == null || !parallel()) {
+			return evaluate(scalarValues, arrayValues, sparseValues, work);
+		}
+		float[] values = new float[partStart.length];
+		invoke(new PartsTask(scalarValues, arrayValues, sparseValues, values, 0, values.length));
+		float result = values[0];
+		for (int i = 1; i < values.length; i++) {
+			switch (partOps[i]) {
+				case '+': result = result + values[i]; break;
+				case '-': result = result - values[i]; break;
+				case '*': result = result * values[i]; break;
+				default: result = result / values[i]; break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Fork/join task that evaluates the operands lo..hi-1 of the root chain, splitting in
+	 * half until they span at most PARALLEL_THRESHOLD instructions.
+	 */
+	class PartsTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final int[] scalarValues;
+		final int[][] arrayValues;
+		final SparseArray[] sparseValues;
+		final float[] values;
+		final int lo;
+		final int hi;
+
+		PartsTask(int[] scalarValues, int[][] arrayValues, SparseArray[] sparseValues, float[] values,
+				int lo, int hi) {
+			this.scalarValues = scalarValues;
+			this.arrayValues = arrayValues;
+			this.sparseValues = sparseValues;
+			this.values = values;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > 1 && partEnd[hi-1] - partStart[lo] > PARALLEL_THRESHOLD) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new PartsTask(scalarValues, arrayValues, sparseValues, values, lo, mid),
+						new PartsTask(scalarValues, arrayValues, sparseValues, values, mid, hi));
+				return;
+			}
+			float[] work = new float[program.maxStack];
+			for (int i = lo; i < hi; i++) {
+				values[i] = run(program.code, partStart[i], partEnd[i], program.floats, scalarValues,
+						arrayValues, sparseValues, work, 0);
+			}
+		}
+	}
+
+	/**
+	 * Returns the size of the work array that evaluate needs: one entry per shared
+	 * subexpression, plus the deepest operand stack.
+	 *
+	 * @return Number of float entries needed
+	 */
+	int workSize() {
+		return shared.length + program.maxStack;
+	}
+
+	/**
+	 * Creates a per-caller context that holds symbol values for this expression. Each thread
+	 * evaluating a shared compiled expression should use its own.
+	 *
+	 * @return New bindings, with every scalar 0 and every array unset
+	 */
+	public Bindings bind() {
+		return new Bindings(this);
+	}
+
+	/**
+	 * Evaluates the compiled expression in double arithmetic. Constants keep the precision
+	 * they were written with, and subscripts are exact up to the largest int.
+	 *
+	 * @param scalarValues Values of scalar variables, indexed by slot
+	 * @param arrayValues Values of array variables, indexed by slot
+	 * @return Result of evaluation
+	 */
+	public double evaluateDouble(int[] scalarValues, int[][] arrayValues) {
+		return evaluateDouble(scalarValues, arrayValues, null);
+	}
+
+	/**
+	 * Evaluates the compiled expression in double arithmetic, with some arrays stored sparse.
+	 *
+	 * @see #evaluate(int[], int[][], SparseArray[])
+	 * @see #evaluateDouble(int[], int[][])
+	 */
+	public double evaluateDouble(int[] scalarValues, int[][] arrayValues, SparseArray[] sparseValues) {
+		int[] code = program.code;
+		double[] constants = program.doubles;
+		double[] work = new double[workSize()];
+		int sp = shared.length;
+		for (int pc = 0; pc < code.length; pc++) {
+			int ins = code[pc];
+			switch (ins & 0xF) {
+				case Program.CONST: work[sp++] = constants[ins >>> 4]; break;
+				case Program.SCALAR: work[sp++] = scalarValues[ins >>> 4]; break;
+				case Program.ARRAY: work[sp-1] = element(arrayValues, sparseValues, ins >>> 4, (int) work[sp-1]); break;
+				case Program.TEMP: work[sp++] = work[ins >>> 4]; break;
+				case Program.STORE: work[ins >>> 4] = work[--sp]; break;
+				case Program.ADD: sp--; work[sp-1] = work[sp-1] + work[sp]; break;
+				case Program.SUB: sp--; work[sp-1] = work[sp-1] - work[sp]; break;
+				case Program.MUL: sp--; work[sp-1] = work[sp-1] * work[sp]; break;
+				default: sp--; work[sp-1] = work[sp-1] / work[sp]; break;
+			}
+		}
+		return work[sp-1];
+	}
+
+	/**
+	 * Evaluates the compiled expression in long arithmetic. Division truncates toward zero,
+	 * and overflow wraps around, as with Java longs. Subscripts are checked against their
+	 * arrays before being narrowed to an int, so they never wrap around to another element.
+	 *
+	 * @param scalarValues Values of scalar variables, indexed by slot
+	 * @param arrayValues Values of array variables, indexed by slot
+	 * @return Result of evaluation
+	 * @throws IllegalStateException If the expression has a constant that is not a whole number
+	 * @throws ArithmeticException If there is a division by zero
+	 */
+	public long evaluateLong(int[] scalarValues, int[][] arrayValues)
+	throws IllegalStateException, ArithmeticException {
+		return evaluateLong(scalarValues, arrayValues, null);
+	}
+
+	/**
+	 * Evaluates the compiled expression like evaluateLong, with some arrays stored sparse.
+	 *
+	 * @see #evaluate(int[], int[][], SparseArray[])
+	 * @see #evaluateLong(int[], int[][])
+	 */
+	public long evaluateLong(int[] scalarValues, int[][] arrayValues, SparseArray[] sparseValues)
+	throws IllegalStateException, ArithmeticException {
+		checkIntegral();
+		int[] code = program.code;
+		long[] constants = program.longs;
+		long[] work = new long[workSize()];
+		int sp = shared.length;
+		for (int pc = 0; pc < code.length; pc++) {
+			int ins = code[pc];
+			switch (ins & 0xF) {
+				case Program.CONST: work[sp++] = constants[ins >>> 4]; break;
+				case Program.SCALAR: work[sp++] = scalarValues[ins >>> 4]; break;
+				case Program.ARRAY: work[sp-1] = element(arrayValues, sparseValues, ins >>> 4, work[sp-1]); break;
+				case Program.TEMP: work[sp++] = work[ins >>> 4]; break;
+				case Program.STORE: work[ins >>> 4] = work[--sp]; break;
+				case Program.ADD: sp--; work[sp-1] = work[sp-1] + work[sp]; break;
+				case Program.SUB: sp--; work[sp-1] = work[sp-1] - work[sp]; break;
+				case Program.MUL: sp--; work[sp-1] = work[sp-1] * work[sp]; break;
+				default: sp--; work[sp-1] = work[sp-1] / work[sp]; break;
+			}
+		}
+		return work[sp-1];
+	}
+
+	/**
+	 * Evaluates the compiled expression in long arithmetic, like evaluateLong, but checks
+	 * every operation for overflow. Subscripts are not truncated to an int: one that does
+	 * not fit is out of bounds, like any other outside its array.
+	 *
+	 * @param scalarValues Values of scalar variables, indexed by slot
+	 * @param arrayValues Values of array variables, indexed by slot
+	 * @return Result of evaluation
+	 * @throws IllegalStateException If the expression has a constant that is not a whole number
+	 * @throws ArithmeticException If an operation overflows, or there is a division by zero
+	 */
+	public long evaluateExact(int[] scalarValues, int[][] arrayValues)
+	throws IllegalStateException, ArithmeticException {
+		return evaluateExact(scalarValues, arrayValues, null);
+	}
+
+	/**
+	 * Evaluates the compiled expression like evaluateExact, with some arrays stored sparse.
+	 *
+	 * @see #evaluate(int[], int[][], SparseArray[])
+	 * @see #evaluateExact(int[], int[][])
+	 */
+	public long evaluateExact(int[] scalarValues, int[][] arrayValues, SparseArray[] sparseValues)
+	throws IllegalStateException, ArithmeticException {
+		checkIntegral();
+		int[] code = program.code;
+		long[] constants = program.longs;
+		long[] work = new long[workSize()];
+		int sp = shared.length;
+		for (int pc = 0; pc < code.length; pc++) {
+			int ins = code[pc];
+			switch (ins & 0xF) {
+				case Program.CONST: work[sp++] = constants[ins >>> 4]; break;
+				case Program.SCALAR: work[sp++] = scalarValues[ins >>> 4]; break;
+				case Program.ARRAY: work[sp-1] = element(arrayValues, sparseValues, ins >>> 4, work[sp-1]); break;
+				case Program.TEMP: work[sp++] = work[ins >>> 4]; break;
+				case Program.STORE: work[ins >>> 4] = work[--sp]; break;
+				case Program.ADD: sp--; work[sp-1] = exact('+', work[sp-1], work[sp]); break;
+				case Program.SUB: sp--; work[sp-1] = exact('-', work[sp-1], work[sp]); break;
+				case Program.MUL: sp--; work[sp-1] = exact('*', work[sp-1], work[sp]); break;
+				default: sp--; work[sp-1] = exact('/', work[sp-1], work[sp]); break;
+			}
+		}
+		return work[sp-1];
+	}
+
+	/**
+	 * Returns whether the expression can be evaluated with evaluateLong and evaluateExact.
+	 *
+	 * @return True if every constant is a whole number that fits in a long
+	 */
+	public boolean isIntegral() {
+		return integral;
+	}
+
+	private void checkIntegral()
+	throws IllegalStateException {
+		if (!integral) {
+			throw new IllegalStateException("expression has constants that are not whole numbers");
+		}
+	}
+
+	/**
+	 * Folds constant subexpressions and merges identical subexpressions (including identical
+	 * array subscripts), so that each is computed only once per evaluation. Folding uses the
+	 * same arithmetic as each evaluation mode, and operands are never reordered, so results
+	 * do not change. Integer operations that would overflow or divide by zero are not folded.
+	 *
+	 * @return Optimized expression; nodesRemoved() tells how many nodes were removed
+	 */
+	public CompiledExpression optimize() {
+		return new ExpressionOptimizer().optimize(this).withBounds(bounds);
+	}
+
+	/**
+	 * Returns this expression with another policy for subscripts outside their arrays. Every
+	 * evaluation mode, evaluateRange, IncrementalEvaluator and generated bytecode follow it.
+	 *
+	 * @param bounds Bounds policy
+	 * @return Compiled expression with that policy, this one if it already has it
+	 */
+	public CompiledExpression withBounds(BoundsPolicy bounds) {
+		return bounds == this.bounds ? this : new CompiledExpression(this, bounds);
+	}
+
+	/**
+	 * Returns the policy for subscripts outside their arrays.
+	 *
+	 * @return Bounds policy, BoundsPolicy.THROW unless set with withBounds
+	 */
+	public BoundsPolicy bounds() {
+		return bounds;
+	}
+
+	/**
+	 * Returns the number of nodes optimize removed to produce this expression.
+	 *
+	 * @return Number of nodes removed, 0 if this expression was not optimized
+	 */
+	public int nodesRemoved() {
+		return removedNodes;
+	}
+
+	/**
+	 * Returns the number of shared subexpressions.
+	 *
+	 * @return Number of temps needed for evaluation
+	 */
+	public int tempCount() {
+		return shared.length;
+	}
+
+	/**
+	 * Evaluates the compiled expression once for every row of a columnar set of symbol
+	 * values. scalarColumns[s][row] is the value of the scalar in slot s for that row, and
+	 * arrayColumns[a][row] is the values array of the array in slot a for that row. Batches
+	 * larger than BATCH_SPLIT_THRESHOLD rows are split across cores with fork/join.
+	 *
+	 * @param rows Number of rows to evaluate
+	 * @param scalarColumns Scalar values, one column (of at least rows values) per scalar slot
+	 * @param arrayColumns Array values, one column (of at least rows arrays) per array slot
+	 * @return Results, one per row
+	 * @throws IllegalArgumentException If a column is missing or shorter than rows
+	 */
+	public float[] evaluateBatch(int rows, int[][] scalarColumns, int[][][] arrayColumns)
+	throws IllegalArgumentException {
+		if (scalarColumns.length < scalarNames.length || arrayColumns.length < arrayNames.length) {
+			throw new IllegalArgumentException("one column is needed for every symbol");
+		}
+		for (int i = 0; i < scalarNames.length; i++) {
+			if (scalarColumns[i].length < rows) {
+				throw new IllegalArgumentException("column for " + scalarNames[i] + " has fewer than " + rows + " rows");
+			}
+		}
+		for (int i = 0; i < arrayNames.length; i++) {
+			if (arrayColumns[i].length < rows) {
+				throw new IllegalArgumentException("column for " + arrayNames[i] + " has fewer than " + rows + " rows");
+			}
+		}
+		float[] results = new float[rows];
+		BatchTask task = new BatchTask(scalarColumns, arrayColumns, results, 0, rows);
+		if (rows <= BATCH_SPLIT_THRESHOLD) {
+			task.compute();
+		} else {
+			invoke(task);
+		}
+		return results;
+	}
+
+	/**
+	 * Fork/join task that evaluates the rows lo..hi-1 of a batch, splitting in half until the
+	 * range is at most BATCH_SPLIT_THRESHOLD rows.
+	 */
+	class BatchTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final int[][] scalarColumns;
+		final int[][][] arrayColumns;
+		final float[] results;
+		final int lo;
+		final int hi;
+
+		BatchTask(int[][] scalarColumns, int[][][] arrayColumns, float[] results, int lo, int hi) {
+			this.scalarColumns = scalarColumns;
+			this.arrayColumns = arrayColumns;
+			this.results = results;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo > BATCH_SPLIT_THRESHOLD) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new BatchTask(scalarColumns, arrayColumns, results, lo, mid),
+						new BatchTask(scalarColumns, arrayColumns, results, mid, hi));
+				return;
+			}
+
+			/* Row buffers are reused for every row in this range */
+			int[] scalarValues = new int[scalarNames.length];
+			int[][] arrayValues = new int[arrayNames.length][];
+			float[] work = new float[workSize()];
+			for (int row = lo; row < hi; row++) {
+				for (int i = 0; i < scalarValues.length; i++) {
+					scalarValues[i] = scalarColumns[i][row];
+				}
+				for (int i = 0; i < arrayValues.length; i++) {
+					arrayValues[i] = arrayColumns[i][row];
+				}
+				results[row] = evaluate(scalarValues, arrayValues, null, work);
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the compiled expression for every value from..to-1 of one scalar variable,
+	 * the index, with the other variables fixed. For example, A[i] * B[i] + c over the whole
+	 * of A and B. Each subexpression is computed for a chunk of indices at a time in tight,
+	 * vectorizable loops, instead of walking the tree once per index. Results are the same
+	 * as setting the index and calling evaluate for each value.
+	 *
+	 * @param indexSlot Slot of the index variable
+	 * @param from First index
+	 * @param to One past the last index
+	 * @param scalarValues Values of scalar variables, indexed by slot (the index slot is ignored)
+	 * @param arrayValues Values of array variables, indexed by slot
+	 * @param results Array of at least to-from entries; the result for index from+k is
+	 *        stored in results[k]
+	 * @throws IllegalArgumentException If the range is backwards, or results is too short
+	 */
+	public void evaluateRange(int indexSlot, int from, int to, int[] scalarValues, int[][] arrayValues,
+			float[] results)
+	throws IllegalArgumentException {
+		evaluateRange(indexSlot, from, to, scalarValues, arrayValues, null, results);
+	}
+
+	/**
+	 * Evaluates the compiled expression for a range of index values like evaluateRange, with
+	 * some arrays stored sparse.
+	 *
+	 * @see #evaluate(int[], int[][], SparseArray[])
+	 * @see #evaluateRange(int, int, int, int[], int[][], float[])
+	 */
+	public void evaluateRange(int indexSlot, int from, int to, int[] scalarValues, int[][] arrayValues,
+			SparseArray[] sparseValues, float[] results)
+	throws IllegalArgumentException {
+		if (from > to || results.length < to - from) {
+			throw new IllegalArgumentException("bad range " + from + ".." + to + " for " + results.length + " results");
+		}
+		new RangeEvaluator(this, indexSlot, scalarValues, arrayValues, sparseValues).evaluate(from, to, results);
+	}
+
+	/**
+	 * Returns the slot of a scalar variable.
+	 *
+	 * @param name Variable name
+	 * @return Slot of the variable, or -1 if the expression has no such scalar
+	 */
+	public int scalarSlot(String name) {
+		Integer slot = scalarSlots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Returns the slot of an array variable.
+	 *
+	 * @param name Array name
+	 * @return Slot of the array, or -1 if the expression has no such array
+	 */
+	public int arraySlot(String name) {
+		Integer slot = arraySlots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Returns the number of scalar slots.
+	 *
+	 * @return Number of scalar variables
+	 */
+	public int scalarCount() {
+		return scalarNames.length;
+	}
+
+	/**
+	 * Returns the number of array slots.
+	 *
+	 * @return Number of array variables
+	 */
+	public int arrayCount() {
+		return arrayNames.length;
+	}
+
+	/**
+	 * Shunting-yard parser that builds the expression tree with explicit operator and operand
+	 * stacks, so that nesting depth is limited only by heap memory. Grammar:
+	 *
+	 * <pre>
+	 * expr   := term (('+' | '-') term)*
+	 * term   := factor (('*' | '/') factor)*
+	 * factor := number | name | name '[' expr ']' | '(' expr ')'
+	 * </pre>
+	 */
+	static class Parser {
+
+		final String expr;
+		final HashMap<String,Integer> scalarSlots;
+		final HashMap<String,Integer> arraySlots;
+
+		/**
+		 * Current position in expr, and the end of the part of expr being parsed
+		 */
+		int pos;
+		int end;
+
+		/**
+		 * False once a constant that is not a whole number has been parsed
+		 */
+		boolean integral;
+
+		/**
+		 * Pending operators: an operator character, OPEN for a parenthesis, or -(slot+1) for
+		 * the opening bracket of an array subscript
+		 */
+		final IntStack operators;
+
+		/**
+		 * Subtrees built so far
+		 */
+		final Stack<Node> operands;
+
+		private static final int OPEN = '(';
+
+		Parser(String expr, HashMap<String,Integer> scalarSlots, HashMap<String,Integer> arraySlots) {
+			this(expr, 0, expr.length(), scalarSlots, arraySlots);
+		}
+
+		/**
+		 * Initializes a parser for the part start..end-1 of expr. Error positions are still
+		 * positions in the whole of expr.
+		 */
+		Parser(String expr, int start, int end, HashMap<String,Integer> scalarSlots,
+				HashMap<String,Integer> arraySlots) {
+			this.expr = expr;
+			this.scalarSlots = scalarSlots;
+			this.arraySlots = arraySlots;
+			pos = start;
+			this.end = end;
+			integral = true;
+			operators = new IntStack();
+			operands = new Stack<Node>();
+		}
+
+		/**
+		 * Moves on to the part start..end-1 of expr, so that one parser can parse many small
+		 * parts. The previous parse must have succeeded.
+		 */
+		void reset(int start, int end) {
+			pos = start;
+			this.end = end;
+		}
+
+		Node parse() {
+			boolean expectOperand = true;
+			while (true) {
+				char ch = peek();
+				if (expectOperand) {
+					if (ch == '(') {
+						pos++;
+						operators.push(OPEN);
+					} else if (parseOperand()) {
+						expectOperand = false;
+					}
+				} else if (ch == '+' || ch == '-') {
+					reduce(false);
+					operators.push(ch);
+					pos++;
+					expectOperand = true;
+				} else if (ch == '*' || ch == '/') {
+					reduce(true);
+					operators.push(ch);
+					pos++;
+					expectOperand = true;
+				} else if (ch == ')' || ch == ']') {
+					reduce(false);
+					if (operators.isEmpty()) {
+						throw error("unexpected '" + ch + "'");
+					}
+					int open = operators.peek();
+					if (open == OPEN && ch == ']') {
+						throw error("expected ')'");
+					}
+					if (open != OPEN && ch == ')') {
+						throw error("expected ']'");
+					}
+					operators.pop();
+					pos++;
+					if (open != OPEN) {
+						operands.push(new ArrayElement(-open - 1, operands.pop()));
+					}
+				} else {
+					reduce(false);
+					if (!operators.isEmpty()) {
+						throw error(operators.peek() == OPEN ? "expected ')'" : "expected ']'");
+					}
+					if (ch != 0) {
+						throw error("unexpected '" + ch + "'");
+					}
+					return operands.pop();
+				}
+			}
+		}
+
+		/**
+		 * Parses a number or variable, pushing it as an operand, or the name and opening
+		 * bracket of an array element, pushing a subscript marker.
+		 *
+		 * @return True if an operand was pushed, false for an array subscript
+		 */
+		private boolean parseOperand() {
+			char ch = peek();
+			if (ch == 0 || Expression.delims.indexOf(ch) != -1) {
+				throw error(ch == 0 ? "unexpected end of expression" : "unexpected '" + ch + "'");
+			}
+
+			/* A token is a maximal run of non-delimiter characters, same as with StringTokenizer */
+			int start = pos;
+			while (pos < end && Expression.delims.indexOf(expr.charAt(pos)) == -1) {
+				pos++;
+			}
+			String token = expr.substring(start, pos);
+			if (peek() == '[') {
+				pos++;
+				Integer slot = arraySlots.get(token);
+				if (slot == null) {
+					throw error("unknown array " + token);
+				}
+				operators.push(-slot - 1);
+				return false;
+			}
+			Integer slot = scalarSlots.get(token);
+			if (slot != null) {
+				operands.push(new Scalar(slot));
+				return true;
+			}
+			try {
+				Constant constant = Constant.parse(token);
+				integral &= constant.integral;
+				operands.push(constant);
+				return true;
+			} catch (NumberFormatException e) {
+				throw error("unknown variable " + token);
+			}
+		}
+
+		/**
+		 * Applies pending operators down to the nearest parenthesis or bracket. All operators
+		 * are left associative, so an operator of the same precedence is applied before the
+		 * next one is pushed.
+		 *
+		 * @param multiplicative True to stop at '+' and '-', false to apply every operator
+		 */
+		private void reduce(boolean multiplicative) {
+			while (!operators.isEmpty()) {
+				int op = operators.peek();
+				if (op == OPEN || op < 0 || (multiplicative && (op == '+' || op == '-'))) {
+					return;
+				}
+				operators.pop();
+				Node right = operands.pop();
+				Node left = operands.pop();
+				operands.push(new BinaryOp((char) op, left, right));
+			}
+		}
+
+		/**
+		 * Skips spaces and tabs, and returns the next character, or 0 at the end.
+		 */
+		private char peek() {
+			while (pos < end && (expr.charAt(pos) == ' ' || expr.charAt(pos) == '\t')) {
+				pos++;
+			}
+			return pos < end ? expr.charAt(pos) : 0;
+		}
+
+		private IllegalArgumentException error(String msg) {
+			return new IllegalArgumentException(msg + " at position " + pos + " in: " + expr);
+		}
+	}
+}
@@ -1,11 +1,14 @@
 package apps;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
-import java.util.NoSuchElementException;
+import java.util.HashMap;
 import java.util.Scanner;
 import java.util.StringTokenizer;
 
+import structures.IntStack;
 import structures.Stack;
 
 public class Expression {
@@ -25,15 +28,67 @@ public class Expression {
 	 */
 	ArrayList<ArraySymbol> arrays;
 
+	/**
+	 * Position of each scalar symbol in the scalars list, keyed by name
+	 */
+	HashMap<String,Integer> scalarIndex;
+
+	/**
+	 * Position of each array symbol in the arrays list, keyed by name
+	 */
+	HashMap<String,Integer> arrayIndex;
+
 	/**
 	 * Positions of opening brackets
 	 */
-	ArrayList<Integer> openingBracketIndex;
+	int[] openingBracketIndex;
 
 	/**
 	 * Positions of closing brackets
 	 */
-	ArrayList<Integer> closingBracketIndex;
+	int[] closingBracketIndex;
+
+	/**
+	 * Compiled form of the expression, built on first evaluation
+	 */
+	CompiledExpression compiled;
+
+	/**
+	 * Formula used by evaluate: the compiled tree, or generated bytecode for it
+	 */
+	Formula formula;
+
+	/**
+	 * Scalar values handed to the compiled expression, indexed by slot
+	 */
+	int[] scalarValues;
+
+	/**
+	 * Array values handed to the compiled expression, indexed by slot
+	 */
+	int[][] arrayValues;
+
+	/**
+	 * Sparse array values handed to the compiled expression, indexed by slot, null for
+	 * arrays stored dense
+	 */
+	SparseArray[] sparseValues;
+
+	/**
+	 * Work array for the compiled expression: shared subexpression values, then the
+	 * operand stack
+	 */
+	float[] workValues;
+
+	/**
+	 * Metrics that calls are recorded in, or null if metrics are off
+	 */
+	ExpressionMetrics metrics;
+
+	/**
+	 * What evaluation does with a subscript outside its array
+	 */
+	BoundsPolicy bounds;
 
 	/**
 	 * String containing all delimiters (characters other than variables and
@@ -52,13 +107,51 @@ public class Expression {
 		this.expr = expr;
 		scalars = null;
 		arrays = null;
+		scalarIndex = null;
+		arrayIndex = null;
 		openingBracketIndex = null;
 		closingBracketIndex = null;
+		compiled = null;
+		formula = null;
+		metrics = null;
+		bounds = BoundsPolicy.THROW;
+	}
+
+	/**
+	 * Turns metrics on or off. With metrics on, every call of isLegallyMatched, buildSymbols,
+	 * loadSymbolValues, compile (when it actually compiles) and evaluate is timed and
+	 * recorded. The first evaluate also compiles, so its time includes the compile time.
+	 * 
+	 * @param metrics
+	 *            Metrics to record calls in, possibly shared with other expressions, or null
+	 *            to turn metrics off
+	 */
+	public void setMetrics(ExpressionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets what evaluation does with an array subscript outside its array: throw an
+	 * ArrayIndexOutOfBoundsException (BoundsPolicy.THROW, the default), read the nearest
+	 * element (BoundsPolicy.CLAMP), or use a fixed value (BoundsPolicy.defaultValue). The
+	 * policy applies to every way of evaluating the expression, including one already
+	 * compiled or compiled to bytecode.
+	 * 
+	 * @param bounds
+	 *            Bounds policy
+	 */
+	public void setBoundsPolicy(BoundsPolicy bounds) {
+		this.bounds = bounds;
+		if (compiled != null) {
+			boolean generated = formula != compiled;
+			compiled = compiled.withBounds(bounds);
+			formula = generated ? BytecodeGenerator.generate(compiled) : compiled;
+		}
 	}
 
 	/**
 	 * Matches parentheses and square brackets. Populates the
-	 * openingBracketIndex and closingBracketIndex array lists in such a way
+	 * openingBracketIndex and closingBracketIndex arrays in such a way
 	 * that closingBracketIndex[i] is the position of the bracket in the
 	 * expression that closes an opening bracket at position
 	 * openingBracketIndex[i]. For example, if the expression is:
@@ -67,51 +160,106 @@ public class Expression {
 	 * (a + (b - c)) * (d + A[4])
 	 * </pre>
 	 * 
-	 * then the method would return true, and the array lists would be set to:
+	 * then the method would return true, and the arrays would be set to:
 	 * 
 	 * <pre>
 	 * openingBracketIndex: [0 3 10 14] closingBracketIndex: [8 7 17 16] </pe>
 	 * 
 	 * See the FAQ in project description for more details.
 	 * 
+	 * Pairs are numbered in order of their opening brackets, and only the pair
+	 * numbers are kept on the matching stack, so no objects are allocated per
+	 * bracket.
+	 * 
 	 * @return True if brackets are matched correctly, false if not
 	 */
 	public boolean isLegallyMatched() {
+		ExpressionMetrics m = metrics;
+		if (m == null) {
+			return matchBrackets();
+		}
+		long start = System.nanoTime(), allocated = m.allocatedBytes();
+		try {
+			return matchBrackets();
+		} finally {
+			m.record(ExpressionMetrics.MATCH, start, allocated);
+		}
+	}
 
-		openingBracketIndex = new ArrayList<Integer>();
-		closingBracketIndex = new ArrayList<Integer>();
-		Stack<Bracket> bracketMatch = new Stack<Bracket>();
+	private boolean matchBrackets() {
 
+		int opening = 0;
 		for (int i = 0; i < expr.length(); i++) {
-			if (expr.charAt(i) == '[' || expr.charAt(i) == '(') {
-				Bracket tmp = new Bracket(expr.charAt(i), i);
-				bracketMatch.push(tmp);
-			} else if (expr.charAt(i) == ']' || expr.charAt(i) == ')') {
-				try {
-					Bracket tmp2 = bracketMatch.pop();
-					if (tmp2.ch == '[' && expr.charAt(i) == ']') {
-						openingBracketIndex.add(tmp2.pos);
-						closingBracketIndex.add(i);
-						continue;
-					} else if (tmp2.ch == '(' && expr.charAt(i) == ')') {
-						openingBracketIndex.add(tmp2.pos);
-						closingBracketIndex.add(i);
-						continue;
-					}
-					else 
-						return false;
-				} catch (NoSuchElementException e) {
+			char ch = expr.charAt(i);
+			if (ch == '[' || ch == '(') {
+				opening++;
+			}
+		}
+		openingBracketIndex = new int[opening];
+		closingBracketIndex = new int[opening];
+		IntStack bracketMatch = new IntStack();
+		int pairs = 0;
+
+		for (int i = 0; i < expr.length(); i++) {
+			char ch = expr.charAt(i);
+			if (ch == '[' || ch == '(') {
+				openingBracketIndex[pairs] = i;
+				bracketMatch.push(pairs++);
+			} else if (ch == ']' || ch == ')') {
+				if (bracketMatch.isEmpty()) {
 					return false;
 				}
+				int pair = bracketMatch.pop();
+				char open = expr.charAt(openingBracketIndex[pair]);
+				if ((open == '[' && ch == ']') || (open == '(' && ch == ')')) {
+					closingBracketIndex[pair] = i;
+				}
+				else 
+					return false;
 			}
 		}
 
 		return bracketMatch.isEmpty();
 	}
 
+	/**
+	 * Matches parentheses and square brackets of an expression read from a Reader,
+	 * without holding the whole expression in memory. Matched pairs are handed to the
+	 * listener (in order of their closing brackets) instead of being stored.
+	 * 
+	 * @param in
+	 *            Expression input
+	 * @param listener
+	 *            Listener for matched pairs, or null if only validation is needed
+	 * @return True if brackets are matched correctly, false if not
+	 * @throws IOException
+	 *             If there is a problem reading the input
+	 */
+	public static boolean isLegallyMatched(Reader in, BracketMatcher.Listener listener)
+	throws IOException {
+		return BracketMatcher.match(in, listener);
+	}
+
+	/**
+	 * Matches parentheses and square brackets of an expression stored in a file, mapping
+	 * the file into memory a chunk at a time. Positions are byte offsets in the file.
+	 * 
+	 * @param file
+	 *            Expression file
+	 * @param listener
+	 *            Listener for matched pairs, or null if only validation is needed
+	 * @return True if brackets are matched correctly, false if not
+	 * @throws IOException
+	 *             If there is a problem reading the file
+	 */
+	public static boolean isLegallyMatched(File file, BracketMatcher.Listener listener)
+	throws IOException {
+		return BracketMatcher.match(file, listener);
+	}
+
 	private void printArrayLists() { //Checks if openingBracketIndex and closingBracketIndex populate correctly
-		for (int i = 0; i < openingBracketIndex.size(); i++) {
-			System.out.print(openingBracketIndex.get(i) + " " + closingBracketIndex.get(i));
+		for (int i = 0; i < openingBracketIndex.length; i++) {
+			System.out.print(openingBracketIndex[i] + " " + closingBracketIndex[i]);
 			System.out.println();
 		}
 	}
@@ -125,6 +273,20 @@ public class Expression {
 	 * be loaded from a file in the loadSymbolValues method.
 	 */
 	public void buildSymbols() {
+		ExpressionMetrics m = metrics;
+		if (m == null) {
+			collectSymbols();
+			return;
+		}
+		long start = System.nanoTime(), allocated = m.allocatedBytes();
+		try {
+			collectSymbols();
+		} finally {
+			m.record(ExpressionMetrics.BUILD_SYMBOLS, start, allocated);
+		}
+	}
+
+	private void collectSymbols() {
 		// COMPLETE THIS METHOD
 		
 		StringTokenizer st = new StringTokenizer(expr, delims, true);
@@ -135,21 +297,31 @@ public class Expression {
 			if (!token.equals(" ") && !token.equals("	"))
 				expression.push(token);
 		}
+		if (metrics != null) {
+			recordSymbols(expression.size());
+		}
 		
 		scalars = new ArrayList<ScalarSymbol>();
 		arrays = new ArrayList<ArraySymbol>();
+		scalarIndex = new HashMap<String,Integer>();
+		arrayIndex = new HashMap<String,Integer>();
+		compiled = null;
+		formula = null;
 		
 		while(!expression.isEmpty()) {
 			String var = expression.pop();
 			if(var.equals("[")) {
-				ArraySymbol arr = new ArraySymbol(expression.pop());
-				if (!arrays.contains(arr))
-					arrays.add(arr);
+				String name = expression.pop();
+				if (!arrayIndex.containsKey(name)) {
+					arrayIndex.put(name, arrays.size());
+					arrays.add(new ArraySymbol(name));
+				}
 			}
 			else if (isScalarVar(var)) {
-				ScalarSymbol sca = new ScalarSymbol(var);
-				if (!scalars.contains(sca))
-					scalars.add(sca);
+				if (!scalarIndex.containsKey(var)) {
+					scalarIndex.put(var, scalars.size());
+					scalars.add(new ScalarSymbol(var));
+				}
 			}
 		}
 
@@ -165,23 +337,49 @@ public class Expression {
 	 *             If there is a problem with the input
 	 */
 	public void loadSymbolValues(Scanner sc) throws IOException {
+		ExpressionMetrics m = metrics;
+		if (m == null) {
+			readSymbolValues(sc);
+			return;
+		}
+		long start = System.nanoTime(), allocated = m.allocatedBytes();
+		try {
+			readSymbolValues(sc);
+		} finally {
+			m.record(ExpressionMetrics.LOAD_VALUES, start, allocated);
+		}
+	}
+
+	private void readSymbolValues(Scanner sc) throws IOException {
 		while (sc.hasNextLine()) {
 			StringTokenizer st = new StringTokenizer(sc.nextLine().trim());
 			int numTokens = st.countTokens();
 			String sym = st.nextToken();
-			ScalarSymbol ssymbol = new ScalarSymbol(sym);
-			ArraySymbol asymbol = new ArraySymbol(sym);
-			int ssi = scalars.indexOf(ssymbol);
-			int asi = arrays.indexOf(asymbol);
-			if (ssi == -1 && asi == -1) {
+			Integer ssi = scalarIndex.get(sym);
+			Integer asi = arrayIndex.get(sym);
+			if (ssi == null && asi == null) {
 				continue;
 			}
 			int num = Integer.parseInt(st.nextToken());
 			if (numTokens == 2) { // scalar symbol
 				scalars.get(ssi).value = num;
 			} else { // array symbol
-				asymbol = arrays.get(asi);
+				ArraySymbol asymbol = arrays.get(asi);
+				int count = numTokens - 2;
+				if (SparseArray.prefer(num, count)) {
+					/* Huge and mostly empty: keep only the pairs, not num slots */
+					int[] pairs = new int[2 * count];
+					for (int k = 0; k < count; k++) {
+						StringTokenizer stt = new StringTokenizer(st.nextToken(), " (,)");
+						pairs[2 * k] = Integer.parseInt(stt.nextToken());
+						pairs[2 * k + 1] = Integer.parseInt(stt.nextToken());
+					}
+					asymbol.values = null;
+					asymbol.sparse = SparseArray.of(num, pairs, count);
+					continue;
+				}
 				asymbol.values = new int[num];
+				asymbol.sparse = null;
 				// following are (index,val) pairs
 				while (st.hasMoreTokens()) {
 					String tok = st.nextToken();
@@ -195,16 +393,351 @@ public class Expression {
 	}
 
 	/**
-	 * Evaluates the expression, using RECURSION to evaluate subexpressions and
-	 * to evaluate array subscript expressions. (Note: you can use one or more
-	 * private helper methods to implement the recursion.)
+	 * Parses the expression into a tree, ONCE, with every variable bound to the slot of its
+	 * symbol in the scalars or arrays list. Calls buildSymbols first if that has not been done.
+	 * Unlike this Expression, the compiled expression is immutable, so it can be shared by
+	 * threads that each evaluate it with their own values through CompiledExpression.bind.
+	 * 
+	 * @return Compiled expression
+	 * @throws IllegalArgumentException
+	 *             If the expression is malformed
+	 */
+	public CompiledExpression compile() {
+		if (compiled == null) {
+			if (scalars == null) {
+				buildSymbols();
+			}
+			ExpressionMetrics m = metrics;
+			long start = 0, allocated = 0;
+			if (m != null) {
+				start = System.nanoTime();
+				allocated = m.allocatedBytes();
+			}
+			/* Large expressions are parsed in parallel, split at the bracket pairs */
+			int[] opening = null, closing = null;
+			if (expr.length() >= CompiledExpression.PARALLEL_THRESHOLD && CompiledExpression.parallel() && matchBrackets()) {
+				opening = openingBracketIndex;
+				closing = closingBracketIndex;
+			}
+			compiled = CompiledExpression.compile(expr, scalars, arrays, scalarIndex, arrayIndex, opening, closing)
+					.withBounds(bounds);
+			if (m != null) {
+				m.record(ExpressionMetrics.COMPILE, start, allocated);
+			}
+			useCompiled();
+		}
+		return compiled;
+	}
+
+	private void useCompiled() {
+		
+		/*Makes evaluate use the compiled expression, with slot arrays laid out like the symbol lists*/
+		formula = compiled;
+		scalarValues = new int[scalars.size()];
+		arrayValues = new int[arrays.size()][];
+		sparseValues = new SparseArray[arrays.size()];
+		workValues = new float[compiled.workSize()];
+	}
+
+	/**
+	 * Writes the compiled expression to a program file (see ProgramFile): its postfix
+	 * program, symbol table and bounds policy, and the expression text. Compiles the
+	 * expression first if that has not been done; an optimized expression is written
+	 * optimized.
+	 * 
+	 * @param out
+	 *            Program file to write
+	 * @throws IOException
+	 *             If there is a problem writing the file
+	 */
+	public void saveCompiled(File out) throws IOException {
+		ProgramFile.write(compile(), expr, out);
+	}
+
+	/**
+	 * Loads an expression written by saveCompiled. The expression is not parsed: its symbols
+	 * come from the symbol table in the file, and evaluate runs the stored program, so the
+	 * expression is ready for loadSymbolValues and evaluate as soon as this returns.
+	 * 
+	 * @param in
+	 *            Program file
+	 * @return Expression, compiled, with the bounds policy it was saved with
+	 * @throws IOException
+	 *             If the file cannot be read, or is not a program file written by saveCompiled
+	 */
+	public static Expression loadCompiled(File in) throws IOException {
+		ProgramFile file = new ProgramFile(in);
+		if (file.source() == null) {
+			throw new IOException(in + " has no expression text");
+		}
+		Expression expression = new Expression(file.source());
+		CompiledExpression compiled = file.expression();
+		expression.scalars = new ArrayList<ScalarSymbol>();
+		expression.scalarIndex = new HashMap<String,Integer>();
+		for (int i = 0; i < compiled.scalarCount(); i++) {
+			expression.scalarIndex.put(compiled.scalarNames[i], i);
+			expression.scalars.add(new ScalarSymbol(compiled.scalarNames[i]));
+		}
+		expression.arrays = new ArrayList<ArraySymbol>();
+		expression.arrayIndex = new HashMap<String,Integer>();
+		for (int i = 0; i < compiled.arrayCount(); i++) {
+			expression.arrayIndex.put(compiled.arrayNames[i], i);
+			expression.arrays.add(new ArraySymbol(compiled.arrayNames[i]));
+		}
+		expression.bounds = compiled.bounds();
+		expression.compiled = compiled;
+		expression.useCompiled();
+		return expression;
+	}
+
+	/**
+	 * Evaluates the expression. The expression is compiled on the first call, and every
+	 * call after that walks the compiled tree with the current symbol values, without
+	 * re-tokenizing the expression.
 	 * 
 	 * @return Result of evaluation
 	 */
 	public float evaluate() {
-		// COMPLETE THIS METHOD
+		ExpressionMetrics m = metrics;
+		if (m == null) {
+			return evaluateFormula();
+		}
+		long start = System.nanoTime(), allocated = m.allocatedBytes();
+		try {
+			return evaluateFormula();
+		} finally {
+			m.record(ExpressionMetrics.EVALUATE, start, allocated);
+		}
+	}
+
+	private float evaluateFormula() {
+		compile();
+		/* Generated bytecode reads dense arrays only */
+		if (copySymbolValues() || formula == compiled) {
+			return compiled.evaluateParallel(scalarValues, arrayValues, sparseValues, workValues);
+		}
+		return formula.evaluate(scalarValues, arrayValues);
+	}
+
+	/**
+	 * Evaluates the expression for every value from..to-1 of a scalar variable, with all
+	 * other symbols at their current values. This is much faster than setting the variable
+	 * and calling evaluate once per value.
+	 * 
+	 * @param index
+	 *            Name of the scalar variable that runs over the range
+	 * @param from
+	 *            First value of the variable
+	 * @param to
+	 *            One past the last value of the variable
+	 * @return Results, the one for value from+k at position k
+	 * @throws IllegalArgumentException
+	 *             If the expression has no such scalar, or the range is backwards
+	 */
+	public float[] evaluateRange(String index, int from, int to) {
+		compile();
+		copySymbolValues();
+		int slot = compiled.scalarSlot(index);
+		if (slot == -1) {
+			throw new IllegalArgumentException("no scalar " + index);
+		}
+		float[] results = new float[Math.max(to - from, 0)];
+		compiled.evaluateRange(slot, from, to, scalarValues, arrayValues, sparseValues, results);
+		return results;
+	}
+
+	/**
+	 * Evaluates the expression in double arithmetic. Unlike evaluate, integer values and
+	 * subscripts beyond 2^24 are not rounded.
+	 *
+	 * @return Result of evaluation
+	 */
+	public double evaluateDouble() {
+		compile();
+		copySymbolValues();
+		return compiled.evaluateDouble(scalarValues, arrayValues, sparseValues);
+	}
+
+	/**
+	 * Evaluates the expression in long arithmetic, with division truncating toward zero.
+	 * Overflow wraps around.
+	 *
+	 * @return Result of evaluation
+	 * @throws IllegalStateException
+	 *             If the expression has a constant that is not a whole number
+	 * @throws ArithmeticException
+	 *             If there is a division by zero
+	 */
+	public long evaluateLong() {
+		compile();
+		copySymbolValues();
+		return compiled.evaluateLong(scalarValues, arrayValues, sparseValues);
+	}
+
+	/**
+	 * Evaluates the expression in long arithmetic, like evaluateLong, but throws
+	 * ArithmeticException as soon as an operation overflows.
+	 *
+	 * @return Result of evaluation
+	 * @throws IllegalStateException
+	 *             If the expression has a constant that is not a whole number
+	 * @throws ArithmeticException
+	 *             If an operation overflows, or there is a division by zero
+	 */
+	public long evaluateExact() {
+		compile();
+		copySymbolValues();
+		return compiled.evaluateExact(scalarValues, arrayValues, sparseValues);
+	}
+
+	/**
+	 * Creates an evaluator that caches subexpression values and, after symbol values are
+	 * changed through it, recomputes only the subexpressions that depend on them. It
+	 * starts out with the current symbol values.
+	 * 
+	 * @return Incremental evaluator for this expression
+	 */
+	public IncrementalEvaluator incrementalEvaluator() {
+		compile();
+		copySymbolValues();
+		return new IncrementalEvaluator(compiled, scalarValues, arrayValues, sparseValues);
+	}
+
+	/**
+	 * Folds constant subexpressions and merges repeated subexpressions in the compiled
+	 * expression, so evaluate computes each of them only once. If the expression was
+	 * compiled to bytecode, the code is generated again from the optimized expression.
+	 * 
+	 * @return Number of nodes removed from the expression tree
+	 */
+	public int optimize() {
+		compile();
+		boolean generated = formula != compiled;
+		compiled = compiled.optimize();
+		formula = generated ? BytecodeGenerator.generate(compiled) : compiled;
+		workValues = new float[compiled.workSize()];
+		return compiled.nodesRemoved();
+	}
+
+	private void recordSymbols(int tokens) {
+		
+		/*Counts tokens and finds the deepest bracket nesting, for metrics*/
+		int depth = 0, maxDepth = 0;
+		for (int i = 0; i < expr.length(); i++) {
+			char ch = expr.charAt(i);
+			if (ch == '(' || ch == '[') {
+				maxDepth = Math.max(maxDepth, ++depth);
+			} else if (ch == ')' || ch == ']') {
+				depth--;
+			}
+		}
+		metrics.recordSymbols(tokens, maxDepth);
+	}
+
+	private boolean copySymbolValues() {
+		
+		/*Copies the current symbol values into the slot arrays used by the compiled expression,
+		  and returns whether any array is stored sparse*/
+		for (int i = 0; i < scalarValues.length; i++) {
+			scalarValues[i] = scalars.get(i).value;
+		}
+		boolean sparse = false;
+		for (int i = 0; i < arrayValues.length; i++) {
+			arrayValues[i] = arrays.get(i).values;
+			sparseValues[i] = arrays.get(i).sparse;
+			sparse |= sparseValues[i] != null;
+		}
+		return sparse;
+	}
+
+	/**
+	 * Generates a JVM class that computes the expression directly, and makes evaluate use
+	 * it from now on. If the class cannot be generated, evaluate keeps using the compiled
+	 * tree.
+	 * 
+	 * @return Formula used by evaluate
+	 */
+	public Formula compileToBytecode() {
+		formula = BytecodeGenerator.generate(compile());
+		return formula;
+	}
+
+	/**
+	 * Loads values for symbols in the expression from a binary symbol values file (see
+	 * SymbolValuesFile). Array values are copied straight from the memory-mapped file into
+	 * the values arrays; records for symbols not in the expression are skipped unread.
+	 * 
+	 * @param valuesFile
+	 *            Binary symbol values file
+	 * @throws IOException
+	 *             If there is a problem reading the file
+	 */
+	public void loadSymbolValues(File valuesFile) throws IOException {
+		ExpressionMetrics m = metrics;
+		if (m == null) {
+			readSymbolValues(valuesFile);
+			return;
+		}
+		long start = System.nanoTime(), allocated = m.allocatedBytes();
+		try {
+			readSymbolValues(valuesFile);
+		} finally {
+			m.record(ExpressionMetrics.LOAD_VALUES, start, allocated);
+		}
+	}
+
+	private void readSymbolValues(File valuesFile) throws IOException {
+		SymbolValuesFile in = new SymbolValuesFile(valuesFile);
+		try {
+			while (in.next()) {
+				if (in.kind() == SymbolValuesFile.SCALAR) {
+					Integer ssi = scalarIndex.get(in.name());
+					if (ssi != null) {
+						scalars.get(ssi).value = in.scalarValue();
+					}
+				} else {
+					Integer asi = arrayIndex.get(in.name());
+					if (asi != null && in.kind() == SymbolValuesFile.SPARSE_ARRAY
+							&& SparseArray.prefer(in.arraySize(), in.count())) {
+						arrays.get(asi).values = null;
+						arrays.get(asi).sparse = in.sparseValues();
+					} else if (asi != null) {
+						arrays.get(asi).values = in.arrayValues();
+						arrays.get(asi).sparse = null;
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Evaluates the expression for many rows of symbol values at once. Columns are given
+	 * per symbol, in the same order as the scalars and arrays lists (see
+	 * CompiledExpression.scalarSlot and arraySlot). Large batches are evaluated in parallel.
+	 * 
+	 * @param rows
+	 *            Number of rows
+	 * @param scalarColumns
+	 *            scalarColumns[s][row] is the value of scalar s in that row
+	 * @param arrayColumns
+	 *            arrayColumns[a][row] is the values of array a in that row
+	 * @return Results of evaluation, one per row
+	 */
+	public float[] evaluateBatch(int rows, int[][] scalarColumns, int[][][] arrayColumns) {
+		return compile().evaluateBatch(rows, scalarColumns, arrayColumns);
+	}
 
-		// FOLLOWING LINE ADDED TO MAKE COMPILER HAPPY
+	/**
+	 * Evaluates the expression, using RECURSION to evaluate subexpressions and
+	 * to evaluate array subscript expressions. The expression text is rebuilt and
+	 * re-tokenized on every call; evaluate() should be used instead, this is kept
+	 * for comparison.
+	 * 
+	 * @return Result of evaluation
+	 */
+	public float evaluateText() {
 		String expression = expr;
 		expression = rebuildExpression(expression);
 		return parenEval(expression);
@@ -372,24 +905,20 @@ public class Expression {
 	private float arrayVarVal (String name, int index) {
 		
 		/*Finds the integer constant associated with array variable of name at index.*/
-		int i = 0;
-		for (; i < arrays.size(); i++) {
-			if(arrays.get(i).name.equals(name))
-					break;
+		ArraySymbol as = arrays.get(arrayIndex.get(name));
+		int length = as.length();
+		if (index >= 0 && index < length) {
+			return as.get(index);
 		}
-		return arrays.get(i).values[index];
+		int i = bounds.resolve(name, length, index);
+		return i == -1 ? bounds.value : as.get(i);
 	}
 	
 	private int findScalar(String str) {
 		
 		/*Finds the index in the scalars ArrayList associated with the given scalar variable name*/
 		
-		int i = 0;
-		for (; i < scalars.size(); i++) {
-			if (scalars.get(i).name.equals(str))
-				break;
-		}
-		return i;
+		return scalarIndex.get(str);
 	}
 	
 	
@@ -0,0 +1,185 @@
+package apps;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe, size-bounded cache of compiled expressions, keyed by expression text with
+ * its whitespace normalized. When the cache is full, the least recently used expression is
+ * evicted. A compiled expression is immutable, so one cached instance can be evaluated by
+ * any number of callers, each with its own symbol values.
+ */
+public class ExpressionCache {
+
+	/**
+	 * Compiled expressions, in order of access (least recently used first)
+	 */
+	private final LinkedHashMap<String,CompiledExpression> entries;
+
+	/**
+	 * Maximum number of cached expressions
+	 */
+	private final int capacity;
+
+	/**
+	 * Whether expressions are optimized (see CompiledExpression.optimize) before caching
+	 */
+	private final boolean optimize;
+
+	/**
+	 * Counters, guarded by this
+	 */
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Initializes an empty cache.
+	 *
+	 * @param capacity Maximum number of cached expressions
+	 * @param optimize True if expressions should be optimized before they are cached
+	 * @throws IllegalArgumentException If capacity is less than 1
+	 */
+	public ExpressionCache(int capacity, boolean optimize) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.capacity = capacity;
+		this.optimize = optimize;
+		entries = new LinkedHashMap<String,CompiledExpression>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String,CompiledExpression> eldest) {
+				if (size() > ExpressionCache.this.capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+		hits = misses = evictions = 0;
+	}
+
+	/**
+	 * Returns the compiled form of an expression, compiling it (outside the lock) only if it
+	 * is not already cached. Use scalarSlot and arraySlot on the result to lay out symbol
+	 * values for evaluation.
+	 *
+	 * @param expr Expression text
+	 * @return Compiled expression
+	 * @throws IllegalArgumentException If the brackets of the expression are not legally
+	 *         matched, or the expression is malformed
+	 */
+	public CompiledExpression get(String expr)
+	throws IllegalArgumentException {
+		String key = normalize(expr);
+		synchronized (this) {
+			CompiledExpression compiled = entries.get(key);
+			if (compiled != null) {
+				hits++;
+				return compiled;
+			}
+			misses++;
+		}
+
+		Expression expression = new Expression(key);
+		if (!expression.isLegallyMatched()) {
+			throw new IllegalArgumentException("brackets not legally matched: " + expr);
+		}
+		expression.buildSymbols();
+		CompiledExpression compiled = expression.compile();
+		if (optimize) {
+			compiled = compiled.optimize();
+		}
+
+		synchronized (this) {
+			/* Another thread may have compiled the same expression meanwhile; keep one copy */
+			CompiledExpression existing = entries.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			entries.put(key, compiled);
+			return compiled;
+		}
+	}
+
+	/**
+	 * Normalizes the whitespace of an expression: spaces and tabs next to a delimiter are
+	 * removed, and any other run of spaces and tabs becomes a single space. Two expressions
+	 * with the same normalized text evaluate the same way.
+	 *
+	 * @param expr Expression text
+	 * @return Normalized text
+	 */
+	public static String normalize(String expr) {
+		StringBuilder sb = new StringBuilder(expr.length());
+		boolean space = false;
+		for (int i = 0; i < expr.length(); i++) {
+			char ch = expr.charAt(i);
+			if (ch == ' ' || ch == '\t') {
+				space = true;
+				continue;
+			}
+			if (space && sb.length() > 0 && !isDelimiter(sb.charAt(sb.length()-1)) && !isDelimiter(ch)) {
+				sb.append(' ');
+			}
+			space = false;
+			sb.append(ch);
+		}
+		return sb.toString();
+	}
+
+	private static boolean isDelimiter(char ch) {
+		return Expression.delims.indexOf(ch) != -1;
+	}
+
+	/**
+	 * Returns the number of lookups that found a cached expression.
+	 *
+	 * @return Number of hits
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups that had to compile the expression.
+	 *
+	 * @return Number of misses
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of expressions evicted to keep the cache within its capacity.
+	 *
+	 * @return Number of evictions
+	 */
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the number of cached expressions.
+	 *
+	 * @return Number of cached expressions
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Removes all cached expressions. Counters are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		return "ExpressionCache(size=" + entries.size() + "/" + capacity + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions + ")";
+	}
+}
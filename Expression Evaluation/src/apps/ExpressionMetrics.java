@@ -0,0 +1,334 @@
+package apps;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timing and size metrics for the phases of expression evaluation, collected from any number
+ * of Expression objects (see Expression.setMetrics) and threads. For each phase it keeps the
+ * number of calls, a histogram of call durations in power-of-two nanosecond buckets, the
+ * total and longest duration, and the number of bytes allocated. For buildSymbols it also
+ * keeps the number of tokens and the bracket nesting depth, which is how deep evaluateText
+ * and the compiler recurse.
+ *
+ * An Expression without metrics only checks a null field per call, so metrics cost next to
+ * nothing when they are not used.
+ *
+ * Allocation tracking is opt-in, and what it keeps is bytes, not a count of objects: the
+ * per-thread allocated byte counter of the JVM, read at the start and end of each call. A
+ * call that forks work to other threads is charged only for what its own thread allocated.
+ * Turning tracking on enables that counter for the whole JVM
+ * (ThreadMXBean.setThreadAllocatedMemoryEnabled), not just for these metrics, and it stays
+ * enabled; on most JVMs it is already enabled by default.
+ */
+public class ExpressionMetrics {
+
+	/*
+	 * Phases
+	 */
+	public static final int MATCH = 0;
+	public static final int BUILD_SYMBOLS = 1;
+	public static final int LOAD_VALUES = 2;
+	public static final int COMPILE = 3;
+	public static final int EVALUATE = 4;
+	public static final String[] PHASES = { "isLegallyMatched", "buildSymbols", "loadSymbolValues", "compile", "evaluate" };
+
+	/**
+	 * Number of histogram buckets per phase. Bucket 0 counts calls of 0ns, and bucket b > 0
+	 * calls of 2^(b-1) to 2^b - 1 ns.
+	 */
+	public static final int BUCKETS = 64;
+
+	/*
+	 * Per-phase totals, indexed by phase
+	 */
+	private final AtomicLongArray calls;
+	private final AtomicLongArray nanos;
+	private final AtomicLongArray maxNanos;
+	private final AtomicLongArray allocated;
+
+	/**
+	 * Histograms, BUCKETS per phase
+	 */
+	private final AtomicLongArray histogram;
+
+	/**
+	 * Total tokens, largest token count and deepest nesting seen by buildSymbols
+	 */
+	private final AtomicLongArray symbols;
+	private static final int TOKENS = 0, MAX_TOKENS = 1, MAX_DEPTH = 2;
+
+	/**
+	 * Source of per-thread allocated bytes, null if allocations are not tracked
+	 */
+	private final com.sun.management.ThreadMXBean threads;
+
+	/**
+	 * Initializes empty metrics.
+	 *
+	 * @param trackAllocations True to sum the bytes allocated per phase, if the JVM supports
+	 *        it; this enables thread allocation tracking JVM-wide (see above)
+	 */
+	public ExpressionMetrics(boolean trackAllocations) {
+		calls = new AtomicLongArray(PHASES.length);
+		nanos = new AtomicLongArray(PHASES.length);
+		maxNanos = new AtomicLongArray(PHASES.length);
+		allocated = new AtomicLongArray(PHASES.length);
+		histogram = new AtomicLongArray(PHASES.length * BUCKETS);
+		symbols = new AtomicLongArray(3);
+
+		com.sun.management.ThreadMXBean bean = null;
+		ThreadMXBean platform = ManagementFactory.getThreadMXBean();
+		if (trackAllocations && platform instanceof com.sun.management.ThreadMXBean) {
+			bean = (com.sun.management.ThreadMXBean) platform;
+			if (bean.isThreadAllocatedMemorySupported()) {
+				bean.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				bean = null;
+			}
+		}
+		threads = bean;
+	}
+
+	/**
+	 * Returns the number of bytes the current thread has allocated so far, to be passed to
+	 * record at the end of a phase.
+	 *
+	 * @return Allocated bytes, or 0 if allocations are not tracked
+	 */
+	long allocatedBytes() {
+		return threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+	}
+
+	/**
+	 * Records one call of a phase that started at the given time.
+	 *
+	 * @param phase Phase
+	 * @param startNanos System.nanoTime() at the start of the call
+	 * @param startAllocated allocatedBytes() at the start of the call
+	 */
+	void record(int phase, long startNanos, long startAllocated) {
+		long elapsed = Math.max(System.nanoTime() - startNanos, 0);
+		calls.incrementAndGet(phase);
+		nanos.addAndGet(phase, elapsed);
+		raise(maxNanos, phase, elapsed);
+		histogram.incrementAndGet(phase * BUCKETS + 64 - Long.numberOfLeadingZeros(elapsed));
+		if (threads != null) {
+			allocated.addAndGet(phase, allocatedBytes() - startAllocated);
+		}
+	}
+
+	/**
+	 * Records the size of an expression seen by buildSymbols.
+	 *
+	 * @param tokens Number of tokens, not counting spaces
+	 * @param depth Deepest bracket nesting
+	 */
+	void recordSymbols(int tokens, int depth) {
+		symbols.addAndGet(TOKENS, tokens);
+		raise(symbols, MAX_TOKENS, tokens);
+		raise(symbols, MAX_DEPTH, depth);
+	}
+
+	private static void raise(AtomicLongArray array, int i, long value) {
+		long current = array.get(i);
+		while (value > current && !array.compareAndSet(i, current, value)) {
+			current = array.get(i);
+		}
+	}
+
+	/**
+	 * Returns a copy of the metrics collected so far. Updates made while the copy is being
+	 * taken may be partly included.
+	 *
+	 * @return Snapshot of the metrics
+	 */
+	public Snapshot snapshot() {
+		Snapshot s = new Snapshot();
+		for (int p = 0; p < PHASES.length; p++) {
+			s.calls[p] = calls.get(p);
+			s.nanos[p] = nanos.get(p);
+			s.maxNanos[p] = maxNanos.get(p);
+			s.allocated[p] = allocated.get(p);
+			for (int b = 0; b < BUCKETS; b++) {
+				s.histogram[p][b] = histogram.get(p * BUCKETS + b);
+			}
+		}
+		s.tokens = symbols.get(TOKENS);
+		s.maxTokens = symbols.get(MAX_TOKENS);
+		s.maxDepth = symbols.get(MAX_DEPTH);
+		s.allocationsTracked = threads != null;
+		return s;
+	}
+
+	/**
+	 * Sets all metrics back to zero.
+	 */
+	public void reset() {
+		for (int p = 0; p < PHASES.length; p++) {
+			calls.set(p, 0);
+			nanos.set(p, 0);
+			maxNanos.set(p, 0);
+			allocated.set(p, 0);
+		}
+		for (int i = 0; i < histogram.length(); i++) {
+			histogram.set(i, 0);
+		}
+		for (int i = 0; i < symbols.length(); i++) {
+			symbols.set(i, 0);
+		}
+	}
+
+	/**
+	 * Metrics at one point in time. A snapshot does not change after it is taken.
+	 */
+	public static class Snapshot {
+
+		private final long[] calls = new long[PHASES.length];
+		private final long[] nanos = new long[PHASES.length];
+		private final long[] maxNanos = new long[PHASES.length];
+		private final long[] allocated = new long[PHASES.length];
+		private final long[][] histogram = new long[PHASES.length][BUCKETS];
+		private long tokens;
+		private long maxTokens;
+		private long maxDepth;
+		private boolean allocationsTracked;
+
+		/**
+		 * Returns the number of calls of a phase.
+		 *
+		 * @param phase Phase
+		 * @return Number of calls
+		 */
+		public long calls(int phase) {
+			return calls[phase];
+		}
+
+		/**
+		 * Returns the total time spent in a phase.
+		 *
+		 * @param phase Phase
+		 * @return Total nanoseconds
+		 */
+		public long totalNanos(int phase) {
+			return nanos[phase];
+		}
+
+		/**
+		 * Returns the longest call of a phase.
+		 *
+		 * @param phase Phase
+		 * @return Nanoseconds of the longest call
+		 */
+		public long maxNanos(int phase) {
+			return maxNanos[phase];
+		}
+
+		/**
+		 * Returns the average duration of a call of a phase.
+		 *
+		 * @param phase Phase
+		 * @return Mean nanoseconds per call, 0 if there were no calls
+		 */
+		public double meanNanos(int phase) {
+			return calls[phase] == 0 ? 0 : nanos[phase] / (double) calls[phase];
+		}
+
+		/**
+		 * Returns an upper bound for a percentile of the call durations of a phase, from the
+		 * histogram. The bound is within a factor of 2 of the actual percentile.
+		 *
+		 * @param phase Phase
+		 * @param percentile Percentile, from 0 to 100
+		 * @return Upper bound in nanoseconds, 0 if there were no calls
+		 */
+		public long percentileNanos(int phase, double percentile) {
+			long total = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				total += histogram[phase][b];
+			}
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				seen += histogram[phase][b];
+				if (seen > 0 && seen >= rank) {
+					return b == 0 ? 0 : b == 63 ? Long.MAX_VALUE : (1L << b) - 1;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Returns the histogram of call durations of a phase.
+		 *
+		 * @param phase Phase
+		 * @return Copy of the BUCKETS counts
+		 */
+		public long[] histogram(int phase) {
+			return histogram[phase].clone();
+		}
+
+		/**
+		 * Returns the number of bytes allocated in a phase.
+		 *
+		 * @param phase Phase
+		 * @return Allocated bytes, 0 if allocations are not tracked
+		 */
+		public long allocatedBytes(int phase) {
+			return allocated[phase];
+		}
+
+		/**
+		 * Returns whether allocated bytes were counted.
+		 *
+		 * @return True if allocations were tracked
+		 */
+		public boolean allocationsTracked() {
+			return allocationsTracked;
+		}
+
+		/**
+		 * Returns the total number of tokens of all expressions seen by buildSymbols.
+		 *
+		 * @return Number of tokens
+		 */
+		public long tokens() {
+			return tokens;
+		}
+
+		/**
+		 * Returns the number of tokens of the largest expression seen by buildSymbols.
+		 *
+		 * @return Largest token count
+		 */
+		public long maxTokens() {
+			return maxTokens;
+		}
+
+		/**
+		 * Returns the deepest bracket nesting seen by buildSymbols.
+		 *
+		 * @return Deepest nesting
+		 */
+		public long maxDepth() {
+			return maxDepth;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%-17s %10s %12s %12s %12s %12s %14s%n", "phase", "calls", "mean ns",
+					"p50 ns", "p99 ns", "max ns", "alloc bytes"));
+			for (int p = 0; p < PHASES.length; p++) {
+				sb.append(String.format("%-17s %10d %12.1f %12d %12d %12d %14s%n", PHASES[p], calls[p], meanNanos(p),
+						percentileNanos(p, 50), percentileNanos(p, 99), maxNanos[p],
+						allocationsTracked ? Long.toString(allocated[p]) : "-"));
+			}
+			sb.append("tokens=" + tokens + ", maxTokens=" + maxTokens + ", maxDepth=" + maxDepth);
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Optimization pass over a compiled expression tree. It runs in three steps:
+ *
+ * 1) Canonicalize: rebuild the tree bottom-up, replacing every operation whose operands are
+ *    both constants with a constant, and replacing every node with the first node built with
+ *    the same contents (hash-consing). The tree becomes a DAG in which identical
+ *    subexpressions, such as the two A[i+1] in A[i+1] * A[i+1], are the same node.
+ *
+ * 2) Count references to each DAG node.
+ *
+ * 3) Rebuild a tree in which every operation or array element that is referenced more than
+ *    once is computed once into a temp, and referred to with a Temp node.
+ *
+ * Each step is a loop over the nodes in post order (see CompiledExpression.postOrder), so
+ * expressions of any nesting depth can be optimized.
+ *
+ * @see CompiledExpression#optimize()
+ */
+class ExpressionOptimizer {
+
+	/**
+	 * Canonical node for each node contents seen so far
+	 */
+	private final HashMap<CompiledExpression.Node,CompiledExpression.Node> canonical;
+
+	/**
+	 * Number of references to each canonical node in the DAG
+	 */
+	private final IdentityHashMap<CompiledExpression.Node,Integer> references;
+
+	/**
+	 * Rebuilt node for each canonical node
+	 */
+	private final IdentityHashMap<CompiledExpression.Node,CompiledExpression.Node> rebuilt;
+
+	/**
+	 * Shared subexpressions, in order of definition
+	 */
+	private final ArrayList<CompiledExpression.Node> shared;
+
+	ExpressionOptimizer() {
+		canonical = new HashMap<CompiledExpression.Node,CompiledExpression.Node>();
+		references = new IdentityHashMap<CompiledExpression.Node,Integer>();
+		rebuilt = new IdentityHashMap<CompiledExpression.Node,CompiledExpression.Node>();
+		shared = new ArrayList<CompiledExpression.Node>();
+	}
+
+	/**
+	 * Optimizes a compiled expression.
+	 *
+	 * @param expr Expression to optimize; if it was already optimized it is returned as is
+	 * @return Optimized expression
+	 */
+	CompiledExpression optimize(CompiledExpression expr) {
+		if (expr.shared.length > 0 || expr.removedNodes > 0) {
+			return expr;
+		}
+		ArrayList<CompiledExpression.Node> tree = CompiledExpression.postOrder(expr.root, false);
+		CompiledExpression.Node dag = canonicalize(tree);
+		ArrayList<CompiledExpression.Node> nodes = CompiledExpression.postOrder(dag, true);
+		countReferences(nodes);
+		CompiledExpression.Node root = rebuild(nodes);
+		return new CompiledExpression(root, shared.toArray(new CompiledExpression.Node[shared.size()]),
+				tree.size() - nodes.size(), expr.scalarNames, expr.arrayNames, expr.scalarSlots, expr.arraySlots,
+				expr.integral);
+	}
+
+	/**
+	 * Canonicalizes the nodes of a tree, given in post order, and returns the canonical root.
+	 */
+	private CompiledExpression.Node canonicalize(ArrayList<CompiledExpression.Node> tree) {
+		IdentityHashMap<CompiledExpression.Node,CompiledExpression.Node> mapped =
+				new IdentityHashMap<CompiledExpression.Node,CompiledExpression.Node>();
+		CompiledExpression.Node node = null;
+		for (CompiledExpression.Node original : tree) {
+			node = original;
+			if (node instanceof CompiledExpression.ArrayElement) {
+				CompiledExpression.ArrayElement element = (CompiledExpression.ArrayElement) node;
+				node = new CompiledExpression.ArrayElement(element.slot, mapped.get(element.subscript));
+			} else if (node instanceof CompiledExpression.BinaryOp) {
+				CompiledExpression.BinaryOp binary = (CompiledExpression.BinaryOp) node;
+				CompiledExpression.Node left = mapped.get(binary.left);
+				CompiledExpression.Node right = mapped.get(binary.right);
+				node = new CompiledExpression.BinaryOp(binary.op, left, right);
+				if (left instanceof CompiledExpression.Constant && right instanceof CompiledExpression.Constant) {
+					CompiledExpression.Constant folded = CompiledExpression.Constant.fold(binary.op,
+							(CompiledExpression.Constant) left, (CompiledExpression.Constant) right);
+					if (folded != null) {
+						node = folded;
+					}
+				}
+			}
+			CompiledExpression.Node existing = canonical.get(node);
+			if (existing != null) {
+				node = existing;
+			} else {
+				canonical.put(node, node);
+			}
+			mapped.put(original, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Counts references from parents to each node, given the DAG nodes in post order.
+	 */
+	private void countReferences(ArrayList<CompiledExpression.Node> nodes) {
+		for (CompiledExpression.Node node : nodes) {
+			if (node instanceof CompiledExpression.ArrayElement) {
+				reference(((CompiledExpression.ArrayElement) node).subscript);
+			} else if (node instanceof CompiledExpression.BinaryOp) {
+				reference(((CompiledExpression.BinaryOp) node).left);
+				reference(((CompiledExpression.BinaryOp) node).right);
+			}
+		}
+	}
+
+	private void reference(CompiledExpression.Node child) {
+		Integer count = references.get(child);
+		references.put(child, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Rebuilds the DAG nodes, given in post order, and returns the rebuilt root.
+	 */
+	private CompiledExpression.Node rebuild(ArrayList<CompiledExpression.Node> nodes) {
+		CompiledExpression.Node result = null;
+		for (CompiledExpression.Node node : nodes) {
+			result = node;
+			if (node instanceof CompiledExpression.ArrayElement) {
+				CompiledExpression.ArrayElement element = (CompiledExpression.ArrayElement) node;
+				result = new CompiledExpression.ArrayElement(element.slot, rebuilt.get(element.subscript));
+			} else if (node instanceof CompiledExpression.BinaryOp) {
+				CompiledExpression.BinaryOp binary = (CompiledExpression.BinaryOp) node;
+				result = new CompiledExpression.BinaryOp(binary.op, rebuilt.get(binary.left), rebuilt.get(binary.right));
+			}
+
+			/* Constants and scalars are as cheap to read as a temp, so only operations and array
+			 * elements are worth sharing. Children come first in post order, so their temps come
+			 * first. */
+			Integer count = references.get(node);
+			if (count != null && count > 1 && result != node) {
+				shared.add(result);
+				result = new CompiledExpression.Temp(shared.size() - 1);
+			}
+			rebuilt.put(node, result);
+		}
+		return result;
+	}
+}
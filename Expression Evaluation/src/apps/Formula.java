@@ -0,0 +1,18 @@
+package apps;
+
+/**
+ * A compiled expression that can be evaluated against slot-indexed symbol values. Scalar
+ * values are indexed by the slot of the scalar symbol, array values by the slot of the
+ * array symbol (see CompiledExpression.scalarSlot and arraySlot).
+ */
+public interface Formula {
+
+	/**
+	 * Evaluates the formula.
+	 *
+	 * @param scalarValues Values of scalar variables, indexed by slot
+	 * @param arrayValues Values of array variables, indexed by slot
+	 * @return Result of evaluation
+	 */
+	float evaluate(int[] scalarValues, int[][] arrayValues);
+}
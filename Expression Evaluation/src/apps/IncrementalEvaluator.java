@@ -0,0 +1,422 @@
+package apps;
+
+import java.util.ArrayList;
+
+import structures.IntStack;
+
+/**
+ * Evaluates a compiled expression repeatedly while only some symbol values change between
+ * evaluations. The value of every node is cached. Changing a symbol marks the nodes that
+ * read it, and their ancestors, dirty; evaluate then recomputes only the dirty nodes, so
+ * the cost of an update plus evaluation grows with the length of the affected paths rather
+ * than with the size of the expression.
+ *
+ * The nodes of the expression are numbered so that children always come before their
+ * parents, and are kept in parallel arrays. A shared subexpression of an optimized
+ * expression is a single node with several parents.
+ */
+public class IncrementalEvaluator {
+
+	/*
+	 * Node kinds
+	 */
+	private static final int CONSTANT = 0;
+	private static final int SCALAR = 1;
+	private static final int ARRAY_ELEMENT = 2;
+	private static final int BINARY_OP = 3;
+
+	/**
+	 * Kind of each node
+	 */
+	private final int[] kind;
+
+	/**
+	 * Slot for scalar and array element nodes, operator character for binary operations,
+	 * float bits for constants
+	 */
+	private final int[] arg;
+
+	/**
+	 * Left child (or subscript) and right child of each node, -1 if none
+	 */
+	private final int[] left;
+	private final int[] right;
+
+	/**
+	 * Parents of each node
+	 */
+	private final int[][] parents;
+
+	/**
+	 * Cached value of each node
+	 */
+	private final float[] value;
+
+	/**
+	 * Index read the last time each array element node was computed, -1 if the bounds
+	 * policy gave its default value instead
+	 */
+	private final int[] index;
+
+	/**
+	 * True for nodes whose cached value is out of date
+	 */
+	private final boolean[] dirty;
+
+	/**
+	 * Nodes reading each scalar slot, and each array slot
+	 */
+	private final int[][] scalarReaders;
+	private final int[][] arrayReaders;
+
+	/**
+	 * Root node
+	 */
+	private final int root;
+
+	/**
+	 * Current symbol values
+	 */
+	private final int[] scalarValues;
+	private final int[][] arrayValues;
+	private final SparseArray[] sparseValues;
+
+	/**
+	 * Compiled expression, for looking up slots by name and for its bounds policy
+	 */
+	private final CompiledExpression compiled;
+
+	/**
+	 * Nodes waiting to be visited by markDirty or recompute
+	 */
+	private final IntStack pending;
+
+	/**
+	 * Initializes the evaluator with a compiled expression and starting symbol values. Every
+	 * node starts out dirty, so the first evaluation computes the whole expression.
+	 *
+	 * @param compiled Compiled expression
+	 * @param scalarValues Values of scalar variables, indexed by slot (copied)
+	 * @param arrayValues Values of array variables, indexed by slot (the value arrays are not
+	 *        copied, and setArrayElement writes into them)
+	 */
+	public IncrementalEvaluator(CompiledExpression compiled, int[] scalarValues, int[][] arrayValues) {
+		this(compiled, scalarValues, arrayValues, null);
+	}
+
+	/**
+	 * Initializes the evaluator with a compiled expression and starting symbol values, with
+	 * some arrays stored sparse.
+	 *
+	 * @param compiled Compiled expression
+	 * @param scalarValues Values of scalar variables, indexed by slot (copied)
+	 * @param arrayValues Values of dense array variables, indexed by slot (the value arrays
+	 *        are not copied, and setArrayElement writes into them)
+	 * @param sparseValues Values of sparse array variables, indexed by slot, or null if
+	 *        there are none (likewise not copied)
+	 * @see CompiledExpression#evaluate(int[], int[][], SparseArray[])
+	 */
+	public IncrementalEvaluator(CompiledExpression compiled, int[] scalarValues, int[][] arrayValues,
+			SparseArray[] sparseValues) {
+		this.compiled = compiled;
+		this.scalarValues = scalarValues.clone();
+		this.arrayValues = arrayValues.clone();
+		this.sparseValues = sparseValues == null ? new SparseArray[arrayValues.length] : sparseValues.clone();
+
+		Builder builder = new Builder(compiled);
+		root = builder.root;
+		int n = builder.kind.size();
+		kind = new int[n];
+		arg = new int[n];
+		left = new int[n];
+		right = new int[n];
+		for (int i = 0; i < n; i++) {
+			kind[i] = builder.kind.get(i);
+			arg[i] = builder.arg.get(i);
+			left[i] = builder.left.get(i);
+			right[i] = builder.right.get(i);
+		}
+		parents = invert(n, left, right);
+		scalarReaders = readers(SCALAR, compiled.scalarCount());
+		arrayReaders = readers(ARRAY_ELEMENT, compiled.arrayCount());
+		value = new float[n];
+		index = new int[n];
+		dirty = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			dirty[i] = true;
+		}
+		pending = new IntStack();
+	}
+
+	/**
+	 * Sets the value of a scalar variable.
+	 *
+	 * @param slot Slot of the scalar
+	 * @param val New value
+	 */
+	public void setScalar(int slot, int val) {
+		if (scalarValues[slot] == val) {
+			return;
+		}
+		scalarValues[slot] = val;
+		for (int node : scalarReaders[slot]) {
+			markDirty(node);
+		}
+	}
+
+	/**
+	 * Sets the value of a scalar variable.
+	 *
+	 * @param name Name of the scalar
+	 * @param val New value
+	 * @throws IllegalArgumentException If the expression has no such scalar
+	 */
+	public void setScalar(String name, int val) {
+		int slot = compiled.scalarSlot(name);
+		if (slot == -1) {
+			throw new IllegalArgumentException("no scalar " + name);
+		}
+		setScalar(slot, val);
+	}
+
+	/**
+	 * Sets one element of an array variable. Only array element nodes whose last subscript
+	 * was this index, or whose subscript is itself out of date, are marked dirty.
+	 *
+	 * @param slot Slot of the array
+	 * @param i Index of the element
+	 * @param val New value
+	 */
+	public void setArrayElement(int slot, int i, int val) {
+		SparseArray sparse = sparseValues[slot];
+		if (sparse != null) {
+			if (sparse.get(i) == val) {
+				return;
+			}
+			sparse.set(i, val);
+		} else {
+			if (arrayValues[slot][i] == val) {
+				return;
+			}
+			arrayValues[slot][i] = val;
+		}
+		for (int node : arrayReaders[slot]) {
+			if (!dirty[node] && index[node] == i) {
+				markDirty(node);
+			}
+		}
+	}
+
+	/**
+	 * Replaces all values of an array variable.
+	 *
+	 * @param slot Slot of the array
+	 * @param values New values
+	 */
+	public void setArray(int slot, int[] values) {
+		arrayValues[slot] = values;
+		sparseValues[slot] = null;
+		for (int node : arrayReaders[slot]) {
+			markDirty(node);
+		}
+	}
+
+	/**
+	 * Replaces all values of an array variable with a sparse array.
+	 *
+	 * @param slot Slot of the array
+	 * @param values New values (not copied, and setArrayElement writes into them)
+	 */
+	public void setArray(int slot, SparseArray values) {
+		arrayValues[slot] = null;
+		sparseValues[slot] = values;
+		for (int node : arrayReaders[slot]) {
+			markDirty(node);
+		}
+	}
+
+	/**
+	 * Evaluates the expression, recomputing only nodes that are out of date.
+	 *
+	 * @return Result of evaluation
+	 */
+	public float evaluate() {
+		return recompute(root);
+	}
+
+	/**
+	 * Marks a node and all its ancestors dirty. Ancestors of a node that is already dirty are
+	 * already dirty, so the walk stops there.
+	 */
+	private void markDirty(int node) {
+		if (dirty[node]) {
+			return;
+		}
+		dirty[node] = true;
+		pending.push(node);
+		while (!pending.isEmpty()) {
+			for (int parent : parents[pending.pop()]) {
+				if (!dirty[parent]) {
+					dirty[parent] = true;
+					pending.push(parent);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the dirty nodes under a node, children first, with an explicit stack.
+	 */
+	private float recompute(int root) {
+		if (!dirty[root]) {
+			return value[root];
+		}
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			int node = pending.peek();
+			if (left[node] != -1 && dirty[left[node]]) {
+				pending.push(left[node]);
+				continue;
+			}
+			if (right[node] != -1 && dirty[right[node]]) {
+				pending.push(right[node]);
+				continue;
+			}
+			pending.pop();
+			if (!dirty[node]) {
+				continue;
+			}
+			float v;
+			switch (kind[node]) {
+				case CONSTANT:
+					v = Float.intBitsToFloat(arg[node]);
+					break;
+				case SCALAR:
+					v = scalarValues[arg[node]];
+					break;
+				case ARRAY_ELEMENT:
+					v = element(node, (int) value[left[node]]);
+					break;
+				default:
+					float l = value[left[node]];
+					float r = value[right[node]];
+					switch (arg[node]) {
+						case '+': v = l + r; break;
+						case '-': v = l - r; break;
+						case '*': v = l * r; break;
+						default: v = l / r; break;
+					}
+			}
+			value[node] = v;
+			dirty[node] = false;
+		}
+		return value[root];
+	}
+
+	/**
+	 * Reads the element of an array element node at a subscript, and records the index read
+	 * (after clamping), or -1 if the bounds policy gave its default value, so that
+	 * setArrayElement knows which nodes read which elements.
+	 */
+	private float element(int node, int subscript) {
+		SparseArray sparse = sparseValues[arg[node]];
+		if (sparse != null) {
+			int i = subscript >= 0 && subscript < sparse.length() ? subscript
+					: compiled.bounds.resolve(compiled.arrayNames[arg[node]], sparse.length(), subscript);
+			index[node] = i;
+			return i == -1 ? compiled.bounds.value : sparse.get(i);
+		}
+		int[] values = arrayValues[arg[node]];
+		if (subscript >= 0 && subscript < values.length) {
+			index[node] = subscript;
+			return values[subscript];
+		}
+		int i = compiled.bounds.resolve(compiled.arrayNames[arg[node]], values.length, subscript);
+		index[node] = i;
+		return i == -1 ? compiled.bounds.value : values[i];
+	}
+
+	private int[][] invert(int n, int[] left, int[] right) {
+		int[] count = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (left[i] != -1) count[left[i]]++;
+			if (right[i] != -1) count[right[i]]++;
+		}
+		int[][] result = new int[n][];
+		for (int i = 0; i < n; i++) {
+			result[i] = new int[count[i]];
+			count[i] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			if (left[i] != -1) result[left[i]][count[left[i]]++] = i;
+			if (right[i] != -1) result[right[i]][count[right[i]]++] = i;
+		}
+		return result;
+	}
+
+	private int[][] readers(int nodeKind, int slots) {
+		int[] count = new int[slots];
+		for (int i = 0; i < kind.length; i++) {
+			if (kind[i] == nodeKind) count[arg[i]]++;
+		}
+		int[][] result = new int[slots][];
+		for (int s = 0; s < slots; s++) {
+			result[s] = new int[count[s]];
+			count[s] = 0;
+		}
+		for (int i = 0; i < kind.length; i++) {
+			if (kind[i] == nodeKind) result[arg[i]][count[arg[i]]++] = i;
+		}
+		return result;
+	}
+
+	/**
+	 * Numbers the nodes of a compiled expression, children first, by walking each tree in
+	 * post order and keeping the numbers of finished subtrees on a stack.
+	 */
+	private static class Builder {
+		final ArrayList<Integer> kind = new ArrayList<Integer>();
+		final ArrayList<Integer> arg = new ArrayList<Integer>();
+		final ArrayList<Integer> left = new ArrayList<Integer>();
+		final ArrayList<Integer> right = new ArrayList<Integer>();
+		final int[] temps;
+		final int root;
+
+		Builder(CompiledExpression compiled) {
+			temps = new int[compiled.shared.length];
+			for (int i = 0; i < temps.length; i++) {
+				temps[i] = add(compiled.shared[i]);
+			}
+			root = add(compiled.root);
+		}
+
+		int add(CompiledExpression.Node tree) {
+			IntStack done = new IntStack();
+			for (CompiledExpression.Node node : CompiledExpression.postOrder(tree, false)) {
+				if (node instanceof CompiledExpression.Temp) {
+					done.push(temps[((CompiledExpression.Temp) node).index]);
+				} else if (node instanceof CompiledExpression.Constant) {
+					done.push(node(CONSTANT, Float.floatToRawIntBits(((CompiledExpression.Constant) node).value), -1, -1));
+				} else if (node instanceof CompiledExpression.Scalar) {
+					done.push(node(SCALAR, ((CompiledExpression.Scalar) node).slot, -1, -1));
+				} else if (node instanceof CompiledExpression.ArrayElement) {
+					int subscript = done.pop();
+					done.push(node(ARRAY_ELEMENT, ((CompiledExpression.ArrayElement) node).slot, subscript, -1));
+				} else {
+					int r = done.pop();
+					int l = done.pop();
+					done.push(node(BINARY_OP, ((CompiledExpression.BinaryOp) node).op, l, r));
+				}
+			}
+			return done.pop();
+		}
+
+		int node(int k, int a, int l, int r) {
+			kind.add(k);
+			arg.add(a);
+			left.add(l);
+			right.add(r);
+			return kind.size() - 1;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package apps;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import structures.IntStack;
+
+/**
+ * Parses a very large expression on several cores. The bracket pairs found by
+ * Expression.isLegallyMatched let the parser step over a whole bracketed group at once, so
+ * it can find the top-level operators of a part of the expression without parsing it. A
+ * part is split at its top-level '+' and '-' (or, if it has none, '*' and '/') into
+ * operands, which are parsed in parallel with fork/join and then joined left to right. A
+ * part that is one parenthesized group or array element is split inside its brackets.
+ * Parts shorter than CompiledExpression.PARALLEL_THRESHOLD characters are parsed with the
+ * sequential Parser.
+ *
+ * The tree built is exactly the one the sequential Parser builds. If the expression is
+ * malformed, it is parsed again sequentially, so that errors are reported the same way.
+ */
+class ParallelParser {
+
+	/**
+	 * Deepest nesting of split bracketed groups; below this, parts are parsed sequentially
+	 * however long they are, so that the parser does not recurse too deeply
+	 */
+	static final int MAX_SPLIT_DEPTH = 64;
+
+	private final String expr;
+	private final HashMap<String,Integer> scalarSlots;
+	private final HashMap<String,Integer> arraySlots;
+	private final int[] openingBracketIndex;
+	private final int[] closingBracketIndex;
+
+	/**
+	 * False once any part has a constant that is not a whole number; only ever written false
+	 */
+	private volatile boolean integral;
+
+	/**
+	 * Initializes a parser for an expression whose brackets are legally matched.
+	 *
+	 * @param expr Expression text
+	 * @param scalarSlots Slot of each scalar, keyed by name
+	 * @param arraySlots Slot of each array, keyed by name
+	 * @param openingBracketIndex Positions of opening brackets, in increasing order
+	 * @param closingBracketIndex Positions of the matching closing brackets
+	 */
+	ParallelParser(String expr, HashMap<String,Integer> scalarSlots, HashMap<String,Integer> arraySlots,
+			int[] openingBracketIndex, int[] closingBracketIndex) {
+		this.expr = expr;
+		this.scalarSlots = scalarSlots;
+		this.arraySlots = arraySlots;
+		this.openingBracketIndex = openingBracketIndex;
+		this.closingBracketIndex = closingBracketIndex;
+		integral = true;
+	}
+
+	/**
+	 * Parses the expression.
+	 *
+	 * @return Root of the expression tree
+	 * @throws IllegalArgumentException If the expression is malformed
+	 */
+	CompiledExpression.Node parse()
+	throws IllegalArgumentException {
+		try {
+			PartTask whole = new PartTask(0, expr.length(), 0);
+			ForkJoinPool.commonPool().invoke(whole);
+			return whole.node;
+		} catch (IllegalArgumentException e) {
+			CompiledExpression.Parser parser = new CompiledExpression.Parser(expr, scalarSlots, arraySlots);
+			CompiledExpression.Node root = parser.parse();
+			integral = parser.integral;
+			return root;
+		}
+	}
+
+	/**
+	 * Returns whether every constant parsed was a whole number that fits in a long.
+	 *
+	 * @return True if the expression can be evaluated in integer arithmetic
+	 */
+	boolean integral() {
+		return integral;
+	}
+
+	/**
+	 * Parses the part lo..hi-1 of the expression into node.
+	 */
+	private class PartTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final int lo;
+		final int hi;
+		final int depth;
+		CompiledExpression.Node node;
+
+		PartTask(int lo, int hi, int depth) {
+			this.lo = lo;
+			this.hi = hi;
+			this.depth = depth;
+		}
+
+		protected void compute() {
+			if (hi - lo < CompiledExpression.PARALLEL_THRESHOLD || depth >= MAX_SPLIT_DEPTH) {
+				node = sequential(lo, hi);
+				return;
+			}
+			IntStack operators = topLevelOperators(lo, hi, true);
+			if (operators.isEmpty()) {
+				operators = topLevelOperators(lo, hi, false);
+			}
+			if (operators.isEmpty()) {
+				node = group();
+				return;
+			}
+
+			/* IntStack pops in reverse, so the operator positions are filled from the end */
+			int[] at = new int[operators.size()];
+			for (int i = at.length - 1; i >= 0; i--) {
+				at[i] = operators.pop();
+			}
+			CompiledExpression.Node[] operands = new CompiledExpression.Node[at.length + 1];
+			new OperandsTask(lo, hi, at, operands, 0, operands.length, depth).compute();
+			node = operands[0];
+			for (int i = 0; i < at.length; i++) {
+				node = new CompiledExpression.BinaryOp(expr.charAt(at[i]), node, operands[i+1]);
+			}
+		}
+
+		/**
+		 * Parses a part with no top-level operators: a parenthesized group, an array element,
+		 * or a single token.
+		 */
+		private CompiledExpression.Node group() {
+			int first = skipSpaces(lo, hi);
+			if (first == hi) {
+				return sequential(lo, hi);
+			}
+			int last = hi - 1;
+			while (last > first && isSpace(expr.charAt(last))) {
+				last--;
+			}
+			if (expr.charAt(first) == '(' && closing(first) == last) {
+				PartTask inner = new PartTask(first + 1, last, depth + 1);
+				inner.compute();
+				return inner.node;
+			}
+			int tokenEnd = first;
+			while (tokenEnd < last && Expression.delims.indexOf(expr.charAt(tokenEnd)) == -1) {
+				tokenEnd++;
+			}
+			int open = skipSpaces(tokenEnd, last);
+			if (tokenEnd > first && expr.charAt(open) == '[' && closing(open) == last) {
+				Integer slot = arraySlots.get(expr.substring(first, tokenEnd));
+				if (slot != null) {
+					PartTask inner = new PartTask(open + 1, last, depth + 1);
+					inner.compute();
+					return new CompiledExpression.ArrayElement(slot, inner.node);
+				}
+			}
+			return sequential(lo, hi);
+		}
+	}
+
+	/**
+	 * Parses operands from..to-1 of the part lo..hi-1, splitting the range of operands in
+	 * half while it spans more than PARALLEL_THRESHOLD characters. Operand i lies between
+	 * the operators at positions at[i-1] and at[i].
+	 */
+	private class OperandsTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final int lo;
+		final int hi;
+		final int[] at;
+		final CompiledExpression.Node[] operands;
+		final int from;
+		final int to;
+		final int depth;
+
+		OperandsTask(int lo, int hi, int[] at, CompiledExpression.Node[] operands, int from, int to, int depth) {
+			this.lo = lo;
+			this.hi = hi;
+			this.at = at;
+			this.operands = operands;
+			this.from = from;
+			this.to = to;
+			this.depth = depth;
+		}
+
+		protected void compute() {
+			if (to - from > 1 && end(to - 1) - start(from) > CompiledExpression.PARALLEL_THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new OperandsTask(lo, hi, at, operands, from, mid, depth),
+						new OperandsTask(lo, hi, at, operands, mid, to, depth));
+				return;
+			}
+			/* Short operands, usually most of them, share one sequential parser */
+			CompiledExpression.Parser parser = null;
+			for (int i = from; i < to; i++) {
+				if (end(i) - start(i) >= CompiledExpression.PARALLEL_THRESHOLD) {
+					PartTask part = new PartTask(start(i), end(i), depth + 1);
+					part.compute();
+					operands[i] = part.node;
+				} else if (parser == null) {
+					parser = new CompiledExpression.Parser(expr, start(i), end(i), scalarSlots, arraySlots);
+					operands[i] = parse(parser);
+				} else {
+					parser.reset(start(i), end(i));
+					operands[i] = parse(parser);
+				}
+			}
+		}
+
+		private int start(int i) {
+			return i == 0 ? lo : at[i-1] + 1;
+		}
+
+		private int end(int i) {
+			return i < at.length ? at[i] : hi;
+		}
+	}
+
+	/**
+	 * Finds the top-level operators of the part lo..hi-1, stepping over bracketed groups.
+	 *
+	 * @param additive True for '+' and '-', false for '*' and '/'
+	 * @return Positions of the operators, in increasing order
+	 */
+	private IntStack topLevelOperators(int lo, int hi, boolean additive) {
+		IntStack found = new IntStack();
+		for (int i = lo; i < hi; i++) {
+			char ch = expr.charAt(i);
+			if (ch == '(' || ch == '[') {
+				i = closing(i);
+			} else if (additive ? (ch == '+' || ch == '-') : (ch == '*' || ch == '/')) {
+				found.push(i);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the position of the bracket that closes the one at pos.
+	 *
+	 * @throws IllegalArgumentException If there is no opening bracket at pos
+	 */
+	private int closing(int pos)
+	throws IllegalArgumentException {
+		int pair = Arrays.binarySearch(openingBracketIndex, pos);
+		if (pair < 0) {
+			throw new IllegalArgumentException("no bracket pair opening at " + pos);
+		}
+		return closingBracketIndex[pair];
+	}
+
+	private CompiledExpression.Node sequential(int lo, int hi) {
+		return parse(new CompiledExpression.Parser(expr, lo, hi, scalarSlots, arraySlots));
+	}
+
+	private CompiledExpression.Node parse(CompiledExpression.Parser parser) {
+		CompiledExpression.Node node = parser.parse();
+		if (!parser.integral && integral) {
+			integral = false;
+		}
+		return node;
+	}
+
+	private int skipSpaces(int pos, int hi) {
+		while (pos < hi && isSpace(expr.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static boolean isSpace(char ch) {
+		return ch == ' ' || ch == '\t';
+	}
+}
@@ -0,0 +1,284 @@
+package apps;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Binary format for a compiled expression: its postfix program (see CompiledExpression.Program)
+ * and symbol table, so the same expression can be shipped to other processes and loaded
+ * there without parsing it again. All numbers are big-endian, as in SymbolValuesFile:
+ *
+ * <pre>
+ * file   := MAGIC VERSION flags boundsKind boundsValue removedNodes
+ *           codeLength constantCount sharedCount scalarCount arrayCount
+ *           instruction{codeLength}
+ *           float{constantCount} double{constantCount} long{constantCount} whole{constantCount}
+ *           name{scalarCount + arrayCount}
+ *           sourceLength byte{sourceLength}
+ * whole  := one byte, 1 if the constant is a whole number that fits in a long
+ * name   := u2 length, then that many bytes of modified UTF-8 (DataOutputStream.writeUTF),
+ *           scalars then arrays, in slot order
+ * </pre>
+ *
+ * Each instruction is an int as in Program, except that equal constants are stored once,
+ * and every CONST instruction for them refers to the same one. The source is the UTF-8
+ * expression text, kept only so that a loaded Expression can still do its text-based
+ * work; it is never parsed, and sourceLength is -1 if there is none. A reader maps the
+ * whole file into memory, copies the code and constants out of it with bulk reads, and
+ * checks the code in one pass as it rebuilds the tree; the expression is then ready to
+ * evaluate.
+ */
+public class ProgramFile {
+
+	/**
+	 * First int of every program file ("EXPR")
+	 */
+	static final int MAGIC = 0x45585052;
+
+	/**
+	 * Format version
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * Flags bit: every constant is a whole number that fits in a long
+	 */
+	static final int INTEGRAL = 1;
+
+	/**
+	 * Compiled expression read from the file
+	 */
+	private final CompiledExpression expression;
+
+	/**
+	 * Expression text stored with it, or null
+	 */
+	private final String source;
+
+	/**
+	 * Reads a program file.
+	 *
+	 * @param f Program file
+	 * @throws IOException If the file cannot be read, is not a program file, or holds a
+	 *         program that is not well formed
+	 */
+	public ProgramFile(File f)
+	throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		MappedByteBuffer in;
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(f + " is too large for a program file");
+			}
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+		try {
+			if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+				throw new IOException(f + " is not a program file");
+			}
+			int flags = in.getInt();
+			BoundsPolicy bounds = bounds(in.getInt(), in.getInt());
+			int removedNodes = in.getInt();
+			int codeLength = in.getInt();
+			int constantCount = in.getInt();
+			int sharedCount = in.getInt();
+			int scalarCount = in.getInt();
+			int arrayCount = in.getInt();
+			if ((codeLength | constantCount | sharedCount | scalarCount | arrayCount) < 0
+					|| 4L * codeLength + 21L * constantCount > in.remaining()) {
+				throw new IOException(f + " is truncated");
+			}
+
+			int[] code = new int[codeLength];
+			in.asIntBuffer().get(code);
+			in.position(in.position() + 4 * codeLength);
+			float[] floats = new float[constantCount];
+			in.asFloatBuffer().get(floats);
+			in.position(in.position() + 4 * constantCount);
+			double[] doubles = new double[constantCount];
+			in.asDoubleBuffer().get(doubles);
+			in.position(in.position() + 8 * constantCount);
+			long[] longs = new long[constantCount];
+			in.asLongBuffer().get(longs);
+			in.position(in.position() + 8 * constantCount);
+			boolean[] wholes = new boolean[constantCount];
+			for (int i = 0; i < constantCount; i++) {
+				wholes[i] = in.get() != 0;
+			}
+
+			DataInputStream names = stream(in);
+			String[] scalarNames = new String[scalarCount];
+			for (int i = 0; i < scalarCount; i++) {
+				scalarNames[i] = names.readUTF();
+			}
+			String[] arrayNames = new String[arrayCount];
+			for (int i = 0; i < arrayCount; i++) {
+				arrayNames[i] = names.readUTF();
+			}
+			int sourceLength = in.getInt();
+			if (sourceLength < -1 || sourceLength > in.remaining()) {
+				throw new IOException(f + " is truncated");
+			}
+			source = sourceLength == -1 ? null : utf(in, sourceLength);
+
+			CompiledExpression.Program program = new CompiledExpression.Program(code, floats, doubles,
+					longs, wholes, 0);
+			expression = CompiledExpression.fromProgram(program, sharedCount, removedNodes, scalarNames,
+					arrayNames, (flags & INTEGRAL) != 0).withBounds(bounds);
+		} catch (BufferUnderflowException e) {
+			throw new IOException(f + " is truncated");
+		} catch (IllegalArgumentException e) {
+			throw new IOException(f + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the compiled expression read from the file.
+	 *
+	 * @return Compiled expression, with the bounds policy it was written with
+	 */
+	public CompiledExpression expression() {
+		return expression;
+	}
+
+	/**
+	 * Returns the expression text stored with the program.
+	 *
+	 * @return Expression text, or null if it was written without it
+	 */
+	public String source() {
+		return source;
+	}
+
+	/**
+	 * Writes a compiled expression to a program file.
+	 *
+	 * @param expr Compiled expression
+	 * @param source Expression text to store with it, or null
+	 * @param out Program file to write
+	 * @throws IOException If there is a problem writing the file
+	 */
+	public static void write(CompiledExpression expr, String source, File out)
+	throws IOException {
+		CompiledExpression.Program program = expr.program;
+
+		/* The program has a constant per CONST instruction; equal ones are written once */
+		int[] code = program.code.clone();
+		HashMap<CompiledExpression.Constant,Integer> numbers = new HashMap<CompiledExpression.Constant,Integer>();
+		ArrayList<CompiledExpression.Constant> distinct = new ArrayList<CompiledExpression.Constant>();
+		for (int pc = 0; pc < code.length; pc++) {
+			if ((code[pc] & 0xF) == CompiledExpression.Program.CONST) {
+				int i = code[pc] >>> 4;
+				CompiledExpression.Constant constant = new CompiledExpression.Constant(program.floats[i],
+						program.doubles[i], program.longs[i], program.wholes[i]);
+				Integer number = numbers.get(constant);
+				if (number == null) {
+					number = distinct.size();
+					numbers.put(constant, number);
+					distinct.add(constant);
+				}
+				code[pc] = CompiledExpression.Program.CONST | number << 4;
+			}
+		}
+		int constants = distinct.size();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(expr.integral ? INTEGRAL : 0);
+			dos.writeInt(expr.bounds.kind);
+			dos.writeInt(expr.bounds.value);
+			dos.writeInt(expr.removedNodes);
+			dos.writeInt(code.length);
+			dos.writeInt(constants);
+			dos.writeInt(expr.shared.length);
+			dos.writeInt(expr.scalarNames.length);
+			dos.writeInt(expr.arrayNames.length);
+			for (int ins : code) {
+				dos.writeInt(ins);
+			}
+			for (CompiledExpression.Constant constant : distinct) {
+				dos.writeFloat(constant.value);
+			}
+			for (CompiledExpression.Constant constant : distinct) {
+				dos.writeDouble(constant.doubleValue);
+			}
+			for (CompiledExpression.Constant constant : distinct) {
+				dos.writeLong(constant.longValue);
+			}
+			for (CompiledExpression.Constant constant : distinct) {
+				dos.writeByte(constant.integral ? 1 : 0);
+			}
+			for (String name : expr.scalarNames) {
+				dos.writeUTF(name);
+			}
+			for (String name : expr.arrayNames) {
+				dos.writeUTF(name);
+			}
+			if (source == null) {
+				dos.writeInt(-1);
+			} else {
+				byte[] bytes = source.getBytes("UTF-8");
+				dos.writeInt(bytes.length);
+				dos.write(bytes);
+			}
+		} finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Returns the bounds policy of a given kind and default value.
+	 */
+	private static BoundsPolicy bounds(int kind, int value)
+	throws IOException {
+		switch (kind) {
+			case BoundsPolicy.THROWS: return BoundsPolicy.THROW;
+			case BoundsPolicy.CLAMPS: return BoundsPolicy.CLAMP;
+			case BoundsPolicy.DEFAULTS: return BoundsPolicy.defaultValue(value);
+			default: throw new IOException("bad bounds policy " + kind);
+		}
+	}
+
+	/**
+	 * Returns a stream that reads a mapped file from its position, moving the position past
+	 * what it reads. Reading past the end throws BufferUnderflowException, as reading the
+	 * buffer itself does.
+	 */
+	private static DataInputStream stream(final MappedByteBuffer in) {
+		return new DataInputStream(new InputStream() {
+			public int read() {
+				return in.get() & 0xFF;
+			}
+
+			public int read(byte[] b, int off, int len) {
+				in.get(b, off, len);
+				return len;
+			}
+		});
+	}
+
+	/**
+	 * Reads n bytes of UTF-8 text.
+	 */
+	private static String utf(MappedByteBuffer in, int n)
+	throws IOException {
+		byte[] bytes = new byte[n];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
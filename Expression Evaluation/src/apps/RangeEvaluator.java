@@ -0,0 +1,369 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import structures.IntStack;
+import structures.Stack;
+
+/**
+ * Evaluates a compiled expression for every value of one scalar, the index variable, over a
+ * range, a column at a time: each node is computed for a whole chunk of indices in one tight
+ * loop over float arrays (e.g. out[k] = left[k] * right[k]) before its parent is, so the JIT
+ * can vectorize the loops. Subexpressions that do not read the index variable are computed
+ * once per call and broadcast, and A[i] with i the index variable is read straight out of A.
+ *
+ * Results are the same as calling evaluate once per index: the same float operations are
+ * done in the same order on each element.
+ *
+ * @see CompiledExpression#evaluateRange(int, int, int, int[], int[][], SparseArray[], float[])
+ */
+class RangeEvaluator {
+
+	/**
+	 * Number of indices evaluated per pass over the tree, small enough that the column
+	 * buffers stay in cache
+	 */
+	static final int CHUNK = 1024;
+
+	private final CompiledExpression expr;
+	private final int indexSlot;
+	private final int[][] arrayValues;
+	private final SparseArray[] sparseValues;
+
+	/**
+	 * True for nodes whose value depends on the index variable
+	 */
+	private final IdentityHashMap<CompiledExpression.Node,Boolean> varies;
+
+	/**
+	 * Values of nodes that do not depend on the index variable, computed once
+	 */
+	private final IdentityHashMap<CompiledExpression.Node,Float> invariant;
+
+	/**
+	 * Number of columns each node that varies needs on the stack at once to be computed
+	 */
+	private final IdentityHashMap<CompiledExpression.Node,Integer> need;
+
+	/**
+	 * For each shared subexpression that varies (null for the others), and then for the
+	 * root: the nodes to compute, in the order they are computed
+	 */
+	private final CompiledExpression.Node[][] plans;
+
+	/**
+	 * Column buffers, one per position of the column stack
+	 */
+	private float[][] buffers;
+
+	/**
+	 * Stack of columns being computed, with null for a value that does not vary, which is
+	 * then in the same position of scalars
+	 */
+	private float[][] columns;
+	private float[] scalars;
+
+	/**
+	 * Columns of shared subexpressions for the current chunk, null for invariant ones
+	 */
+	private final float[][] tempColumns;
+	private final float[] tempValues;
+
+	/**
+	 * First index of the current chunk, and its length
+	 */
+	private int base;
+	private int length;
+
+	RangeEvaluator(CompiledExpression expr, int indexSlot, int[] scalarValues, int[][] arrayValues,
+			SparseArray[] sparseValues) {
+		this.expr = expr;
+		this.indexSlot = indexSlot;
+		this.arrayValues = arrayValues;
+		this.sparseValues = sparseValues;
+		varies = new IdentityHashMap<CompiledExpression.Node,Boolean>();
+		invariant = new IdentityHashMap<CompiledExpression.Node,Float>();
+		need = new IdentityHashMap<CompiledExpression.Node,Integer>();
+		tempColumns = new float[expr.shared.length][];
+		tempValues = new float[expr.shared.length];
+		plans = new CompiledExpression.Node[expr.shared.length + 1][];
+		int depth = 1;
+		for (int i = 0; i <= expr.shared.length; i++) {
+			CompiledExpression.Node node = i < expr.shared.length ? expr.shared[i] : expr.root;
+			classify(node, scalarValues);
+			if (varies.get(node)) {
+				plans[i] = plan(node);
+				depth = Math.max(depth, need.get(node));
+				if (i < expr.shared.length) {
+					tempColumns[i] = new float[CHUNK];
+				}
+			} else if (i < expr.shared.length) {
+				tempValues[i] = invariant.get(node);
+			}
+		}
+		buffers = new float[depth][];
+		columns = new float[depth][];
+		scalars = new float[depth];
+	}
+
+	/**
+	 * Evaluates the expression for indices from..to-1, storing the result for index from+k
+	 * in results[k].
+	 */
+	void evaluate(int from, int to, float[] results) {
+		for (base = from; base < to; base += CHUNK) {
+			length = Math.min(CHUNK, to - base);
+			for (int i = 0; i < tempColumns.length; i++) {
+				if (tempColumns[i] != null) {
+					System.arraycopy(run(plans[i]), 0, tempColumns[i], 0, length);
+				}
+			}
+			float[] column;
+			if (plans[tempColumns.length] != null) {
+				column = run(plans[tempColumns.length]);
+			} else {
+				column = buffer(0);
+				float v = invariant.get(expr.root);
+				for (int k = 0; k < length; k++) {
+					column[k] = v;
+				}
+			}
+			System.arraycopy(column, 0, results, base - from, length);
+		}
+	}
+
+	/**
+	 * Computes a plan for the current chunk on the column stack, and returns the column it
+	 * leaves there. A node's column is computed into the buffer of the stack position it
+	 * ends up in; an operation overwrites its left operand's position, element by element,
+	 * which is safe as each element is read before it is written.
+	 */
+	private float[] run(CompiledExpression.Node[] plan) {
+		int n = length;
+		int sp = 0;
+		for (CompiledExpression.Node node : plan) {
+			if (!varies.get(node)) {
+				columns[sp] = null;
+				scalars[sp++] = invariant.get(node);
+			} else if (node instanceof CompiledExpression.Temp) {
+				columns[sp++] = tempColumns[((CompiledExpression.Temp) node).index];
+			} else if (node instanceof CompiledExpression.Scalar) {
+				/* Only the index variable itself varies */
+				float[] out = buffer(sp);
+				for (int k = 0; k < n; k++) {
+					out[k] = base + k;
+				}
+				columns[sp++] = out;
+			} else if (node instanceof CompiledExpression.ArrayElement) {
+				CompiledExpression.ArrayElement element = (CompiledExpression.ArrayElement) node;
+				if (isIndex(element.subscript)) {
+					columns[sp] = indexed(element.slot, buffer(sp), n);
+					sp++;
+				} else {
+					float[] subscript = columns[sp-1];
+					float[] out = buffer(sp-1);
+					for (int k = 0; k < n; k++) {
+						out[k] = expr.element(arrayValues, sparseValues, element.slot, (int) subscript[k]);
+					}
+					columns[sp-1] = out;
+				}
+			} else {
+				CompiledExpression.BinaryOp binary = (CompiledExpression.BinaryOp) node;
+				sp--;
+				int l = sp-1, r = sp;
+				if (swapped(binary)) {
+					/* The right operand was computed first, and is below the left one */
+					l = sp;
+					r = sp-1;
+				}
+				float[] out = buffer(sp-1);
+				if (columns[l] == null) {
+					binaryLeftInvariant(binary.op, scalars[l], columns[r], out, n);
+				} else if (columns[r] == null) {
+					binaryRightInvariant(binary.op, columns[l], scalars[r], out, n);
+				} else {
+					binary(binary.op, columns[l], columns[r], out, n);
+				}
+				columns[sp-1] = out;
+			}
+		}
+		return columns[0];
+	}
+
+	/**
+	 * Reads A[i] for every index i of the current chunk into out.
+	 */
+	private float[] indexed(int slot, float[] out, int n) {
+		int[] values = arrayValues[slot];
+		if (values != null && base >= 0 && base + n <= values.length) {
+
+			/* The whole chunk is in bounds, so the loop needs no checks of its own */
+			int b = base;
+			for (int k = 0; k < n; k++) {
+				out[k] = values[b + k];
+			}
+		} else {
+			for (int k = 0; k < n; k++) {
+				out[k] = expr.element(arrayValues, sparseValues, slot, base + k);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Works out, children before parents, which nodes under a root vary with the index, the
+	 * values of those that do not, and how many columns the others need. Values are computed
+	 * with the same float operations as evaluate does.
+	 */
+	private void classify(CompiledExpression.Node root, int[] scalarValues) {
+		for (CompiledExpression.Node node : CompiledExpression.postOrder(root, true)) {
+			if (varies.containsKey(node)) {
+				continue;
+			}
+			boolean result;
+			float value = 0;
+			int count = 1;
+			if (node instanceof CompiledExpression.Constant) {
+				result = false;
+				value = ((CompiledExpression.Constant) node).value;
+			} else if (node instanceof CompiledExpression.Scalar) {
+				result = isIndex(node);
+				value = scalarValues[((CompiledExpression.Scalar) node).slot];
+			} else if (node instanceof CompiledExpression.Temp) {
+				int index = ((CompiledExpression.Temp) node).index;
+				result = tempColumns[index] != null;
+				value = tempValues[index];
+			} else if (node instanceof CompiledExpression.ArrayElement) {
+				CompiledExpression.ArrayElement element = (CompiledExpression.ArrayElement) node;
+				result = varies.get(element.subscript);
+				if (result) {
+					count = isIndex(element.subscript) ? 1 : need.get(element.subscript);
+				} else {
+					value = expr.element(arrayValues, sparseValues, element.slot,
+							(int) invariant.get(element.subscript).floatValue());
+				}
+			} else {
+				CompiledExpression.BinaryOp binary = (CompiledExpression.BinaryOp) node;
+				result = varies.get(binary.left) || varies.get(binary.right);
+				if (result) {
+					int l = varies.get(binary.left) ? need.get(binary.left) : 0;
+					int r = varies.get(binary.right) ? need.get(binary.right) : 0;
+					count = l == r ? l + 1 : Math.max(l, Math.max(r, 2));
+				} else {
+					float l = invariant.get(binary.left), r = invariant.get(binary.right);
+					switch (binary.op) {
+						case '+': value = l + r; break;
+						case '-': value = l - r; break;
+						case '*': value = l * r; break;
+						default: value = l / r; break;
+					}
+				}
+			}
+			varies.put(node, result);
+			if (result) {
+				need.put(node, count);
+			} else {
+				invariant.put(node, value);
+			}
+		}
+	}
+
+	/**
+	 * Lists the nodes to compute for a root that varies, children before parents, without
+	 * recursing. Nodes that do not vary, shared subexpressions and A[i] with i the index
+	 * variable are taken as they are. Of the two operands of an operation, the one that
+	 * needs more columns is computed first (see swapped), so that the stack holds no more
+	 * columns than the root needs, a number that grows with the log of the tree's size
+	 * rather than its depth.
+	 */
+	private CompiledExpression.Node[] plan(CompiledExpression.Node root) {
+		ArrayList<CompiledExpression.Node> plan = new ArrayList<CompiledExpression.Node>();
+		Stack<CompiledExpression.Node> nodes = new Stack<CompiledExpression.Node>();
+		IntStack expanded = new IntStack();
+		nodes.push(root);
+		expanded.push(0);
+		while (!nodes.isEmpty()) {
+			CompiledExpression.Node node = nodes.pop();
+			if (expanded.pop() == 1 || !varies.get(node) || node instanceof CompiledExpression.Scalar
+					|| node instanceof CompiledExpression.Temp) {
+				plan.add(node);
+				continue;
+			}
+			if (node instanceof CompiledExpression.ArrayElement) {
+				CompiledExpression.ArrayElement element = (CompiledExpression.ArrayElement) node;
+				if (isIndex(element.subscript)) {
+					plan.add(node);
+				} else {
+					nodes.push(node);
+					expanded.push(1);
+					nodes.push(element.subscript);
+					expanded.push(0);
+				}
+				continue;
+			}
+			CompiledExpression.BinaryOp binary = (CompiledExpression.BinaryOp) node;
+			nodes.push(node);
+			expanded.push(1);
+			CompiledExpression.Node first = binary.left, second = binary.right;
+			if (swapped(binary)) {
+				first = binary.right;
+				second = binary.left;
+			}
+			nodes.push(second);
+			expanded.push(0);
+			nodes.push(first);
+			expanded.push(0);
+		}
+		return plan.toArray(new CompiledExpression.Node[plan.size()]);
+	}
+
+	/**
+	 * Returns whether the right operand of an operation that varies is computed before the
+	 * left one, because it needs more columns.
+	 */
+	private boolean swapped(CompiledExpression.BinaryOp binary) {
+		int l = varies.get(binary.left) ? need.get(binary.left) : 0;
+		int r = varies.get(binary.right) ? need.get(binary.right) : 0;
+		return r > l;
+	}
+
+	/* Each operator gets its own loop, so that every loop body is a single operation */
+	private static void binary(char op, float[] l, float[] r, float[] out, int n) {
+		switch (op) {
+			case '+': for (int k = 0; k < n; k++) out[k] = l[k] + r[k]; break;
+			case '-': for (int k = 0; k < n; k++) out[k] = l[k] - r[k]; break;
+			case '*': for (int k = 0; k < n; k++) out[k] = l[k] * r[k]; break;
+			default: for (int k = 0; k < n; k++) out[k] = l[k] / r[k]; break;
+		}
+	}
+
+	private static void binaryLeftInvariant(char op, float l, float[] r, float[] out, int n) {
+		switch (op) {
+			case '+': for (int k = 0; k < n; k++) out[k] = l + r[k]; break;
+			case '-': for (int k = 0; k < n; k++) out[k] = l - r[k]; break;
+			case '*': for (int k = 0; k < n; k++) out[k] = l * r[k]; break;
+			default: for (int k = 0; k < n; k++) out[k] = l / r[k]; break;
+		}
+	}
+
+	private static void binaryRightInvariant(char op, float[] l, float r, float[] out, int n) {
+		switch (op) {
+			case '+': for (int k = 0; k < n; k++) out[k] = l[k] + r; break;
+			case '-': for (int k = 0; k < n; k++) out[k] = l[k] - r; break;
+			case '*': for (int k = 0; k < n; k++) out[k] = l[k] * r; break;
+			default: for (int k = 0; k < n; k++) out[k] = l[k] / r; break;
+		}
+	}
+
+	private boolean isIndex(CompiledExpression.Node node) {
+		return node instanceof CompiledExpression.Scalar && ((CompiledExpression.Scalar) node).slot == indexSlot;
+	}
+
+	private float[] buffer(int level) {
+		if (buffers[level] == null) {
+			buffers[level] = new float[CHUNK];
+		}
+		return buffers[level];
+	}
+}
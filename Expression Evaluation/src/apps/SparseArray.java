@@ -0,0 +1,193 @@
+package apps;
+
+import java.util.Arrays;
+
+/**
+ * Values of an array variable that is declared very large but has only a few elements set.
+ * The indexes of the set elements are kept in increasing order, with their values in a
+ * parallel array, and an element is found by binary search. An element that is not set is
+ * 0, as in a new int[], so a sparse array reads the same as the dense array it stands for.
+ *
+ * Expression.loadSymbolValues stores an array sparse when it is at least MIN_LENGTH long
+ * and at most one in FILL_RATIO of its elements are set (see prefer).
+ */
+public class SparseArray {
+
+	/**
+	 * Shortest array that is stored sparse
+	 */
+	public static final int MIN_LENGTH = 1024;
+
+	/**
+	 * An array is stored sparse if no more than one in FILL_RATIO of its elements are set.
+	 * A set element takes 8 bytes instead of 4, so this saves at least three quarters of
+	 * the memory of the dense array.
+	 */
+	public static final int FILL_RATIO = 8;
+
+	/**
+	 * Declared length
+	 */
+	private final int length;
+
+	/**
+	 * Indexes of set elements, in increasing order, and their values, in the first size
+	 * entries
+	 */
+	private int[] indexes;
+	private int[] values;
+	private int size;
+
+	/**
+	 * Initializes a sparse array with no elements set.
+	 *
+	 * @param length Declared length
+	 */
+	public SparseArray(int length) {
+		this.length = length;
+		indexes = new int[4];
+		values = new int[4];
+		size = 0;
+	}
+
+	/**
+	 * Returns whether an array of the given length with the given number of set elements
+	 * should be stored sparse.
+	 *
+	 * @param length Declared length
+	 * @param set Number of set elements (or an upper bound for it)
+	 * @return True to store it sparse
+	 */
+	public static boolean prefer(int length, int set) {
+		return length >= MIN_LENGTH && (long) set * FILL_RATIO <= length;
+	}
+
+	/**
+	 * Builds a sparse array from (index, value) pairs in any order. If an index appears more
+	 * than once, the last value wins, as with assignments to a dense array.
+	 *
+	 * @param length Declared length
+	 * @param pairs Index of pair k at pairs[2k], its value at pairs[2k+1]
+	 * @param count Number of pairs
+	 * @return Sparse array
+	 * @throws ArrayIndexOutOfBoundsException If an index is outside 0..length-1
+	 */
+	public static SparseArray of(int length, int[] pairs, int count)
+	throws ArrayIndexOutOfBoundsException {
+
+		/* Sorting index and pair number together puts the last of equal indexes last */
+		long[] order = new long[count];
+		for (int k = 0; k < count; k++) {
+			int index = pairs[2 * k];
+			if (index < 0 || index >= length) {
+				throw new ArrayIndexOutOfBoundsException("index " + index + " out of bounds for length " + length);
+			}
+			order[k] = (long) index << 32 | k;
+		}
+		Arrays.sort(order);
+		SparseArray array = new SparseArray(length);
+		array.indexes = new int[Math.max(count, 4)];
+		array.values = new int[Math.max(count, 4)];
+		for (int k = 0; k < count; k++) {
+			int index = (int) (order[k] >>> 32);
+			if (k + 1 < count && (int) (order[k+1] >>> 32) == index) {
+				continue;
+			}
+			array.indexes[array.size] = index;
+			array.values[array.size++] = pairs[2 * (int) order[k] + 1];
+		}
+		return array;
+	}
+
+	/**
+	 * Returns the declared length.
+	 *
+	 * @return Length
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns the number of elements set.
+	 *
+	 * @return Number of set elements
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns an element.
+	 *
+	 * @param index Index, within 0..length()-1
+	 * @return Value of the element, 0 if it was never set
+	 */
+	public int get(int index) {
+		int k = Arrays.binarySearch(indexes, 0, size, index);
+		return k >= 0 ? values[k] : 0;
+	}
+
+	/**
+	 * Sets an element. Setting an element that is not yet set moves the ones after it, so
+	 * this is meant for occasional updates, not for filling the array (see of).
+	 *
+	 * @param index Index
+	 * @param value New value
+	 * @throws ArrayIndexOutOfBoundsException If index is outside 0..length()-1
+	 */
+	public void set(int index, int value)
+	throws ArrayIndexOutOfBoundsException {
+		if (index < 0 || index >= length) {
+			throw new ArrayIndexOutOfBoundsException("index " + index + " out of bounds for length " + length);
+		}
+		int k = Arrays.binarySearch(indexes, 0, size, index);
+		if (k >= 0) {
+			values[k] = value;
+			return;
+		}
+		k = -k - 1;
+		if (size == indexes.length) {
+			indexes = Arrays.copyOf(indexes, 2 * size);
+			values = Arrays.copyOf(values, 2 * size);
+		}
+		System.arraycopy(indexes, k, indexes, k + 1, size - k);
+		System.arraycopy(values, k, values, k + 1, size - k);
+		indexes[k] = index;
+		values[k] = value;
+		size++;
+	}
+
+	/**
+	 * Returns the index of the k-th set element, in increasing order of index.
+	 *
+	 * @param k Number of the set element, within 0..size()-1
+	 * @return Its index
+	 */
+	public int indexAt(int k) {
+		return indexes[k];
+	}
+
+	/**
+	 * Returns the value of the k-th set element, in increasing order of index.
+	 *
+	 * @param k Number of the set element, within 0..size()-1
+	 * @return Its value
+	 */
+	public int valueAt(int k) {
+		return values[k];
+	}
+
+	/**
+	 * Returns the dense array this sparse array stands for.
+	 *
+	 * @return New array of length() values
+	 */
+	public int[] toArray() {
+		int[] dense = new int[length];
+		for (int k = 0; k < size; k++) {
+			dense[indexes[k]] = values[k];
+		}
+		return dense;
+	}
+}
@@ -0,0 +1,412 @@
+package apps;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Scanner;
+import java.util.StringTokenizer;
+
+/**
+ * Binary format for symbol values, and a reader for it that maps the file into memory. The
+ * format holds the same information as the text format read by Expression.loadSymbolValues,
+ * with all numbers stored as big-endian 4-byte ints:
+ *
+ * <pre>
+ * file   := MAGIC VERSION record*
+ * record := SCALAR name value
+ *         | DENSE_ARRAY name size value{size}
+ *         | SPARSE_ARRAY name size count (index value){count}
+ * name   := as written by DataOutputStream.writeUTF
+ * </pre>
+ *
+ * Each record starts with a one-byte kind. Array values are copied from the mapped file
+ * into int[] arrays with bulk reads, without parsing any text.
+ */
+public class SymbolValuesFile {
+
+	/**
+	 * First int of every symbol values file ("EXSV")
+	 */
+	static final int MAGIC = 0x45585356;
+
+	/**
+	 * Format version
+	 */
+	static final int VERSION = 1;
+
+	/*
+	 * Record kinds
+	 */
+	public static final int SCALAR = 0;
+	public static final int DENSE_ARRAY = 1;
+	public static final int SPARSE_ARRAY = 2;
+
+	/**
+	 * Largest part of the file mapped at a time
+	 */
+	static final int WINDOW = 64 * 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+
+	/**
+	 * Mapped part of the file, starting at file position windowStart
+	 */
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	/**
+	 * File position of the next unread byte
+	 */
+	private long pos;
+
+	/**
+	 * Current record: kind, name, declared array size, and file position of its body
+	 */
+	private int kind;
+	private String name;
+	private int arraySize;
+	private long bodyStart;
+
+	/**
+	 * Opens a symbol values file for reading.
+	 *
+	 * @param f Binary symbol values file
+	 * @throws IOException If the file cannot be read, or is not a symbol values file
+	 */
+	public SymbolValuesFile(File f)
+	throws IOException {
+		file = new RandomAccessFile(f, "r");
+		channel = file.getChannel();
+		size = channel.size();
+		window = null;
+		windowStart = 0;
+		pos = 0;
+		kind = -1;
+		bodyStart = -1;
+		if (size < 8 || readInt() != MAGIC || readInt() != VERSION) {
+			close();
+			throw new IOException(f + " is not a symbol values file");
+		}
+	}
+
+	/**
+	 * Moves to the next record, skipping whatever is left of the current one.
+	 *
+	 * @return False if there are no more records
+	 * @throws IOException If the file is truncated
+	 */
+	public boolean next()
+	throws IOException {
+		if (bodyStart != -1) {
+			pos = bodyStart + bodyLength();
+		}
+		if (pos >= size) {
+			return false;
+		}
+		ensure(3);
+		kind = window.get((int) (pos - windowStart));
+		pos++;
+		if (kind != SCALAR && kind != DENSE_ARRAY && kind != SPARSE_ARRAY) {
+			throw new IOException("bad record kind " + kind + " at " + (pos - 1));
+		}
+		/* Names are in modified UTF-8, so they are decoded by readUTF, length prefix and all */
+		int len = readShort();
+		ensure(len);
+		byte[] bytes = new byte[2 + len];
+		bytes[0] = (byte) (len >>> 8);
+		bytes[1] = (byte) len;
+		window.position((int) (pos - windowStart));
+		window.get(bytes, 2, len);
+		pos += len;
+		name = new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+		arraySize = kind == SCALAR ? 0 : readInt();
+		bodyStart = pos;
+		return true;
+	}
+
+	/**
+	 * Returns the kind of the current record.
+	 *
+	 * @return SCALAR, DENSE_ARRAY or SPARSE_ARRAY
+	 */
+	public int kind() {
+		return kind;
+	}
+
+	/**
+	 * Returns the symbol name of the current record.
+	 *
+	 * @return Symbol name
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Reads the value of the current record, which must be a scalar.
+	 *
+	 * @return Scalar value
+	 * @throws IOException If the file is truncated
+	 */
+	public int scalarValue()
+	throws IOException {
+		pos = bodyStart;
+		return readInt();
+	}
+
+	/**
+	 * Returns the declared size of the current record, which must be an array.
+	 *
+	 * @return Array size
+	 */
+	public int arraySize() {
+		return arraySize;
+	}
+
+	/**
+	 * Returns the number of values stored in the current record, which must be an array:
+	 * its size if it is dense, or its number of (index,value) pairs if it is sparse.
+	 *
+	 * @return Number of values stored
+	 * @throws IOException If the file is truncated
+	 */
+	public int count()
+	throws IOException {
+		if (kind == DENSE_ARRAY) {
+			return arraySize;
+		}
+		pos = bodyStart;
+		return readInt();
+	}
+
+	/**
+	 * Reads the values of the current record, which must be a SPARSE_ARRAY, into a sparse
+	 * array, without allocating the declared size.
+	 *
+	 * @return Sparse array values
+	 * @throws IOException If the file is truncated
+	 */
+	public SparseArray sparseValues()
+	throws IOException {
+		pos = bodyStart;
+		int count = readInt();
+		int[] pairs = new int[2 * count];
+		readInts(pairs, 0, 2 * count);
+		return SparseArray.of(arraySize, pairs, count);
+	}
+
+	/**
+	 * Reads the values of the current record, which must be an array.
+	 *
+	 * @return Array values, of the declared size
+	 * @throws IOException If the file is truncated
+	 */
+	public int[] arrayValues()
+	throws IOException {
+		pos = bodyStart;
+		int[] values = new int[arraySize];
+		if (kind == DENSE_ARRAY) {
+			readInts(values, 0, arraySize);
+		} else {
+			int count = readInt();
+			int[] pairs = new int[2 * Math.min(count, WINDOW / 8)];
+			for (int done = 0; done < count; ) {
+				int n = Math.min(count - done, pairs.length / 2);
+				readInts(pairs, 0, 2 * n);
+				for (int i = 0; i < 2 * n; i += 2) {
+					values[pairs[i]] = pairs[i+1];
+				}
+				done += n;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException If there is a problem closing the file
+	 */
+	public void close()
+	throws IOException {
+		window = null;
+		file.close();
+	}
+
+	/**
+	 * Length of the current record's body, not counting the array size already read.
+	 */
+	private long bodyLength()
+	throws IOException {
+		if (kind == SCALAR) {
+			return 4;
+		}
+		if (kind == DENSE_ARRAY) {
+			return 4L * arraySize;
+		}
+		pos = bodyStart;
+		return 4 + 8L * readInt();
+	}
+
+	/**
+	 * Maps the window so that it covers at least n bytes from pos.
+	 */
+	private void ensure(int n)
+	throws IOException {
+		if (pos + n > size) {
+			throw new IOException("symbol values file is truncated");
+		}
+		if (window != null && pos >= windowStart && pos + n <= windowStart + window.limit()) {
+			return;
+		}
+		windowStart = pos;
+		long len = Math.min(Math.max(n, WINDOW), size - pos);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, len);
+	}
+
+	private int readShort()
+	throws IOException {
+		ensure(2);
+		int value = window.getShort((int) (pos - windowStart)) & 0xFFFF;
+		pos += 2;
+		return value;
+	}
+
+	private int readInt()
+	throws IOException {
+		ensure(4);
+		int value = window.getInt((int) (pos - windowStart));
+		pos += 4;
+		return value;
+	}
+
+	/**
+	 * Bulk-reads n ints into dst, one window at a time.
+	 */
+	private void readInts(int[] dst, int off, int n)
+	throws IOException {
+		while (n > 0) {
+			int chunk = Math.min(n, WINDOW / 4);
+			ensure(4 * chunk);
+			window.position((int) (pos - windowStart));
+			window.asIntBuffer().get(dst, off, chunk);
+			pos += 4L * chunk;
+			off += chunk;
+			n -= chunk;
+		}
+	}
+
+	/**
+	 * Converts symbol values from the text format read by Expression.loadSymbolValues into
+	 * the binary format. As in the text loader, a line with two tokens is a scalar, and any
+	 * other line an array followed by (index,val) pairs. Arrays with values for more than
+	 * half their slots are written dense, others as (index,value) pairs.
+	 *
+	 * @param sc Scanner for text symbol values
+	 * @param out Binary file to write
+	 * @throws IOException If there is a problem writing the file
+	 */
+	public static void convert(Scanner sc, File out)
+	throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			while (sc.hasNextLine()) {
+				String line = sc.nextLine().trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				StringTokenizer st = new StringTokenizer(line);
+				int numTokens = st.countTokens();
+				String sym = st.nextToken();
+				int num = Integer.parseInt(st.nextToken());
+				if (numTokens == 2) {
+					dos.writeByte(SCALAR);
+					dos.writeUTF(sym);
+					dos.writeInt(num);
+					continue;
+				}
+				/* Pairs are kept in order (so later pairs still win) until there are too many
+				 * of them for the sparse form to pay off; only then is the dense array made,
+				 * so a huge array with few values never is */
+				int[] values = null;
+				int[] pairs = new int[16];
+				int count = 0;
+				while (st.hasMoreTokens()) {
+					StringTokenizer stt = new StringTokenizer(st.nextToken(), " (,)");
+					int index = Integer.parseInt(stt.nextToken());
+					int val = Integer.parseInt(stt.nextToken());
+					if (values != null) {
+						values[index] = val;
+						continue;
+					}
+					if (count == num / 2) {
+						values = new int[num];
+						for (int i = 0; i < 2 * count; i += 2) {
+							values[pairs[i]] = pairs[i+1];
+						}
+						values[index] = val;
+						count++;
+						continue;
+					}
+					if (index < 0 || index >= num) {
+						throw new ArrayIndexOutOfBoundsException("index " + index + " out of bounds for " + sym
+								+ "[" + num + "]");
+					}
+					if (2 * count == pairs.length) {
+						int[] bigger = new int[2 * pairs.length];
+						System.arraycopy(pairs, 0, bigger, 0, pairs.length);
+						pairs = bigger;
+					}
+					pairs[2 * count] = index;
+					pairs[2 * count + 1] = val;
+					count++;
+				}
+				if (count > num / 2) {
+					dos.writeByte(DENSE_ARRAY);
+					dos.writeUTF(sym);
+					dos.writeInt(num);
+					for (int i = 0; i < num; i++) {
+						dos.writeInt(values[i]);
+					}
+				} else {
+					dos.writeByte(SPARSE_ARRAY);
+					dos.writeUTF(sym);
+					dos.writeInt(num);
+					dos.writeInt(count);
+					for (int i = 0; i < 2 * count; i++) {
+						dos.writeInt(pairs[i]);
+					}
+				}
+			}
+		} finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Converts a text symbol values file to a binary one.
+	 *
+	 * @param args Text file name, binary file name
+	 */
+	public static void main(String[] args)
+	throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: java apps.SymbolValuesFile <text values file> <binary values file>");
+			return;
+		}
+		Scanner sc = new Scanner(new File(args[0]));
+		convert(sc, new File(args[1]));
+		sc.close();
+	}
+}
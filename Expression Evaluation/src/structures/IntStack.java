@@ -0,0 +1,104 @@
+package structures;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A stack of primitive ints, backed by an array that grows as needed. Unlike
+ * Stack&lt;Integer&gt;, pushing a value never boxes it.
+ *
+ * @author ru-nb-cs111
+ *
+ */
+public class IntStack {
+
+	/**
+	 * Initial capacity of the items array.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Items in the stack; items[size-1] is top of stack.
+	 */
+	private int[] items;
+
+	/**
+	 * Number of items in the stack.
+	 */
+	private int size;
+
+	/**
+	 * Initializes stack to empty.
+	 */
+	public IntStack() {
+		items = new int[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Pushes a new item on top of stack.
+	 *
+	 * @param item Item to push.
+	 */
+	public void push(int item) {
+		if (size == items.length) {
+			int[] bigger = new int[2 * items.length];
+			System.arraycopy(items, 0, bigger, 0, size);
+			items = bigger;
+		}
+		items[size++] = item;
+	}
+
+	/**
+	 * Pops item at top of stack and returns it.
+	 *
+	 * @return Popped item.
+	 * @throws NoSuchElementException If stack is empty.
+	 */
+	public int pop()
+	throws NoSuchElementException {
+		if (size == 0) {
+			throw new NoSuchElementException("stack is empty!");
+		}
+		return items[--size];
+	}
+
+	/**
+	 * Returns item on top of stack, without popping it.
+	 *
+	 * @return Item at top of stack.
+	 * @throws NoSuchElementException If stack is empty.
+	 */
+	public int peek()
+	throws NoSuchElementException {
+		if (size == 0) {
+			throw new NoSuchElementException("stack is empty!");
+		}
+		return items[size-1];
+	}
+
+	/**
+	 * Tells if stack is empty.
+	 *
+	 * @return True if stack is empty, false if not.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns number of items in stack.
+	 *
+	 * @return Number of items in stack.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the stack.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+}
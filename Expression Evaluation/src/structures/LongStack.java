@@ -0,0 +1,104 @@
+package structures;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A stack of primitive longs, backed by an array that grows as needed. Unlike
+ * Stack&lt;Long&gt;, pushing a value never boxes it.
+ *
+ * @author ru-nb-cs111
+ *
+ */
+public class LongStack {
+
+	/**
+	 * Initial capacity of the items array.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Items in the stack; items[size-1] is top of stack.
+	 */
+	private long[] items;
+
+	/**
+	 * Number of items in the stack.
+	 */
+	private int size;
+
+	/**
+	 * Initializes stack to empty.
+	 */
+	public LongStack() {
+		items = new long[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Pushes a new item on top of stack.
+	 *
+	 * @param item Item to push.
+	 */
+	public void push(long item) {
+		if (size == items.length) {
+			long[] bigger = new long[2 * items.length];
+			System.arraycopy(items, 0, bigger, 0, size);
+			items = bigger;
+		}
+		items[size++] = item;
+	}
+
+	/**
+	 * Pops item at top of stack and returns it.
+	 *
+	 * @return Popped item.
+	 * @throws NoSuchElementException If stack is empty.
+	 */
+	public long pop()
+	throws NoSuchElementException {
+		if (size == 0) {
+			throw new NoSuchElementException("stack is empty!");
+		}
+		return items[--size];
+	}
+
+	/**
+	 * Returns item on top of stack, without popping it.
+	 *
+	 * @return Item at top of stack.
+	 * @throws NoSuchElementException If stack is empty.
+	 */
+	public long peek()
+	throws NoSuchElementException {
+		if (size == 0) {
+			throw new NoSuchElementException("stack is empty!");
+		}
+		return items[size-1];
+	}
+
+	/**
+	 * Tells if stack is empty.
+	 *
+	 * @return True if stack is empty, false if not.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns number of items in stack.
+	 *
+	 * @return Number of items in stack.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the stack.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+}
@@ -2,20 +2,9 @@ package structures;
 
 import java.util.NoSuchElementException;
 
-class Node<T> {
-	public T data;
-	public Node<T> next;
-	public Node(T data, Node<T> next) {
-		this.data = data;
-		this.next = next;
-	}
-	public String toString() {
-		return data.toString();
-	}
-}
-
 /**
- * A generic stack implementation.
+ * A generic stack implementation, backed by an array that grows as needed. Pushing an
+ * item does not allocate anything unless the array is full.
  * 
  * @author ru-nb-cs111
  *
@@ -24,9 +13,14 @@ class Node<T> {
 public class Stack<T> {
 
 	/**
-	 * Front of linked list is top of stack.
+	 * Initial capacity of the items array.
 	 */
-	private Node<T> front;
+	private static final int INITIAL_CAPACITY = 16;
+	
+	/**
+	 * Items in the stack; items[size-1] is top of stack.
+	 */
+	private Object[] items;
 	
 	/**
 	 * Number of items in the stack.
@@ -37,7 +31,7 @@ public class Stack<T> {
 	 * Initializes stack to empty.
 	 */
 	public Stack() {
-		front = null;
+		items = new Object[INITIAL_CAPACITY];
 		size = 0;
 	}
 	
@@ -47,8 +41,12 @@ public class Stack<T> {
 	 * @param item Item to push.
 	 */
 	public void push(T item) {
-		front = new Node<T>(item, front);
-		size++;
+		if (size == items.length) {
+			Object[] bigger = new Object[2 * items.length];
+			System.arraycopy(items, 0, bigger, 0, size);
+			items = bigger;
+		}
+		items[size++] = item;
 	}
 	
 	/**
@@ -57,14 +55,14 @@ public class Stack<T> {
 	 * @return Popped item.
 	 * @throws NoSuchElementException If stack is empty.
 	 */
+	@SuppressWarnings("unchecked")
 	public T pop() 
 	throws NoSuchElementException {
-		if (front == null) {
+		if (size == 0) {
 			throw new NoSuchElementException("stack is empty!");
 		}
-		T data = front.data;
-		front = front.next;
-		size--;
+		T data = (T) items[--size];
+		items[size] = null;
 		return data;
 	}
 	
@@ -74,12 +72,13 @@ public class Stack<T> {
 	 * @return Item at top of stack.
 	 * @throws NoSuchElementException If stack is empty.
 	 */
+	@SuppressWarnings("unchecked")
 	public T peek() 
 	throws NoSuchElementException {
-		if (front == null) {
+		if (size == 0) {
 			throw new NoSuchElementException("stack is empty!");
 		}
-		return front.data;
+		return (T) items[size-1];
 	}
 	
 	/**
@@ -104,8 +103,10 @@ public class Stack<T> {
 	 * Empties the stack.
 	 */
 	public void clear() {
+		for (int i = 0; i < size; i++) {
+			items[i] = null;
+		}
 		size = 0;
-		front = null;
 	}
   
 }
@@ -0,0 +1,252 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that BracketMatcher, fed a chunk at a time from a Reader or a mapped file, finds
+ * the same pairs as isLegallyMatched, with brackets on both sides of chunk boundaries.
+ */
+public class BracketMatcherTest {
+
+	@TempDir
+	File dir;
+
+	private final Random random = new Random(6);
+
+	/**
+	 * Listener that keeps the pairs it is given, in the order it is given them.
+	 */
+	static class Pairs implements BracketMatcher.Listener {
+		final ArrayList<long[]> pairs = new ArrayList<long[]>();
+		public void matched(long open, long close) {
+			pairs.add(new long[] { open, close });
+		}
+	}
+
+	@Test
+	public void readerChunks() throws IOException {
+		int chunk = BracketMatcher.CHUNK_CHARS;
+		long[] boundaries = { chunk - 2, chunk - 1, chunk, chunk + 1, 2 * chunk - 1, 2 * chunk, 3 * chunk - 1 };
+		for (int t = 0; t < 60; t++) {
+			String brackets = brackets(1 + random.nextInt(200));
+			if (t % 3 == 1) {
+				brackets = damage(brackets);
+			}
+			long[] positions = positions(brackets.length(), 3 * chunk, boundaries);
+			char[] text = new char[3 * chunk];
+			Arrays.fill(text, 'a');
+			for (int k = 0; k < positions.length; k++) {
+				text[(int) positions[k]] = brackets.charAt(k);
+			}
+
+			/* Whole chunks, and reads that stop short of them */
+			Pairs whole = new Pairs(), partial = new Pairs();
+			boolean legal = Expression.isLegallyMatched(new StringReader(new String(text)), whole);
+			assertEquals(legal, Expression.isLegallyMatched(trickle(new String(text)), partial), brackets);
+			assertExpected(brackets, positions, legal, whole.pairs);
+			assertExpected(brackets, positions, legal, partial.pairs);
+		}
+	}
+
+	@Test
+	public void mappedWindows() throws IOException {
+		long window = BracketMatcher.CHUNK_BYTES;
+		long[] boundaries = { 0, window - 1, window, window + 1, window + 99 };
+		File f = new File(dir, "expression.txt");
+		for (int t = 0; t < 4; t++) {
+			String brackets = t == 0 ? "(([]))" : brackets(5 + random.nextInt(60));
+			if (t == 3) {
+				brackets = damage(brackets);
+			}
+			long[] positions = positions(brackets.length(), window + 100, boundaries);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(0);
+				raf.setLength(window + 100);
+				for (int k = 0; k < positions.length; k++) {
+					raf.seek(positions[k]);
+					raf.write(brackets.charAt(k));
+				}
+			} finally {
+				raf.close();
+			}
+			Pairs pairs = new Pairs();
+			boolean legal = Expression.isLegallyMatched(f, pairs);
+			assertExpected(brackets, positions, legal, pairs.pairs);
+		}
+	}
+
+	@Test
+	public void bytePositions() throws IOException {
+		/* Positions in a file are in bytes, and e-acute takes two in UTF-8 */
+		File f = new File(dir, "utf8.txt");
+		FileOutputStream out = new FileOutputStream(f);
+		out.write("é(a[é])".getBytes("UTF-8"));
+		out.close();
+		Pairs pairs = new Pairs();
+		assertTrue(Expression.isLegallyMatched(f, pairs));
+		assertEquals("[[4, 7], [2, 8]]", toString(pairs.pairs));
+	}
+
+	@Test
+	public void mismatchesStopTheMatch() throws IOException {
+		String[] texts = { ")", "(]", "[)", "((", "a]b", "([)]", "(a)[b]]" };
+		for (String text : texts) {
+			Expression expr = new Expression(text);
+			assertFalse(expr.isLegallyMatched(), text);
+			assertFalse(Expression.isLegallyMatched(new StringReader(text), null), text);
+		}
+		BracketMatcher matcher = new BracketMatcher(null);
+		assertFalse(matcher.feed("a)(".toCharArray(), 0, 3));
+		assertFalse(matcher.feed("()".toCharArray(), 0, 2));
+		assertFalse(matcher.finish());
+	}
+
+	@Test
+	public void pairsInOpeningOrder() {
+		Expression expr = new Expression("(a+(b-c))*(d+A[4])");
+		assertTrue(expr.isLegallyMatched());
+		assertEquals("[0, 3, 10, 14]", Arrays.toString(expr.openingBracketIndex));
+		assertEquals("[8, 7, 17, 16]", Arrays.toString(expr.closingBracketIndex));
+
+		for (int t = 0; t < 200; t++) {
+			String brackets = brackets(1 + random.nextInt(100));
+			expr = new Expression(brackets);
+			assertTrue(expr.isLegallyMatched(), brackets);
+			int[] opening = expr.openingBracketIndex, closing = expr.closingBracketIndex;
+			assertEquals(brackets.length() / 2, opening.length);
+			for (int i = 0; i < opening.length; i++) {
+				assertTrue(i == 0 || opening[i - 1] < opening[i], brackets);
+				assertTrue(opening[i] < closing[i], brackets);
+				assertEquals(brackets.charAt(opening[i]) == '(' ? ')' : ']', brackets.charAt(closing[i]), brackets);
+				/* Pairs nest: the next pair opened is inside this one or after it */
+				if (i + 1 < opening.length && opening[i + 1] < closing[i]) {
+					assertTrue(closing[i + 1] < closing[i], brackets);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the pairs a matcher reported against isLegallyMatched on the brackets alone,
+	 * with the k-th bracket at positions[k]. Pairs come in order of their closing brackets.
+	 */
+	private static void assertExpected(String brackets, long[] positions, boolean legal, ArrayList<long[]> reported) {
+		Expression expr = new Expression(brackets);
+		assertEquals(expr.isLegallyMatched(), legal, brackets);
+		if (!legal) {
+			return;
+		}
+		ArrayList<long[]> expected = new ArrayList<long[]>();
+		for (int i = 0; i < expr.openingBracketIndex.length; i++) {
+			expected.add(new long[] { positions[expr.openingBracketIndex[i]], positions[expr.closingBracketIndex[i]] });
+		}
+		for (int i = 1; i < reported.size(); i++) {
+			assertTrue(reported.get(i - 1)[1] < reported.get(i)[1], brackets);
+		}
+		ArrayList<long[]> sorted = new ArrayList<long[]>(reported);
+		Collections.sort(sorted, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		assertEquals(toString(expected), toString(sorted), brackets);
+	}
+
+	private static String toString(ArrayList<long[]> pairs) {
+		StringBuilder sb = new StringBuilder("[");
+		for (long[] pair : pairs) {
+			sb.append(sb.length() > 1 ? ", " : "").append(Arrays.toString(pair));
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Returns n sorted distinct positions below length, including as many of the given
+	 * boundary positions as there are places for.
+	 */
+	private long[] positions(int n, long length, long[] boundaries) {
+		TreeSet<Long> set = new TreeSet<Long>();
+		for (int k = 0; k < boundaries.length && set.size() < n; k++) {
+			set.add(boundaries[k]);
+		}
+		while (set.size() < n) {
+			set.add((long) (random.nextDouble() * length));
+		}
+		long[] positions = new long[n];
+		int k = 0;
+		for (long position : set) {
+			positions[k++] = position;
+		}
+		return positions;
+	}
+
+	/**
+	 * Returns a legally matched sequence of about n brackets.
+	 */
+	private String brackets(int n) {
+		StringBuilder sb = new StringBuilder();
+		StringBuilder open = new StringBuilder();
+		for (int k = 0; k < n; k++) {
+			if (open.length() > 0 && random.nextBoolean()) {
+				sb.append(open.charAt(open.length() - 1) == '(' ? ')' : ']');
+				open.setLength(open.length() - 1);
+			} else {
+				char ch = random.nextBoolean() ? '(' : '[';
+				sb.append(ch);
+				open.append(ch);
+			}
+		}
+		while (open.length() > 0) {
+			sb.append(open.charAt(open.length() - 1) == '(' ? ')' : ']');
+			open.setLength(open.length() - 1);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Flips the kind of one bracket, or drops one.
+	 */
+	private String damage(String brackets) {
+		int k = random.nextInt(brackets.length());
+		if (random.nextBoolean()) {
+			return brackets.substring(0, k) + brackets.substring(k + 1);
+		}
+		char ch = brackets.charAt(k);
+		char flipped = ch == '(' ? '[' : ch == '[' ? '(' : ch == ')' ? ']' : ')';
+		return brackets.substring(0, k) + flipped + brackets.substring(k + 1);
+	}
+
+	/**
+	 * Returns a Reader that hands out text a few thousand chars at a time.
+	 */
+	private Reader trickle(String text) {
+		final StringReader in = new StringReader(text);
+		return new Reader() {
+			public int read(char[] buf, int off, int len) throws IOException {
+				return in.read(buf, off, Math.min(len, 1 + random.nextInt(5000)));
+			}
+			public void close() {
+				in.close();
+			}
+		};
+	}
+}
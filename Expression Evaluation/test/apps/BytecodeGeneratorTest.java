@@ -0,0 +1,118 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that generated bytecode evaluates the same as the compiled expression it was
+ * generated from, exceptions included, and that it falls back to the compiled expression
+ * only when the code does not fit in one method.
+ */
+public class BytecodeGeneratorTest {
+
+	static final BoundsPolicy[] POLICIES = { BoundsPolicy.THROW, BoundsPolicy.CLAMP, BoundsPolicy.defaultValue(-7) };
+
+	/**
+	 * Length of the arrays; i runs from a little below 0 to a little past the end
+	 */
+	static final int LENGTH = 20;
+
+	private final Random random = new Random(5);
+
+	@Test
+	public void randomExpressionsMatchInterpreter() {
+		for (int t = 0; t < 600; t++) {
+			String text = generate(1 + t % 9);
+			Expression expr = new Expression(text);
+			expr.buildSymbols();
+			CompiledExpression compiled = expr.compile();
+			if (t % 2 == 0) {
+				compiled = compiled.optimize();
+			}
+			compiled = compiled.withBounds(POLICIES[t % 3]);
+			Formula formula = BytecodeGenerator.generate(compiled);
+			assertFalse(formula == compiled, "no bytecode for " + text);
+
+			int[][] arrayValues = new int[expr.arrays.size()][LENGTH];
+			for (int[] values : arrayValues) {
+				for (int j = 0; j < LENGTH; j++) {
+					values[j] = (j * 7) % 23 - 3;
+				}
+			}
+			int[] scalarValues = new int[expr.scalars.size()];
+			for (int i = -3; i < LENGTH + 5; i++) {
+				for (int s = 0; s < scalarValues.length; s++) {
+					scalarValues[s] = expr.scalars.get(s).name.equals("i") ? i : 4;
+				}
+				assertEquals(evaluate(compiled, scalarValues, arrayValues),
+						evaluate(formula, scalarValues, arrayValues),
+						text + " [" + compiled.bounds() + "] at i = " + i);
+			}
+		}
+	}
+
+	@Test
+	public void deepNesting() {
+		Formula formula = BytecodeGenerator.generate(nested(5000).compile());
+		assertFalse(formula instanceof CompiledExpression, "no bytecode for 5000 levels");
+		assertEquals(4f, formula.evaluate(new int[] { 3 }, new int[][] { { 1, 2, 3, 4 } }));
+	}
+
+	@Test
+	public void tooLargeFallsBack() {
+		CompiledExpression compiled = nested(100000).compile();
+		assertSame(compiled, BytecodeGenerator.generate(compiled));
+	}
+
+	/**
+	 * Returns (i-(i-...(i-A[i])...)) nested the given number of levels, with symbols built.
+	 */
+	private static Expression nested(int depth) {
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < depth; k++) {
+			sb.append("(i-");
+		}
+		sb.append("A[i]");
+		for (int k = 0; k < depth; k++) {
+			sb.append(')');
+		}
+		Expression expr = new Expression(sb.toString());
+		expr.buildSymbols();
+		return expr;
+	}
+
+	/**
+	 * Returns the bits of the result of a formula, or the exception it threw.
+	 */
+	private static String evaluate(Formula formula, int[] scalarValues, int[][] arrayValues) {
+		try {
+			return Integer.toHexString(Float.floatToIntBits(formula.evaluate(scalarValues, arrayValues)));
+		} catch (RuntimeException e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+
+	/**
+	 * Generates an expression up to depth operators deep over i, c, constants, A[i] and
+	 * B[subexpression].
+	 */
+	private String generate(int depth) {
+		if (depth == 0 || random.nextInt(4) == 0) {
+			switch (random.nextInt(6)) {
+				case 0: return "i";
+				case 1: return "c";
+				case 2: return String.valueOf(random.nextInt(9) + 1);
+				case 3: return "A[i]";
+				case 4: return "B[" + (depth > 0 ? generate(depth - 1) : "i") + "]";
+				default: return "2.5";
+			}
+		}
+		char op = "+-*/".charAt(random.nextInt(4));
+		return "(" + generate(depth - 1) + op + generate(depth - 1) + ")";
+	}
+}
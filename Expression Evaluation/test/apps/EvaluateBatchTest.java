@@ -0,0 +1,124 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that evaluateBatch gives, row for row, what evaluate gives, for batches evaluated
+ * on the calling thread and batches split with fork/join.
+ */
+public class EvaluateBatchTest {
+
+	static final int THRESHOLD = CompiledExpression.BATCH_SPLIT_THRESHOLD;
+
+	/**
+	 * Batch sizes on both sides of the split threshold
+	 */
+	static final int[] ROWS = { 0, 1, THRESHOLD - 1, THRESHOLD, THRESHOLD + 1, 2 * THRESHOLD + 3, 5 * THRESHOLD + 17 };
+
+	/**
+	 * Length of the arrays in every row
+	 */
+	static final int LENGTH = 12;
+
+	private final Random random = new Random(2);
+
+	@Test
+	public void randomBatchesMatchEvaluate() {
+		for (int t = 0; t < 40; t++) {
+			String text = t == 0 ? "a*A[b] - B[A[b]]/(a+1)" : generate(1 + t % 6);
+			Expression expr = new Expression(text);
+			expr.buildSymbols();
+			CompiledExpression compiled = expr.compile().withBounds(t % 3 == 0 ? BoundsPolicy.CLAMP : BoundsPolicy.defaultValue(-2));
+			if (t % 2 == 0) {
+				compiled = compiled.optimize();
+			}
+			int rows = ROWS[t % ROWS.length];
+			int[][] scalarColumns = new int[compiled.scalarCount()][rows];
+			int[][][] arrayColumns = new int[compiled.arrayCount()][rows][];
+			fill(scalarColumns, arrayColumns, rows);
+
+			float[] results = compiled.evaluateBatch(rows, scalarColumns, arrayColumns);
+			assertEquals(rows, results.length);
+			int[] scalarValues = new int[scalarColumns.length];
+			int[][] arrayValues = new int[arrayColumns.length][];
+			for (int row = 0; row < rows; row++) {
+				for (int s = 0; s < scalarValues.length; s++) {
+					scalarValues[s] = scalarColumns[s][row];
+				}
+				for (int a = 0; a < arrayValues.length; a++) {
+					arrayValues[a] = arrayColumns[a][row];
+				}
+				assertEquals(compiled.evaluate(scalarValues, arrayValues), results[row], text + " in row " + row + " of " + rows);
+			}
+		}
+	}
+
+	@Test
+	public void failuresInSplitBatches() {
+		Expression expr = new Expression("A[b] + a");
+		expr.buildSymbols();
+		int rows = 3 * THRESHOLD;
+		int[][] scalarColumns = new int[2][rows];
+		int[][][] arrayColumns = new int[1][rows][];
+		fill(scalarColumns, arrayColumns, rows);
+		int b = expr.compile().scalarSlot("b");
+		for (int row = 0; row < rows; row++) {
+			scalarColumns[b][row] = row % LENGTH;
+		}
+		scalarColumns[b][rows - 5] = LENGTH;
+		try {
+			expr.evaluateBatch(rows, scalarColumns, arrayColumns);
+			fail("subscript out of bounds in row " + (rows - 5));
+		} catch (ArrayIndexOutOfBoundsException e) {
+			assertTrue(e.getMessage().contains("out of bounds for A[" + LENGTH + "]"), e.getMessage());
+		}
+
+		/* Columns must cover every row */
+		try {
+			expr.evaluateBatch(rows + 1, scalarColumns, arrayColumns);
+			fail("short columns accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private void fill(int[][] scalarColumns, int[][][] arrayColumns, int rows) {
+		for (int[] column : scalarColumns) {
+			for (int row = 0; row < rows; row++) {
+				column[row] = random.nextInt(LENGTH + 4) - 2;
+			}
+		}
+		for (int[][] column : arrayColumns) {
+			for (int row = 0; row < rows; row++) {
+				column[row] = new int[LENGTH];
+				for (int k = 0; k < LENGTH; k++) {
+					column[row][k] = random.nextInt(2 * LENGTH) - LENGTH / 2;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generates an expression up to depth operators deep over a, b, constants, and elements
+	 * of A and B.
+	 */
+	private String generate(int depth) {
+		if (depth == 0 || random.nextInt(4) == 0) {
+			switch (random.nextInt(5)) {
+				case 0: return "a";
+				case 1: return "b";
+				case 2: return String.valueOf(random.nextInt(9) + 1);
+				case 3: return "A[" + (random.nextBoolean() ? "b" : "a+1") + "]";
+				default: return "B[" + generate(depth / 2) + "]";
+			}
+		}
+		char op = "+-*/".charAt(random.nextInt(4));
+		String left = generate(depth - 1), right = generate(depth - 1);
+		return random.nextBoolean() ? "(" + left + op + right + ")" : left + " " + op + " " + right;
+	}
+}
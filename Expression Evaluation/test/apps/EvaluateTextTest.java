@@ -0,0 +1,98 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that evaluate, which walks the compiled expression, gives exactly what
+ * evaluateText, which re-tokenizes the text, gives.
+ */
+public class EvaluateTextTest {
+
+	/**
+	 * Expressions on the values of etest1.txt to etest3.txt
+	 */
+	static final String[][] ETESTS = {
+		{ "(a + A[a*2-b])", "etest1.txt" },
+		{ "a + (b+A[B[2]])*d - A[a+1]", "etest1.txt" },
+		{ "d*a/b + B[2]*A[4] - 12", "etest1.txt" },
+		{ "varx + vary*arrayA[3]", "etest2.txt" },
+		{ "(varx + vary*arrayA[8]) / arrayA[9] * 3", "etest2.txt" },
+		{ "a*a[2]", "etest3.txt" },
+		{ "a[a] + a*(a+a[a-1])", "etest3.txt" },
+	};
+
+	static final String VALUES = "i 2\nj 5\nk 7\nA 10 (0,3) (1,1) (2,4) (3,1) (4,5) (5,9) (6,2) (7,6) (8,5) (9,3)"
+			+ "\nB 8 (0,2) (1,7) (2,1) (3,8) (4,2) (5,8) (6,1) (7,8)";
+
+	private final Random random = new Random(1);
+
+	/**
+	 * Value of the expression generate returned last
+	 */
+	private double value;
+
+	@Test
+	public void etests() throws IOException {
+		for (String[] etest : ETESTS) {
+			Expression expr = new Expression(etest[0]);
+			expr.buildSymbols();
+			Scanner sc = new Scanner(new File(etest[1]));
+			expr.loadSymbolValues(sc);
+			sc.close();
+			assertEquals(expr.evaluateText(), expr.evaluate(), etest[0]);
+		}
+	}
+
+	@Test
+	public void randomExpressions() throws IOException {
+		for (int t = 0; t < 1000; t++) {
+			String text = generate(1 + t % 6);
+			Expression expr = new Expression(text);
+			expr.buildSymbols();
+			expr.loadSymbolValues(new Scanner(VALUES));
+			float expected = expr.evaluateText();
+			assertEquals(expected, expr.evaluate(), text);
+			if (t % 2 == 0) {
+				expr.optimize();
+				assertEquals(expected, expr.evaluate(), text + " optimized");
+			}
+		}
+	}
+
+	/**
+	 * Generates an expression up to depth operators deep whose every subexpression is
+	 * non-negative and not below 0.01, as evaluateText needs: it rebuilds the text with
+	 * the values of subexpressions, and would read the sign of a negative value, or of the
+	 * exponent of a tiny one (9.8E-4), as a subtraction. Array subscripts stay within
+	 * bounds. The value of the expression is left in value.
+	 */
+	private String generate(int depth) {
+		if (depth == 0 || random.nextInt(4) == 0) {
+			int n = random.nextInt(9) + 1;
+			String[] leaves = { "i", "j", "k", String.valueOf(n), "A[j]", "A[B[i]]", "B[k]", "B[A[i]-1]" };
+			double[] values = { 2, 5, 7, n, 9, 1, 8, 8 };
+			int leaf = random.nextInt(leaves.length);
+			value = values[leaf];
+			return leaves[leaf];
+		}
+		String left = generate(depth - 1);
+		double l = value;
+		String right = generate(depth - 1);
+		char op = "+*/".charAt(random.nextInt(3));
+		double v = op == '+' ? l + value : op == '*' ? l * value : l / value;
+		if (v < 0.01) {
+			op = '+';
+			v = l + value;
+		}
+		value = v;
+		/* Every operation is bracketed, so each part is computed as its value was above */
+		return random.nextBoolean() ? "(" + left + op + right + ")" : "( " + left + " " + op + "\t" + right + " )";
+	}
+}
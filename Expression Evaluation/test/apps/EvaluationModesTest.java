@@ -0,0 +1,141 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks what sets the double, long and exact evaluation modes apart: overflow, the one
+ * division that overflows, constants that are not whole numbers, and large subscripts.
+ */
+public class EvaluationModesTest {
+
+	@Test
+	public void overflowThrowsOnlyWhenExact() {
+		/* Operands come from a scalar, so nothing is folded even when optimized */
+		String[] texts = { "4611686018427387904*(a+1)", "9223372036854775807 + a", "(0-9223372036854775807) - a - a",
+				"a*4294967296*4294967296" };
+		long[] wrapped = { Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, 0 };
+		for (int t = 0; t < texts.length; t++) {
+			for (int optimize = 0; optimize < 2; optimize++) {
+				CompiledExpression compiled = compile(texts[t], optimize == 1);
+				int[] scalars = { 1 };
+				assertEquals(wrapped[t], compiled.evaluateLong(scalars, new int[0][]), texts[t]);
+				try {
+					compiled.evaluateExact(scalars, new int[0][]);
+					fail(texts[t] + " did not overflow");
+				} catch (ArithmeticException e) {
+					assertEquals("long overflow", e.getMessage(), texts[t]);
+				}
+				/* One short of overflowing, both agree */
+				scalars[0] = 0;
+				assertEquals(compiled.evaluateLong(scalars, new int[0][]), compiled.evaluateExact(scalars, new int[0][]), texts[t]);
+			}
+		}
+	}
+
+	@Test
+	public void minValueDividedByMinusOne() {
+		for (int optimize = 0; optimize < 2; optimize++) {
+			CompiledExpression compiled = compile("4611686018427387904*(a-2) / (a-1)", optimize == 1);
+			int[] scalars = { 0 };
+			assertEquals(Long.MIN_VALUE, compiled.evaluateLong(scalars, new int[0][]));
+			try {
+				compiled.evaluateExact(scalars, new int[0][]);
+				fail("MIN_VALUE / -1 did not overflow");
+			} catch (ArithmeticException e) {
+				assertEquals("long overflow", e.getMessage());
+			}
+			assertEquals(0x1p63, compiled.evaluateDouble(scalars, new int[0][]));
+
+			/* The same division folded from constants is left for evaluation to overflow */
+			compiled = compile("(0-9223372036854775807-1) / (0-1) + a", optimize == 1);
+			assertEquals(Long.MIN_VALUE, compiled.evaluateLong(scalars, new int[0][]));
+			try {
+				compiled.evaluateExact(scalars, new int[0][]);
+				fail("folded MIN_VALUE / -1 did not overflow");
+			} catch (ArithmeticException e) {
+			}
+
+			/* Division by zero throws in both integer modes */
+			compiled = compile("7 / a", optimize == 1);
+			for (int exact = 0; exact < 2; exact++) {
+				try {
+					if (exact == 1) {
+						compiled.evaluateExact(scalars, new int[0][]);
+					} else {
+						compiled.evaluateLong(scalars, new int[0][]);
+					}
+					fail("7 / 0");
+				} catch (ArithmeticException e) {
+				}
+			}
+			assertEquals(Double.POSITIVE_INFINITY, compiled.evaluateDouble(scalars, new int[0][]));
+		}
+	}
+
+	@Test
+	public void fractionalConstantsNeedFloatingPoint() {
+		String[] texts = { "a + 2.5", "a * 0.5 * 4", "9223372036854775808 - a", "1e30 * a" };
+		for (String text : texts) {
+			for (int optimize = 0; optimize < 2; optimize++) {
+				CompiledExpression compiled = compile(text, optimize == 1);
+				int[] scalars = { 3 };
+				for (int exact = 0; exact < 2; exact++) {
+					try {
+						if (exact == 1) {
+							compiled.evaluateExact(scalars, new int[0][]);
+						} else {
+							compiled.evaluateLong(scalars, new int[0][]);
+						}
+						fail(text + " evaluated in integers");
+					} catch (IllegalStateException e) {
+					}
+				}
+				compiled.evaluateDouble(scalars, new int[0][]);
+			}
+		}
+		/* Whole numbers written with a point or an exponent are fine */
+		CompiledExpression compiled = compile("a * 2.0 + 1e3", false);
+		assertEquals(1006, compiled.evaluateLong(new int[] { 3 }, new int[0][]));
+		assertEquals(1006, compiled.evaluateExact(new int[] { 3 }, new int[0][]));
+	}
+
+	@Test
+	public void largeSubscripts() {
+		/* Past 2^24 a float no longer holds every int, so float evaluation reads the wrong element */
+		int length = (1 << 24) + 8;
+		SparseArray s = SparseArray.of(length, new int[] { 1 << 24, 5, (1 << 24) + 1, 7, (1 << 24) + 3, 11 }, 3);
+		CompiledExpression compiled = compile("S[a+1] + S[a+3]", false);
+		int[] scalars = { 1 << 24 };
+		int[][] arrays = new int[1][];
+		SparseArray[] sparse = { s };
+		assertEquals(18, compiled.evaluateDouble(scalars, arrays, sparse));
+		assertEquals(18, compiled.evaluateLong(scalars, arrays, sparse));
+		assertEquals(18, compiled.evaluateExact(scalars, arrays, sparse));
+		assertTrue(compiled.evaluate(scalars, arrays, sparse) != 18, "float subscripts were exact");
+
+		/* A subscript that only fits in a long is out of bounds, not narrowed onto an element */
+		compiled = compile("S[4294967296 + a]", false);
+		scalars[0] = 1 << 24;
+		for (int mode = 0; mode < 2; mode++) {
+			try {
+				long value = mode == 0 ? compiled.evaluateLong(scalars, arrays, sparse)
+						: compiled.evaluateExact(scalars, arrays, sparse);
+				fail("S[4294967296 + 2^24] read " + value);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				assertTrue(e.getMessage().contains("index 4311744512 out of bounds"), e.getMessage());
+			}
+		}
+		assertEquals(-3, compiled.withBounds(BoundsPolicy.defaultValue(-3)).evaluateLong(scalars, arrays, sparse));
+	}
+
+	private static CompiledExpression compile(String text, boolean optimize) {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		CompiledExpression compiled = expr.compile();
+		return optimize ? compiled.optimize() : compiled;
+	}
+}
@@ -0,0 +1,177 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the keys, eviction order and counters of ExpressionCache, and that threads
+ * compiling the same expression at once all end up with the one cached copy.
+ */
+public class ExpressionCacheTest {
+
+	/**
+	 * Pieces random expression texts are made of, whitespace and all
+	 */
+	static final String[] PIECES = { "a", "b", "ab", "1", "2", "12", "A", "[", "]", "(", ")", "+", "*", "/", " ", "\t", "  " };
+
+	private final Random random = new Random(9);
+
+	@Test
+	public void normalize() {
+		assertEquals("a+b*A[i]", ExpressionCache.normalize("  a + b\t*  A [ i ] "));
+		assertEquals("a b", ExpressionCache.normalize("a \t b"));
+		assertEquals("ab", ExpressionCache.normalize("ab"));
+		assertEquals("", ExpressionCache.normalize(" \t "));
+	}
+
+	@Test
+	public void distinctExpressionsNeverCollide() {
+		/* Texts normalize the same exactly when they have the same tokens */
+		HashMap<String,List<String>> tokensOf = new HashMap<String,List<String>>();
+		HashMap<List<String>,String> keyOf = new HashMap<List<String>,String>();
+		for (int t = 0; t < 20000; t++) {
+			StringBuilder sb = new StringBuilder();
+			for (int k = 1 + random.nextInt(8); k > 0; k--) {
+				sb.append(PIECES[random.nextInt(PIECES.length)]);
+			}
+			String text = sb.toString(), key = ExpressionCache.normalize(text);
+			List<String> tokens = tokens(text);
+			List<String> seen = tokensOf.get(key);
+			if (seen != null) {
+				assertEquals(seen, tokens, "collision on \"" + key + "\"");
+			} else {
+				tokensOf.put(key, tokens);
+			}
+			String seenKey = keyOf.get(tokens);
+			if (seenKey != null) {
+				assertEquals(seenKey, key, "same tokens as \"" + text + "\"");
+			} else {
+				keyOf.put(tokens, key);
+			}
+		}
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() {
+		ExpressionCache cache = new ExpressionCache(3, false);
+		CompiledExpression a = cache.get("a+1"), b = cache.get("b+1");
+		cache.get("c+1");
+		assertCounts(cache, 0, 3, 0, 3);
+
+		/* Whitespace does not matter, and a hit makes a+1 the most recently used */
+		assertSame(a, cache.get(" a + 1 "));
+		assertCounts(cache, 1, 3, 0, 3);
+
+		cache.get("d+1");
+		assertCounts(cache, 1, 4, 1, 3);
+		assertSame(a, cache.get("a+1"));
+		assertCounts(cache, 2, 4, 1, 3);
+
+		/* b+1 was the one evicted, and is compiled again; that evicts c+1 */
+		assertNotSame(b, cache.get("b+1"));
+		assertCounts(cache, 2, 5, 2, 3);
+		cache.get("d+1");
+		cache.get("c+1");
+		assertCounts(cache, 3, 6, 3, 3);
+		assertEquals("ExpressionCache(size=3/3, hits=3, misses=6, evictions=3)", cache.toString());
+
+		cache.clear();
+		assertCounts(cache, 3, 6, 3, 0);
+	}
+
+	@Test
+	public void optimizedAndRejectedExpressions() {
+		ExpressionCache cache = new ExpressionCache(2, true);
+		assertEquals(4, cache.get("A[i+1] * A[i+1]").nodesRemoved());
+		try {
+			cache.get("A[i+1) * 2");
+			fail("mismatched brackets were compiled");
+		} catch (IllegalArgumentException e) {
+		}
+		assertCounts(cache, 0, 2, 0, 1);
+		try {
+			new ExpressionCache(0, false);
+			fail("capacity 0 accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void concurrentMissesKeepOneCopy() throws Exception {
+		/* Long enough that compiling takes far longer than the lookup, so several threads
+		 * miss at once and all but the first to finish find its copy when they come back */
+		StringBuilder sb = new StringBuilder("a");
+		for (int k = 0; k < 5000; k++) {
+			sb.append(" + A[a*").append(k % 10).append("] * (a - ").append(k).append(")");
+		}
+		final String text = sb.toString();
+		final int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			boolean raced = false;
+			for (int round = 0; round < 20 && !raced; round++) {
+				final ExpressionCache cache = new ExpressionCache(4, round % 2 == 0);
+				final CyclicBarrier start = new CyclicBarrier(threads);
+				ArrayList<Future<CompiledExpression>> results = new ArrayList<Future<CompiledExpression>>();
+				for (int t = 0; t < threads; t++) {
+					results.add(pool.submit(new Callable<CompiledExpression>() {
+						public CompiledExpression call() throws Exception {
+							start.await();
+							return cache.get(text);
+						}
+					}));
+				}
+				CompiledExpression first = results.get(0).get();
+				for (Future<CompiledExpression> result : results) {
+					assertSame(first, result.get());
+				}
+				assertSame(first, cache.get(text));
+				assertEquals(threads + 1, cache.hits() + cache.misses());
+				assertEquals(1, cache.size());
+				assertEquals(0, cache.evictions());
+				raced = cache.misses() > 1;
+			}
+			assertTrue(raced, "no two threads ever compiled at once");
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static void assertCounts(ExpressionCache cache, long hits, long misses, long evictions, int size) {
+		assertEquals(hits, cache.hits(), "hits");
+		assertEquals(misses, cache.misses(), "misses");
+		assertEquals(evictions, cache.evictions(), "evictions");
+		assertEquals(size, cache.size(), "size");
+	}
+
+	/**
+	 * Splits text into tokens as the expression parser does, dropping whitespace.
+	 */
+	private static List<String> tokens(String text) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		StringTokenizer st = new StringTokenizer(text, Expression.delims, true);
+		while (st.hasMoreTokens()) {
+			String token = st.nextToken();
+			if (!token.equals(" ") && !token.equals("\t")) {
+				tokens.add(token);
+			}
+		}
+		return tokens;
+	}
+}
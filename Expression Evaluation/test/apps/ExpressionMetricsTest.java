@@ -0,0 +1,131 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the counts, histogram buckets and percentiles ExpressionMetrics keeps, that a
+ * snapshot does not change afterwards, and what allocation tracking records.
+ */
+public class ExpressionMetricsTest {
+
+	@Test
+	public void histogramBuckets() {
+		ExpressionMetrics metrics = new ExpressionMetrics(false);
+		int p = ExpressionMetrics.EVALUATE;
+		/* A start in the future is a call of 0ns; one 2^40ns back lands in bucket 41, as
+		 * anything up to 2^41 - 1 does, so the time taken by the call itself does not matter */
+		long now = System.nanoTime();
+		metrics.record(p, now + (1L << 50), 0);
+		metrics.record(p, now + (1L << 50), 0);
+		metrics.record(p, System.nanoTime() - (1L << 40), 0);
+		metrics.record(p, System.nanoTime() - (1L << 30), 0);
+
+		ExpressionMetrics.Snapshot s = metrics.snapshot();
+		assertEquals(4, s.calls(p));
+		assertEquals(0, s.calls(ExpressionMetrics.COMPILE));
+		long[] histogram = s.histogram(p);
+		assertEquals(ExpressionMetrics.BUCKETS, histogram.length);
+		assertEquals(2, histogram[0]);
+		assertEquals(1, histogram[31]);
+		assertEquals(1, histogram[41]);
+		long total = 0;
+		for (long count : histogram) {
+			total += count;
+		}
+		assertEquals(4, total);
+		assertTrue(s.maxNanos(p) >= 1L << 40 && s.maxNanos(p) < 1L << 41);
+		assertTrue(s.totalNanos(p) >= (1L << 40) + (1L << 30));
+		assertEquals(s.totalNanos(p) / 4.0, s.meanNanos(p));
+
+		/* Percentiles are the top of the bucket they fall in */
+		assertEquals(0, s.percentileNanos(p, 0));
+		assertEquals(0, s.percentileNanos(p, 50));
+		assertEquals((1L << 31) - 1, s.percentileNanos(p, 75));
+		assertEquals((1L << 41) - 1, s.percentileNanos(p, 99));
+		assertEquals((1L << 41) - 1, s.percentileNanos(p, 100));
+		assertEquals(0, s.percentileNanos(ExpressionMetrics.MATCH, 50));
+		assertEquals(0, s.meanNanos(ExpressionMetrics.MATCH));
+		assertFalse(s.allocationsTracked());
+		assertEquals(0, s.allocatedBytes(p));
+	}
+
+	@Test
+	public void snapshotsDoNotChange() {
+		ExpressionMetrics metrics = new ExpressionMetrics(false);
+		int p = ExpressionMetrics.LOAD_VALUES;
+		metrics.record(p, System.nanoTime() - 1000, 0);
+		metrics.recordSymbols(10, 3);
+		ExpressionMetrics.Snapshot before = metrics.snapshot();
+		String text = before.toString();
+
+		before.histogram(p)[0] = 99;
+		metrics.record(p, System.nanoTime() - (1L << 30), 0);
+		metrics.recordSymbols(4, 5);
+		assertEquals(1, before.calls(p));
+		assertEquals(0, before.histogram(p)[0]);
+		assertEquals(10, before.tokens());
+		assertEquals(10, before.maxTokens());
+		assertEquals(3, before.maxDepth());
+		assertEquals(text, before.toString());
+
+		ExpressionMetrics.Snapshot after = metrics.snapshot();
+		assertEquals(2, after.calls(p));
+		assertEquals(14, after.tokens());
+		assertEquals(10, after.maxTokens());
+		assertEquals(5, after.maxDepth());
+
+		metrics.reset();
+		ExpressionMetrics.Snapshot cleared = metrics.snapshot();
+		assertEquals(0, cleared.calls(p));
+		assertEquals(0, cleared.totalNanos(p));
+		assertEquals(0, cleared.maxNanos(p));
+		assertEquals(0, cleared.tokens());
+		assertEquals(0, cleared.maxDepth());
+		for (long count : cleared.histogram(p)) {
+			assertEquals(0, count);
+		}
+		assertEquals(2, after.calls(p));
+	}
+
+	@Test
+	public void phasesOfAnExpression() throws Exception {
+		ExpressionMetrics metrics = new ExpressionMetrics(true);
+		Expression expr = new Expression("a + (b*A[(a+1)]) - (b)");
+		expr.setMetrics(metrics);
+		assertTrue(expr.isLegallyMatched());
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner("a 2\nb 3\nA 4 (3,5)"));
+		assertEquals(14, expr.evaluate(), 0);
+		assertEquals(14, expr.evaluate(), 0);
+
+		ExpressionMetrics.Snapshot s = metrics.snapshot();
+		assertEquals(1, s.calls(ExpressionMetrics.MATCH));
+		assertEquals(1, s.calls(ExpressionMetrics.BUILD_SYMBOLS));
+		assertEquals(1, s.calls(ExpressionMetrics.LOAD_VALUES));
+		assertEquals(1, s.calls(ExpressionMetrics.COMPILE));
+		assertEquals(2, s.calls(ExpressionMetrics.EVALUATE));
+		assertEquals(18, s.tokens());
+		assertEquals(3, s.maxDepth());
+
+		/* Tracking turns on the JVM-wide counter, and what it sums is bytes */
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assertTrue(s.allocationsTracked());
+		assertTrue(threads.isThreadAllocatedMemoryEnabled());
+		/* Compiling builds a tree and a program, well over one object's worth of bytes */
+		assertTrue(s.allocatedBytes(ExpressionMetrics.COMPILE) > 64, s.toString());
+		for (int p = 0; p < ExpressionMetrics.PHASES.length; p++) {
+			assertTrue(s.allocatedBytes(p) >= 0, ExpressionMetrics.PHASES[p]);
+		}
+
+		expr.setMetrics(null);
+		expr.evaluate();
+		assertEquals(2, metrics.snapshot().calls(ExpressionMetrics.EVALUATE));
+	}
+}
@@ -0,0 +1,204 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that optimize folds constants and shares repeated subexpressions, counts the
+ * nodes it removes, leaves alone integer operations that cannot be folded, and never
+ * changes a result in any evaluation mode.
+ */
+public class ExpressionOptimizerTest {
+
+	static final String VALUES = "a 4\nb 3\ni 2\nA 10 (0,5) (1,-2) (2,7) (3,1) (4,9) (5,3) (6,8) (7,-4) (8,6) (9,2)"
+			+ "\nB 10 (0,1) (1,2) (2,3) (3,4) (4,5) (5,6) (6,7) (7,8) (8,9) (9,10)";
+
+	static final BoundsPolicy[] POLICIES = { BoundsPolicy.THROW, BoundsPolicy.CLAMP, BoundsPolicy.defaultValue(-7) };
+
+	/*
+	 * Evaluation modes compared by evaluate(Expression, int)
+	 */
+	static final int FLOAT = 0, DOUBLE = 1, LONG = 2, EXACT = 3, RANGE = 4;
+
+	private final Random random = new Random(7);
+
+	@Test
+	public void foldsConstants() throws IOException {
+		/* 1,2,+,3,4,+,*,a,- become 21,a,- */
+		Expression expr = load("(1+2)*(3+4) - a");
+		assertEquals(6, expr.optimize());
+		assertEquals(0, expr.compiled.tempCount());
+		assertEquals(17f, expr.evaluate());
+
+		expr = load("2*3 + a");
+		assertEquals(2, expr.optimize());
+		assertEquals(10f, expr.evaluate());
+		assertEquals(10L, expr.evaluateExact());
+
+		/* Folded with float and double arithmetic, as each mode evaluates it */
+		Expression folded = load("0.1*3 + a");
+		folded.optimize();
+		Expression plain = load("0.1*3 + a");
+		assertEquals(plain.evaluate(), folded.evaluate());
+		assertEquals(plain.evaluateDouble(), folded.evaluateDouble());
+	}
+
+	@Test
+	public void sharesRepeatedSubexpressions() throws IOException {
+		/* i,1,+,A,i,1,+,A,* become i,1,+,A,* with A[i+1] in a temp */
+		Expression expr = load("A[i+1] * A[i+1]");
+		assertEquals(4, expr.optimize());
+		assertEquals(1, expr.compiled.tempCount());
+		assertEquals(1f, expr.evaluate());
+
+		/* The subscript i+1 is shared by two different arrays */
+		expr = load("A[i+1] + B[i+1]");
+		assertEquals(3, expr.optimize());
+		assertEquals(1, expr.compiled.tempCount());
+		assertEquals(5f, expr.evaluate());
+
+		/* A repeated scalar is merged, but is as cheap to read as a temp */
+		expr = load("a + a");
+		assertEquals(1, expr.optimize());
+		assertEquals(0, expr.compiled.tempCount());
+		assertEquals(8f, expr.evaluate());
+
+		/* Nothing to do */
+		expr = load("a * A[b] - i");
+		assertEquals(0, expr.optimize());
+		assertEquals(0, expr.compiled.tempCount());
+	}
+
+	@Test
+	public void keepsUnfoldableOperations() throws IOException {
+		String[] unfoldable = { "9223372036854775807 + 1 + a", "a + 1/0", "a * (4294967296 * 4294967297)" };
+		for (String text : unfoldable) {
+			Expression expr = load(text);
+			assertEquals(0, expr.optimize(), text);
+			try {
+				expr.evaluateExact();
+				fail(text + " did not overflow or divide by zero");
+			} catch (ArithmeticException e) {
+			}
+			assertModesMatch(load(text), expr, text);
+		}
+
+		/* The foldable part next to it still is */
+		Expression expr = load("(2+3) + 1/0");
+		assertEquals(2, expr.optimize());
+		assertEquals(Float.POSITIVE_INFINITY, expr.evaluate());
+	}
+
+	@Test
+	public void optimizingTwice() throws IOException {
+		Expression expr = load("A[i+1] * A[i+1] + (2*3)");
+		int removed = expr.optimize();
+		CompiledExpression once = expr.compiled;
+		assertEquals(removed, expr.optimize());
+		assertSame(once, expr.compiled);
+	}
+
+	@Test
+	public void keepsBytecode() throws IOException {
+		Expression expr = load("A[i+1] * A[i+1] + 2*3");
+		float expected = expr.evaluate();
+		expr.compileToBytecode();
+		assertFalse(expr.formula == expr.compiled);
+		expr.optimize();
+		assertFalse(expr.formula == expr.compiled, "optimize dropped the generated bytecode");
+		assertEquals(expected, expr.evaluate());
+
+		/* And optimized code is generated for the new policy */
+		expr.setBoundsPolicy(BoundsPolicy.CLAMP);
+		assertFalse(expr.formula == expr.compiled);
+		assertTrue(expr.compiled.nodesRemoved() > 0);
+	}
+
+	@Test
+	public void randomExpressionsKeepTheirResults() throws IOException {
+		for (int t = 0; t < 500; t++) {
+			String text = generate(1 + t % 8);
+			BoundsPolicy policy = POLICIES[t % 3];
+			Expression plain = load(text), optimized = load(text);
+			plain.setBoundsPolicy(policy);
+			optimized.setBoundsPolicy(policy);
+			if (t % 4 == 0) {
+				optimized.compileToBytecode();
+			}
+			optimized.optimize();
+			assertModesMatch(plain, optimized, text + " [" + policy + "]");
+		}
+	}
+
+	/**
+	 * Checks that two expressions evaluate the same in every mode. Shared subexpressions
+	 * are computed first, so when evaluation fails the failure may be a different one.
+	 */
+	private static void assertModesMatch(Expression plain, Expression optimized, String text) {
+		for (int kind = FLOAT; kind <= RANGE; kind++) {
+			String expected = evaluate(plain, kind), actual = evaluate(optimized, kind);
+			if (expected.startsWith("java.")) {
+				assertTrue(actual.startsWith("java."), text + " in mode " + kind + ": " + expected + " but got " + actual);
+			} else {
+				assertEquals(expected, actual, text + " in mode " + kind);
+			}
+		}
+	}
+
+	private static Expression load(String text) throws IOException {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner(VALUES));
+		return expr;
+	}
+
+	/**
+	 * Returns the result of evaluating in one mode, or the exception it threw.
+	 */
+	private static String evaluate(Expression expr, int kind) {
+		try {
+			switch (kind) {
+				case FLOAT: return String.valueOf(expr.evaluate());
+				case DOUBLE: return String.valueOf(expr.evaluateDouble());
+				case LONG: return String.valueOf(expr.evaluateLong());
+				case EXACT: return String.valueOf(expr.evaluateExact());
+				default:
+					return expr.scalarIndex.containsKey("i") ? Arrays.toString(expr.evaluateRange("i", -3, 13)) : "";
+			}
+		} catch (RuntimeException e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+
+	/**
+	 * Generates an expression up to depth operators deep, with repeated subexpressions and
+	 * constant subexpressions common enough to optimize.
+	 */
+	private String generate(int depth) {
+		if (depth == 0 || random.nextInt(4) == 0) {
+			switch (random.nextInt(7)) {
+				case 0: return "a";
+				case 1: return "i";
+				case 2: return String.valueOf(random.nextInt(9) + 1);
+				case 3: return "2.5";
+				case 4: return "(2*3)";
+				case 5: return "A[i+1]";
+				default: return (random.nextBoolean() ? "A" : "B") + "[" + (random.nextBoolean() ? "i" : "b*2") + "]";
+			}
+		}
+		char op = "+-*/".charAt(random.nextInt(4));
+		String left = generate(depth - 1);
+		String right = random.nextInt(3) == 0 ? left : generate(depth - 1);
+		return random.nextBoolean() ? "(" + left + op + right + ")" : left + " " + op + " " + right;
+	}
+}
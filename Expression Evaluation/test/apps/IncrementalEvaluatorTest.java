@@ -0,0 +1,261 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that IncrementalEvaluator gives, after any sequence of updates, what a full
+ * evaluation of the compiled expression gives with the same symbol values.
+ */
+public class IncrementalEvaluatorTest {
+
+	static final BoundsPolicy[] POLICIES = { BoundsPolicy.CLAMP, BoundsPolicy.defaultValue(-5) };
+
+	/**
+	 * Length of the dense arrays A and B, and of the sparse array S
+	 */
+	static final int LENGTH = 16, SPARSE_LENGTH = 4096;
+
+	private final Random random = new Random(8);
+
+	/*
+	 * Symbol values of the expression being checked, updated alongside the evaluator
+	 */
+	private int[] scalarValues;
+	private int[][] arrayValues;
+	private SparseArray[] sparseValues;
+
+	@Test
+	public void onlyTheIndexLastReadIsWatched() {
+		CompiledExpression compiled = compile("A[i] + A[j]*10", BoundsPolicy.THROW);
+		IncrementalEvaluator ie = start(compiled);
+		setScalar(ie, compiled, "i", 1);
+		setScalar(ie, compiled, "j", 2);
+		assertMatches(ie, compiled);
+
+		/* Neither node read A[3] */
+		setArrayElement(ie, compiled, "A", 3, 100);
+		assertMatches(ie, compiled);
+		setArrayElement(ie, compiled, "A", 2, 7);
+		assertMatches(ie, compiled);
+
+		/* Now A[j] reads A[3], and must see its next change */
+		setScalar(ie, compiled, "j", 3);
+		assertMatches(ie, compiled);
+		setArrayElement(ie, compiled, "A", 3, -100);
+		assertMatches(ie, compiled);
+
+		/* Changing the subscript and the element it moves to before evaluating */
+		setScalar(ie, compiled, "i", 5);
+		setArrayElement(ie, compiled, "A", 5, 55);
+		assertMatches(ie, compiled);
+	}
+
+	@Test
+	public void clampedIndexes() {
+		CompiledExpression compiled = compile("A[i] - A[j]", BoundsPolicy.CLAMP);
+		IncrementalEvaluator ie = start(compiled);
+		setScalar(ie, compiled, "i", 100);
+		setScalar(ie, compiled, "j", -100);
+		assertMatches(ie, compiled);
+
+		/* A[i] read A[LENGTH-1] and A[j] read A[0], though neither subscript is that index */
+		setArrayElement(ie, compiled, "A", LENGTH - 1, 1000);
+		assertMatches(ie, compiled);
+		setArrayElement(ie, compiled, "A", 0, -1000);
+		assertMatches(ie, compiled);
+	}
+
+	@Test
+	public void defaultValues() {
+		CompiledExpression compiled = compile("A[i] + 1", BoundsPolicy.defaultValue(-5));
+		IncrementalEvaluator ie = start(compiled);
+		setScalar(ie, compiled, "i", -1);
+		assertEquals(-4f, ie.evaluate());
+
+		/* The default value was read, not an element */
+		setArrayElement(ie, compiled, "A", 0, 40);
+		assertEquals(-4f, ie.evaluate());
+		setScalar(ie, compiled, "i", 0);
+		assertEquals(41f, ie.evaluate());
+		setScalar(ie, compiled, "i", LENGTH);
+		assertEquals(-4f, ie.evaluate());
+	}
+
+	@Test
+	public void sharedTemps() {
+		CompiledExpression compiled = compile("A[i+1]*A[i+1] + A[i+1] - B[A[i+1]]", BoundsPolicy.CLAMP).optimize();
+		assertEquals(1, compiled.tempCount());
+		IncrementalEvaluator ie = start(compiled);
+		setScalar(ie, compiled, "i", 2);
+		assertMatches(ie, compiled);
+		setArrayElement(ie, compiled, "A", 3, 9);
+		assertMatches(ie, compiled);
+		setArrayElement(ie, compiled, "B", 9, 81);
+		assertMatches(ie, compiled);
+		setScalar(ie, compiled, "i", 8);
+		setArrayElement(ie, compiled, "A", 3, 1);
+		assertMatches(ie, compiled);
+	}
+
+	@Test
+	public void sparseSlots() {
+		CompiledExpression compiled = compile("S[i*100] + S[j] * A[i]", BoundsPolicy.CLAMP);
+		IncrementalEvaluator ie = start(compiled);
+		setScalar(ie, compiled, "i", 3);
+		setScalar(ie, compiled, "j", 7);
+		assertMatches(ie, compiled);
+
+		/* Setting an element that was never set, and one past the end, clamped */
+		setArrayElement(ie, compiled, "S", 300, 12);
+		assertMatches(ie, compiled);
+		setArrayElement(ie, compiled, "S", 7, -3);
+		assertMatches(ie, compiled);
+		setScalar(ie, compiled, "i", 50);
+		assertMatches(ie, compiled);
+		setArrayElement(ie, compiled, "S", SPARSE_LENGTH - 1, 4);
+		assertMatches(ie, compiled);
+	}
+
+	@Test
+	public void randomUpdatesMatchEvaluate() {
+		for (int t = 0; t < 300; t++) {
+			String text = generate(1 + t % 7);
+			CompiledExpression compiled = compile(text, POLICIES[t % 2]);
+			if (t % 3 == 0) {
+				compiled = compiled.optimize();
+			}
+			IncrementalEvaluator ie = start(compiled);
+			assertEquals(full(compiled), ie.evaluate(), text);
+			for (int step = 0; step < 100; step++) {
+				int what = random.nextInt(10);
+				if (what < 4 && scalarValues.length > 0) {
+					int slot = random.nextInt(scalarValues.length);
+					scalarValues[slot] = random.nextInt(LENGTH + 6) - 3;
+					ie.setScalar(slot, scalarValues[slot]);
+				} else if (what < 9 && arrayValues.length > 0) {
+					int slot = random.nextInt(arrayValues.length);
+					int value = random.nextInt(LENGTH + 6) - 3;
+					if (sparseValues[slot] != null) {
+						int i = random.nextInt(10) == 0 ? random.nextInt(SPARSE_LENGTH) : random.nextInt(2 * LENGTH);
+						sparseValues[slot].set(i, value);
+						ie.setArrayElement(slot, i, value);
+					} else {
+						int i = random.nextInt(LENGTH);
+						arrayValues[slot][i] = value;
+						ie.setArrayElement(slot, i, value);
+					}
+				} else if (arrayValues.length > 0) {
+					int slot = random.nextInt(arrayValues.length);
+					if (sparseValues[slot] != null) {
+						sparseValues[slot] = randomSparse();
+						ie.setArray(slot, copy(sparseValues[slot]));
+					} else {
+						arrayValues[slot] = randomDense();
+						ie.setArray(slot, arrayValues[slot].clone());
+					}
+				}
+				assertEquals(full(compiled), ie.evaluate(), text + " after step " + step);
+			}
+		}
+	}
+
+	private static CompiledExpression compile(String text, BoundsPolicy bounds) {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		return expr.compile().withBounds(bounds);
+	}
+
+	/**
+	 * Gives every symbol random values, and starts an evaluator with copies of them, so
+	 * that it does not share arrays with the full evaluation.
+	 */
+	private IncrementalEvaluator start(CompiledExpression compiled) {
+		scalarValues = new int[compiled.scalarCount()];
+		arrayValues = new int[compiled.arrayCount()][];
+		sparseValues = new SparseArray[compiled.arrayCount()];
+		int[][] arrays = new int[arrayValues.length][];
+		SparseArray[] sparse = new SparseArray[arrayValues.length];
+		for (int slot = 0; slot < arrayValues.length; slot++) {
+			if (compiled.arrayNames[slot].equals("S")) {
+				sparseValues[slot] = randomSparse();
+				sparse[slot] = copy(sparseValues[slot]);
+			} else {
+				arrayValues[slot] = randomDense();
+				arrays[slot] = arrayValues[slot].clone();
+			}
+		}
+		return new IncrementalEvaluator(compiled, scalarValues, arrays, sparse);
+	}
+
+	private float full(CompiledExpression compiled) {
+		return compiled.evaluate(scalarValues, arrayValues, sparseValues);
+	}
+
+	private void assertMatches(IncrementalEvaluator ie, CompiledExpression compiled) {
+		assertEquals(full(compiled), ie.evaluate());
+	}
+
+	private void setScalar(IncrementalEvaluator ie, CompiledExpression compiled, String name, int value) {
+		scalarValues[compiled.scalarSlot(name)] = value;
+		ie.setScalar(name, value);
+	}
+
+	private void setArrayElement(IncrementalEvaluator ie, CompiledExpression compiled, String name, int i, int value) {
+		int slot = compiled.arraySlot(name);
+		if (sparseValues[slot] != null) {
+			sparseValues[slot].set(i, value);
+		} else {
+			arrayValues[slot][i] = value;
+		}
+		ie.setArrayElement(slot, i, value);
+	}
+
+	private int[] randomDense() {
+		int[] values = new int[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			values[i] = random.nextInt(LENGTH + 6) - 3;
+		}
+		return values;
+	}
+
+	private SparseArray randomSparse() {
+		SparseArray values = new SparseArray(SPARSE_LENGTH);
+		for (int k = 0; k < 20; k++) {
+			values.set(random.nextInt(2 * LENGTH), random.nextInt(LENGTH + 6) - 3);
+		}
+		return values;
+	}
+
+	private static SparseArray copy(SparseArray values) {
+		SparseArray copy = new SparseArray(values.length());
+		for (int k = 0; k < values.size(); k++) {
+			copy.set(values.indexAt(k), values.valueAt(k));
+		}
+		return copy;
+	}
+
+	/**
+	 * Generates an expression up to depth operators deep over scalars i and j, constants, and
+	 * elements of A, B and S, with repeated subexpressions for optimize to share.
+	 */
+	private String generate(int depth) {
+		if (depth == 0 || random.nextInt(4) == 0) {
+			switch (random.nextInt(6)) {
+				case 0: return "i";
+				case 1: return "j";
+				case 2: return String.valueOf(random.nextInt(9) + 1);
+				case 3: return "S[" + (random.nextBoolean() ? "i" : "j*2") + "]";
+				case 4: return "A[i+1]";
+				default: return (random.nextBoolean() ? "A" : "B") + "[" + generate(depth / 2) + "]";
+			}
+		}
+		char op = "+-*/".charAt(random.nextInt(4));
+		String left = generate(depth - 1);
+		String right = random.nextInt(3) == 0 ? left : generate(depth - 1);
+		return random.nextBoolean() ? "(" + left + op + right + ")" : left + " " + op + " " + right;
+	}
+}
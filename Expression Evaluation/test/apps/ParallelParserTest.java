@@ -0,0 +1,157 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that expressions above PARALLEL_THRESHOLD parse in parallel to the same program as
+ * the sequential parser, with the same error for malformed text, and that evaluateParallel
+ * gives, bit for bit, what evaluate gives. The pom sets the common pool's parallelism, so
+ * the parallel paths run even on one core.
+ */
+public class ParallelParserTest {
+
+	private final Random random = new Random(7);
+
+	@BeforeAll
+	public static void parallel() {
+		assertTrue(CompiledExpression.parallel(), "common pool has a single worker");
+	}
+
+	@Test
+	public void longChain() {
+		StringBuilder sb = new StringBuilder();
+		generate(sb, 0, 40000);
+		assertSame(sb.toString());
+	}
+
+	@Test
+	public void singleGroup() {
+		StringBuilder sb = new StringBuilder("(");
+		generate(sb, 0, 30000);
+		sb.append(") * (a + 1) / ((b))");
+		assertSame(sb.toString());
+	}
+
+	@Test
+	public void singleArrayElement() {
+		StringBuilder sb = new StringBuilder("A[a + 0 * (");
+		generate(sb, 0, 30000);
+		sb.append(")]");
+		assertSame(sb.toString());
+	}
+
+	@Test
+	public void malformed() {
+		StringBuilder sb = new StringBuilder();
+		generate(sb, 0, 30000);
+		sb.append(" + + a");
+		Expression expr = load(sb.toString());
+		String sequential = null, parallel = null;
+		try {
+			sequential(expr);
+		} catch (IllegalArgumentException e) {
+			sequential = e.getMessage();
+		}
+		try {
+			parallel(expr);
+		} catch (IllegalArgumentException e) {
+			parallel = e.getMessage();
+		}
+		assertNotNull(sequential, "malformed expression parsed");
+		assertEquals(sequential, parallel);
+	}
+
+	/**
+	 * Checks that the parallel and sequential parsers build the same program, and that it
+	 * evaluates the same in parallel as sequentially.
+	 */
+	private static void assertSame(String text) {
+		assertTrue(text.length() >= CompiledExpression.PARALLEL_THRESHOLD, "expression too short");
+		Expression expr = load(text);
+		CompiledExpression sequential = sequential(expr);
+		CompiledExpression parallel = parallel(expr);
+		assertArrayEquals(sequential.program.code, parallel.program.code);
+		assertArrayEquals(sequential.program.floats, parallel.program.floats);
+		assertEquals(sequential.integral, parallel.integral);
+
+		int[] scalarValues = new int[expr.scalars.size()];
+		for (int i = 0; i < scalarValues.length; i++) {
+			scalarValues[i] = expr.scalars.get(i).value;
+		}
+		int[][] arrayValues = new int[expr.arrays.size()][];
+		for (int i = 0; i < arrayValues.length; i++) {
+			arrayValues[i] = expr.arrays.get(i).values;
+		}
+		float expected = sequential.evaluate(scalarValues, arrayValues);
+		float result = parallel.evaluateParallel(scalarValues, arrayValues);
+		if (Float.floatToIntBits(expected) != Float.floatToIntBits(result)) {
+			fail("evaluateParallel gave " + result + ", expected " + expected);
+		}
+	}
+
+	private static Expression load(String text) {
+		Expression expr = new Expression(text);
+		assertTrue(expr.isLegallyMatched());
+		expr.buildSymbols();
+		for (ScalarSymbol ss : expr.scalars) {
+			ss.value = ss.name.equals("a") ? 2 : 3;
+		}
+		for (ArraySymbol as : expr.arrays) {
+			as.values = new int[10];
+			for (int i = 0; i < as.values.length; i++) {
+				as.values[i] = i + 1;
+			}
+		}
+		return expr;
+	}
+
+	private static CompiledExpression sequential(Expression expr) {
+		return CompiledExpression.compile(expr.expr, expr.scalars, expr.arrays, expr.scalarIndex,
+				expr.arrayIndex);
+	}
+
+	private static CompiledExpression parallel(Expression expr) {
+		return CompiledExpression.compile(expr.expr, expr.scalars, expr.arrays, expr.scalarIndex,
+				expr.arrayIndex, expr.openingBracketIndex, expr.closingBracketIndex);
+	}
+
+	/**
+	 * Appends n terms joined by random operators, nested up to a few levels deep in
+	 * parentheses and array subscripts that stay within the arrays.
+	 */
+	private void generate(StringBuilder sb, int depth, int n) {
+		term(sb, depth);
+		for (int i = 1; i < n; i++) {
+			sb.append(' ').append("+-*/".charAt(random.nextInt(4))).append(' ');
+			term(sb, depth);
+		}
+	}
+
+	private void term(StringBuilder sb, int depth) {
+		switch (random.nextInt(depth > 6 ? 3 : 6)) {
+			case 0: sb.append('a'); break;
+			case 1: sb.append(random.nextInt(9) + 1); break;
+			case 2: sb.append("b * 2.5"); break;
+			case 3:
+				sb.append('(');
+				generate(sb, depth + 1, 3);
+				sb.append(')');
+				break;
+			case 4: sb.append("A[b - a]"); break;
+			default:
+				sb.append("B[(");
+				generate(sb, depth + 1, 2);
+				sb.append(") * 0 + 1]");
+				break;
+		}
+	}
+}
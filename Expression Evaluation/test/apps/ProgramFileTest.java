@@ -0,0 +1,192 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that an expression saved with saveCompiled and read back with loadCompiled
+ * evaluates the same in every mode, and that damaged program files are rejected with an
+ * IOException.
+ */
+public class ProgramFileTest {
+
+	static final String VALUES = "a 3\nb 2\nA 5 (0,1) (1,7) (2,3) (3,4) (4,9)\nB 3 (0,1) (1,2) (2,3)";
+
+	/*
+	 * Evaluation modes compared by evaluate(Expression, int)
+	 */
+	static final int FLOAT = 0, DOUBLE = 1, LONG = 2, EXACT = 3, TEXT = 4, RANGE = 5, BYTECODE = 6;
+
+	@TempDir
+	File dir;
+
+	private final Random random = new Random(7);
+
+	@Test
+	public void roundTrip() throws IOException {
+		File f = new File(dir, "expression.prog");
+		String[] fixed = { "a", "3", "A[b]", "a*b-a/b+a*A[b]", "(a+b)*(a+b) - (a+b)/(a+b)+A[(a+b)-1]",
+				"A[B[a-1]+1] + A[B[a-1]+1]*B[a-1]", "0.1*3", "9007199254740993 - 9007199254740992" };
+		for (int t = 0; t < fixed.length + 200; t++) {
+			String text = t < fixed.length ? fixed[t] : generate(1 + t % 7);
+			for (int mode = 0; mode < 3; mode++) {
+				Expression saved = load(text);
+				if (mode == 1) {
+					saved.optimize();
+				} else if (mode == 2) {
+					saved.setBoundsPolicy(BoundsPolicy.defaultValue(-3));
+				}
+				saved.saveCompiled(f);
+				Expression loaded = Expression.loadCompiled(f);
+				loaded.loadSymbolValues(new Scanner(VALUES));
+
+				CompiledExpression expected = saved.compile(), actual = loaded.compile();
+				assertArrayEquals(expected.scalarNames, actual.scalarNames, text);
+				assertArrayEquals(expected.arrayNames, actual.arrayNames, text);
+				assertEquals(expected.removedNodes, actual.removedNodes, text);
+				assertEquals(expected.integral, actual.integral, text);
+				assertEquals(expected.bounds().toString(), actual.bounds().toString(), text);
+				for (int kind = FLOAT; kind <= BYTECODE; kind++) {
+					assertEquals(evaluate(saved, kind), evaluate(loaded, kind), text + " in mode " + kind);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void namesOutsideTheBasicPlane() throws IOException {
+		/* Modified UTF-8 (writeUTF) and UTF-8 encode these differently */
+		File f = new File(dir, "names.prog");
+		Expression saved = new Expression("𝑥 + Ä[𝑥] * b");
+		saved.buildSymbols();
+		saved.saveCompiled(f);
+		CompiledExpression loaded = new ProgramFile(f).expression();
+		assertArrayEquals(saved.compile().scalarNames, loaded.scalarNames);
+		assertArrayEquals(saved.compile().arrayNames, loaded.arrayNames);
+	}
+
+	@Test
+	public void truncatedFiles() throws IOException {
+		File f = new File(dir, "truncated.prog");
+		load("a*b-a/b+a*A[b]").saveCompiled(f);
+		byte[] bytes = Files.readAllBytes(f.toPath());
+		for (int cut : new int[] { 0, 6, 30, 50, bytes.length - 20, bytes.length - 3 }) {
+			Files.write(f.toPath(), Arrays.copyOf(bytes, cut));
+			assertRejected(f, "truncated");
+		}
+
+		/* A source length that is negative or runs past the end of the file */
+		String source = "a*b-a/b+a*A[b]";
+		int at = bytes.length - source.getBytes("UTF-8").length - 4;
+		for (int length : new int[] { -2, Integer.MIN_VALUE, source.length() + 1, Integer.MAX_VALUE }) {
+			byte[] bad = bytes.clone();
+			ByteBuffer.wrap(bad).putInt(at, length);
+			Files.write(f.toPath(), bad);
+			assertRejected(f, "truncated");
+		}
+	}
+
+	@Test
+	public void badInstructions() throws IOException {
+		File f = new File(dir, "bad.prog");
+		load("a*b-a/b+a*A[b]").saveCompiled(f);
+		byte[] bytes = Files.readAllBytes(f.toPath());
+
+		/* The first instruction is the last byte of the first int after the 44-byte header */
+		byte[] badOpcode = bytes.clone();
+		badOpcode[47] = 0x0F;
+		Files.write(f.toPath(), badOpcode);
+		assertRejected(f, "bad instruction");
+
+		byte[] badSlot = bytes.clone();
+		badSlot[47] = 0x35;
+		Files.write(f.toPath(), badSlot);
+		assertRejected(f, "bad instruction");
+	}
+
+	@Test
+	public void withoutSource() throws IOException {
+		File f = new File(dir, "nosource.prog");
+		Expression saved = load("a*b-a/b+a*A[b]");
+		ProgramFile.write(saved.compile(), null, f);
+		ProgramFile file = new ProgramFile(f);
+		assertNull(file.source());
+		int[] scalarValues = new int[saved.scalars.size()];
+		for (int i = 0; i < scalarValues.length; i++) {
+			scalarValues[i] = saved.scalars.get(i).value;
+		}
+		int[][] arrayValues = { saved.arrays.get(0).values };
+		assertEquals(saved.evaluate(), file.expression().evaluate(scalarValues, arrayValues));
+		assertRejected(f, "no expression text");
+	}
+
+	private static void assertRejected(File f, String message) {
+		try {
+			Expression.loadCompiled(f);
+			fail(f.length() + "-byte file was loaded");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains(message), e.getMessage());
+		}
+	}
+
+	private static Expression load(String text) throws IOException {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner(VALUES));
+		return expr;
+	}
+
+	/**
+	 * Returns the result of evaluating in one mode, or the exception it threw.
+	 */
+	private static String evaluate(Expression expr, int kind) {
+		try {
+			switch (kind) {
+				case FLOAT: return String.valueOf(expr.evaluate());
+				case DOUBLE: return String.valueOf(expr.evaluateDouble());
+				case LONG: return String.valueOf(expr.evaluateLong());
+				case EXACT: return String.valueOf(expr.evaluateExact());
+				case TEXT: return String.valueOf(expr.evaluateText());
+				case RANGE:
+					return expr.scalarIndex.containsKey("b") ? Arrays.toString(expr.evaluateRange("b", -1, 6)) : "";
+				default:
+					expr.compileToBytecode();
+					return String.valueOf(expr.evaluate());
+			}
+		} catch (RuntimeException e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+
+	/**
+	 * Generates an expression up to depth operators deep over a, b, constants and elements of A.
+	 */
+	private String generate(int depth) {
+		if (depth == 0 || random.nextInt(4) == 0) {
+			switch (random.nextInt(5)) {
+				case 0: return "a";
+				case 1: return "b";
+				case 2: return String.valueOf(random.nextInt(9) + 1);
+				case 3: return "2.5";
+				default: return "A[" + (random.nextBoolean() ? "b" : "(a-1)") + "]";
+			}
+		}
+		char op = "+-*/".charAt(random.nextInt(4));
+		String left = generate(depth - 1), right = generate(depth - 1);
+		return random.nextBoolean() ? "(" + left + op + right + ")" : left + " " + op + " " + right;
+	}
+}
@@ -0,0 +1,122 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that evaluateRange gives, bit for bit, what evaluate gives at each index, and that
+ * it copes with nesting far deeper than the Java stack.
+ */
+public class RangeEvaluatorTest {
+
+	/**
+	 * Length of the arrays, and of the range evaluated
+	 */
+	static final int LENGTH = 300;
+
+	private final Random random = new Random(3);
+
+	@Test
+	public void randomExpressionsMatchEvaluate() {
+		int checked = 0;
+		for (int t = 0; t < 400; t++) {
+			String text = t == 0 ? "(A[i]+c)*(A[i]+c) - (c*c)/(c*c) + B[A[i]]" : generate(1 + t % 8);
+			if (!text.contains("i")) {
+				continue;
+			}
+			Expression expr = new Expression(text);
+			expr.buildSymbols();
+			for (ArraySymbol as : expr.arrays) {
+				as.values = new int[LENGTH + 1];
+				for (int k = 0; k <= LENGTH; k++) {
+					as.values[k] = (k * 7) % LENGTH;
+				}
+			}
+			for (ScalarSymbol ss : expr.scalars) {
+				ss.value = 5;
+			}
+			if (t % 2 == 0) {
+				expr.optimize();
+			}
+			/* CLAMP, so that subscripts computed from arbitrary values still read an element */
+			expr.setBoundsPolicy(BoundsPolicy.CLAMP);
+			assertMatches(expr, -5, LENGTH + 7);
+			checked++;
+		}
+		assertTrue(checked > 300, "too few expressions checked: " + checked);
+	}
+
+	@Test
+	public void deepRightNesting() {
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < 100000; k++) {
+			sb.append("i+(");
+		}
+		sb.append("i");
+		for (int k = 0; k < 100000; k++) {
+			sb.append(")");
+		}
+		Expression expr = new Expression(sb.toString());
+		expr.buildSymbols();
+		assertMatches(expr, 0, 50);
+	}
+
+	@Test
+	public void deepNestingWithArrayElement() {
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < 100000; k++) {
+			sb.append("(i-");
+		}
+		sb.append("A[i]");
+		for (int k = 0; k < 100000; k++) {
+			sb.append(")");
+		}
+		Expression expr = new Expression(sb.toString());
+		expr.buildSymbols();
+		expr.arrays.get(0).values = new int[LENGTH];
+		for (int k = 0; k < LENGTH; k++) {
+			expr.arrays.get(0).values[k] = k * 3;
+		}
+		assertMatches(expr, 0, 50);
+	}
+
+	/**
+	 * Checks evaluateRange("i", from, to) against evaluate with i set to each index.
+	 */
+	private static void assertMatches(Expression expr, int from, int to) {
+		float[] range = expr.evaluateRange("i", from, to);
+		assertEquals(to - from, range.length);
+		ScalarSymbol index = expr.scalars.get(expr.scalarIndex.get("i"));
+		for (int k = from; k < to; k++) {
+			index.value = k;
+			float expected = expr.evaluate();
+			if (Float.floatToIntBits(expected) != Float.floatToIntBits(range[k - from])) {
+				fail(expr.expr + " at i = " + k + ": " + range[k - from] + ", expected " + expected);
+			}
+		}
+	}
+
+	/**
+	 * Generates an expression up to depth operators deep over i, c, constants, A[i] and
+	 * B[subexpression].
+	 */
+	private String generate(int depth) {
+		if (depth == 0 || random.nextInt(4) == 0) {
+			switch (random.nextInt(6)) {
+				case 0: return "i";
+				case 1: return "c";
+				case 2: return String.valueOf(random.nextInt(9) + 1);
+				case 3: return "A[i]";
+				case 4: return "B[" + (depth > 0 ? generate(depth - 1) : "i") + "]";
+				default: return "2.5";
+			}
+		}
+		char op = "+-*/".charAt(random.nextInt(4));
+		return "(" + generate(depth - 1) + op + generate(depth - 1) + ")";
+	}
+}
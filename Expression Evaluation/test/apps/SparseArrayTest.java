@@ -0,0 +1,169 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks when arrays are stored sparse, and that a sparse array reads, and handles
+ * subscripts outside it, exactly as the same array stored dense does in every way of
+ * evaluating an expression.
+ */
+public class SparseArrayTest {
+
+	static final BoundsPolicy[] POLICIES = { BoundsPolicy.THROW, BoundsPolicy.CLAMP, BoundsPolicy.defaultValue(-7) };
+
+	@Test
+	public void prefer() {
+		int length = SparseArray.MIN_LENGTH;
+		assertTrue(SparseArray.prefer(length, 0));
+		assertTrue(SparseArray.prefer(length, length / SparseArray.FILL_RATIO));
+		assertFalse(SparseArray.prefer(length, length / SparseArray.FILL_RATIO + 1));
+		assertFalse(SparseArray.prefer(length - 1, 1));
+		assertTrue(SparseArray.prefer(Integer.MAX_VALUE, Integer.MAX_VALUE / SparseArray.FILL_RATIO));
+		assertFalse(SparseArray.prefer(Integer.MAX_VALUE, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void loadedSparseOnlyWhenPreferred() throws IOException {
+		assertNotNull(load("S[0]", pairs("S", 1024, 128)).arrays.get(0).sparse);
+		assertNull(load("S[0]", pairs("S", 1024, 129)).arrays.get(0).sparse);
+		assertNull(load("S[0]", pairs("S", 1023, 1)).arrays.get(0).sparse);
+
+		Expression expr = load("S[0]", pairs("S", 1 << 30, 3));
+		ArraySymbol s = expr.arrays.get(0);
+		assertNull(s.values);
+		assertEquals(1 << 30, s.length());
+		assertEquals(3, s.sparse.size());
+	}
+
+	@Test
+	public void setAndGet() {
+		SparseArray array = SparseArray.of(2000, new int[] { 9, 1, 3, 2, 9, 5 }, 3);
+		assertEquals(2, array.size());
+		assertEquals(5, array.get(9));
+		assertEquals(2, array.get(3));
+		assertEquals(0, array.get(4));
+		assertEquals(3, array.indexAt(0));
+		array.set(4, 8);
+		array.set(1999, 1);
+		array.set(9, 6);
+		assertEquals(4, array.size());
+		int[] dense = new int[2000];
+		dense[3] = 2;
+		dense[4] = 8;
+		dense[9] = 6;
+		dense[1999] = 1;
+		assertArrayEquals(dense, array.toArray());
+		for (int index : new int[] { -1, 2000 }) {
+			try {
+				array.set(index, 1);
+				fail("set " + index);
+			} catch (ArrayIndexOutOfBoundsException e) {
+			}
+			try {
+				SparseArray.of(2000, new int[] { index, 1 }, 1);
+				fail("of " + index);
+			} catch (ArrayIndexOutOfBoundsException e) {
+			}
+		}
+	}
+
+	@Test
+	public void evaluatesAsDense() throws IOException {
+		String[] texts = { "S[i]", "S[i] * S[i+1] - S[2*i]", "S[S[i]] + 3", "S[i/2] + S[i-1000]",
+				"(S[i]+i)*(S[i]+i) - S[S[i]+i]" };
+		String values = "S 2048 (0,5) (1,2047) (2,-3) (5,9) (9,1) (100,4) (1000,6) (2047,2) (2040,2045)\ni 0";
+		for (String text : texts) {
+			for (BoundsPolicy policy : POLICIES) {
+				for (int optimize = 0; optimize < 2; optimize++) {
+					Expression sparse = load(text, values), dense = load(text, values);
+					assertNotNull(sparse.arrays.get(0).sparse);
+					dense.arrays.get(0).values = dense.arrays.get(0).sparse.toArray();
+					dense.arrays.get(0).sparse = null;
+					sparse.setBoundsPolicy(policy);
+					dense.setBoundsPolicy(policy);
+					if (optimize == 1) {
+						sparse.optimize();
+						dense.optimize();
+					}
+					String what = text + " [" + policy + "]";
+
+					for (int i : new int[] { -5, -1, 0, 1, 2, 5, 9, 100, 1000, 1023, 2040, 2047, 2048, 5000 }) {
+						sparse.scalars.get(0).value = dense.scalars.get(0).value = i;
+						assertEquals(evaluate(dense), evaluate(sparse), what + " at i = " + i);
+					}
+					assertEquals(range(dense, -10, 2060), range(sparse, -10, 2060), what);
+
+					/* Updates through the incremental evaluator, which writes into the sparse array */
+					sparse.scalars.get(0).value = dense.scalars.get(0).value = 5;
+					if (evaluate(dense).startsWith("java.")) {
+						continue;
+					}
+					IncrementalEvaluator is = sparse.incrementalEvaluator(), id = dense.incrementalEvaluator();
+					int[][] updates = { { 5, 1 }, { 6, 7 }, { 2047, 0 }, { 1, 3 }, { 9, 2040 } };
+					for (int[] update : updates) {
+						is.setArrayElement(0, update[0], update[1]);
+						id.setArrayElement(0, update[0], update[1]);
+						assertEquals(evaluate(id), evaluate(is), what + " after S[" + update[0] + "] = " + update[1]);
+					}
+					is.setScalar("i", 2047);
+					id.setScalar("i", 2047);
+					assertEquals(evaluate(id), evaluate(is), what + " at i = 2047");
+				}
+			}
+		}
+	}
+
+	private static String pairs(String name, int length, int count) {
+		StringBuilder sb = new StringBuilder(name).append(' ').append(length);
+		for (int k = 0; k < count; k++) {
+			sb.append(" (").append((int) ((long) k * length / count)).append(',').append(k + 1).append(')');
+		}
+		return sb.toString();
+	}
+
+	private static Expression load(String text, String values) throws IOException {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner(values));
+		return expr;
+	}
+
+	/**
+	 * Returns the result of evaluation, or the exception it threw.
+	 */
+	private static String evaluate(Expression expr) {
+		try {
+			return String.valueOf(expr.evaluate());
+		} catch (RuntimeException e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+
+	private static String evaluate(IncrementalEvaluator ie) {
+		try {
+			return String.valueOf(ie.evaluate());
+		} catch (RuntimeException e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+
+	private static String range(Expression expr, int from, int to) {
+		try {
+			return Arrays.toString(expr.evaluateRange("i", from, to));
+		} catch (RuntimeException e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+}
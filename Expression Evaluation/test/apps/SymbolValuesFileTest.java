@@ -0,0 +1,148 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that symbol values converted to the binary format with SymbolValuesFile.convert
+ * and loaded with loadSymbolValues(File) are the same as when loaded from the text.
+ */
+public class SymbolValuesFileTest {
+
+	@TempDir
+	File dir;
+
+	private final Random random = new Random(10);
+
+	@Test
+	public void namesOutsideTheBasicPlane() throws IOException {
+		String values = "a𝑥 7\nb 2\nÄ𝑥 3 (0,4) (1,5) (2,6)\n𝒜 2048 (7,8)";
+		String text = "a𝑥 + b * Ä𝑥[b] - 𝒜[7]";
+		Expression expected = fromText(text, values), actual = fromBinary(text, values);
+		assertEquals(7 + 2 * 6 - 8, expected.evaluate());
+		assertEquals(expected.evaluate(), actual.evaluate());
+		assertEquals(expected.arrays, actual.arrays);
+		assertTrue(actual.arrays.get(actual.arrayIndex.get("𝒜")).sparse != null);
+	}
+
+	@Test
+	public void recordKinds() throws IOException {
+		File f = convert("s 5\nD 4 (0,1) (1,2) (2,3)\nS 10 (3,9) (3,4)\nH 4096 (1,1) (4095,2)");
+		SymbolValuesFile in = new SymbolValuesFile(f);
+		try {
+			assertTrue(in.next());
+			assertEquals(SymbolValuesFile.SCALAR, in.kind());
+			assertEquals("s", in.name());
+			assertEquals(5, in.scalarValue());
+
+			assertTrue(in.next());
+			assertEquals(SymbolValuesFile.DENSE_ARRAY, in.kind());
+			assertEquals(4, in.count());
+			assertArrayEquals(new int[] { 1, 2, 3, 0 }, in.arrayValues());
+
+			/* Written sparse, the later of two pairs for the same index wins */
+			assertTrue(in.next());
+			assertEquals(SymbolValuesFile.SPARSE_ARRAY, in.kind());
+			assertEquals(10, in.arraySize());
+			assertEquals(2, in.count());
+			assertArrayEquals(new int[] { 0, 0, 0, 4, 0, 0, 0, 0, 0, 0 }, in.arrayValues());
+
+			/* Skipping a record without reading its body */
+			assertTrue(in.next());
+			assertEquals("H", in.name());
+			SparseArray h = in.sparseValues();
+			assertEquals(2, h.size());
+			assertEquals(2, h.get(4095));
+			assertFalse(in.next());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void randomValues() throws IOException {
+		String text = "a*D[b] + S[b*c] - H[(a+b)*c] / (1 + E[0]) + x";
+		for (int t = 0; t < 100; t++) {
+			int a = random.nextInt(10), b = random.nextInt(10), c = 1 + random.nextInt(100);
+			StringBuilder values = new StringBuilder();
+			values.append("unused 1\n");
+			values.append("a ").append(a).append('\n');
+			values.append("b ").append(b).append('\n');
+			values.append("c ").append(c).append('\n');
+			values.append("x ").append(random.nextInt() % 1000).append('\n');
+			/* Dense, sparse in the file but dense in memory, and sparse in both */
+			values.append(pairs("D", 10, 10)).append('\n');
+			values.append(pairs("S", 1000, 1 + random.nextInt(400))).append('\n');
+			values.append(pairs("H", 2048, 1 + random.nextInt(300))).append('\n');
+			values.append(pairs("E", 1, 1)).append('\n');
+			values.append(pairs("Unused", 5000, 7));
+
+			Expression expected = fromText(text, values.toString()), actual = fromBinary(text, values.toString());
+			assertEquals(expected.scalars, actual.scalars);
+			for (int k = 0; k < expected.arrays.size(); k++) {
+				ArraySymbol e = expected.arrays.get(k), o = actual.arrays.get(k);
+				assertEquals(e, o);
+				assertEquals(e.sparse == null, o.sparse == null, e.name);
+				if (e.sparse == null) {
+					assertArrayEquals(e.values, o.values, e.name);
+				} else {
+					assertArrayEquals(e.sparse.toArray(), o.sparse.toArray(), e.name);
+				}
+			}
+			assertEquals(describe(expected), describe(actual));
+		}
+	}
+
+	/**
+	 * Returns an array line with count random pairs, some of them for the same index.
+	 */
+	private String pairs(String name, int length, int count) {
+		StringBuilder sb = new StringBuilder(name).append(' ').append(length);
+		for (int k = 0; k < count; k++) {
+			int index = length <= 10 ? k % length : random.nextInt(length);
+			sb.append(" (").append(index).append(',').append(random.nextInt(2000) - 1000).append(')');
+		}
+		return sb.toString();
+	}
+
+	private File convert(String values) throws IOException {
+		File f = new File(dir, "values.bin");
+		SymbolValuesFile.convert(new Scanner(values), f);
+		return f;
+	}
+
+	private Expression fromBinary(String text, String values) throws IOException {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		expr.loadSymbolValues(convert(values));
+		return expr;
+	}
+
+	private static Expression fromText(String text, String values) throws IOException {
+		Expression expr = new Expression(text);
+		expr.buildSymbols();
+		expr.loadSymbolValues(new Scanner(values));
+		return expr;
+	}
+
+	/**
+	 * Returns the result of evaluation, or the exception it threw.
+	 */
+	private static String describe(Expression expr) {
+		try {
+			return String.valueOf(expr.evaluate());
+		} catch (RuntimeException e) {
+			return e.getClass().getName() + ": " + e.getMessage();
+		}
+	}
+}
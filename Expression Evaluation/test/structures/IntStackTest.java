@@ -0,0 +1,64 @@
+package structures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks IntStack against java.util.ArrayDeque used as a stack, through growth, clear and
+ * empty pops.
+ */
+public class IntStackTest {
+
+	private final Random random = new Random(4);
+
+	@Test
+	public void matchesArrayDeque() {
+		IntStack stack = new IntStack();
+		ArrayDeque<Integer> expected = new ArrayDeque<Integer>();
+		for (int step = 0; step < 20000; step++) {
+			int what = random.nextInt(10);
+			if (what < 6) {
+				int item = random.nextInt();
+				stack.push(item);
+				expected.push(item);
+			} else if (what < 9 && !expected.isEmpty()) {
+				assertEquals(expected.peek().intValue(), stack.peek());
+				assertEquals(expected.pop().intValue(), stack.pop());
+			} else if (random.nextInt(50) == 0) {
+				stack.clear();
+				expected.clear();
+			}
+			assertEquals(expected.size(), stack.size());
+			assertEquals(expected.isEmpty(), stack.isEmpty());
+		}
+	}
+
+	@Test
+	public void empty() {
+		IntStack stack = new IntStack();
+		for (int i = 0; i < 100; i++) {
+			stack.push(i);
+		}
+		stack.clear();
+		assertTrue(stack.isEmpty());
+		try {
+			stack.pop();
+			fail("popped an empty stack");
+		} catch (NoSuchElementException e) {
+		}
+		try {
+			stack.peek();
+			fail("peeked at an empty stack");
+		} catch (NoSuchElementException e) {
+		}
+		stack.push(Integer.MIN_VALUE);
+		assertEquals(Integer.MIN_VALUE, stack.pop());
+	}
+}
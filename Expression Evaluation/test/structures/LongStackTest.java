@@ -0,0 +1,58 @@
+package structures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks LongStack, including the positions BracketMatcher packs into it: the position of
+ * an open bracket shifted left one bit, with the low bit set for '['.
+ */
+public class LongStackTest {
+
+	@Test
+	public void packedPositions() {
+		long[] positions = { 0, 1, 65535, 65536, Integer.MAX_VALUE, 1L << 32, 3000000000L, Long.MAX_VALUE >>> 1 };
+		LongStack stack = new LongStack();
+		for (int round = 0; round < 10; round++) {
+			for (int k = 0; k < positions.length; k++) {
+				stack.push(positions[k] << 1 | (k + round) & 1);
+			}
+		}
+		assertEquals(10 * positions.length, stack.size());
+		for (int round = 9; round >= 0; round--) {
+			for (int k = positions.length - 1; k >= 0; k--) {
+				long top = stack.peek();
+				assertEquals(top, stack.pop());
+				assertEquals(positions[k], top >>> 1);
+				assertEquals((k + round) & 1, (int) (top & 1));
+			}
+		}
+		assertTrue(stack.isEmpty());
+	}
+
+	@Test
+	public void empty() {
+		LongStack stack = new LongStack();
+		stack.push(-1);
+		stack.push(Long.MIN_VALUE);
+		stack.clear();
+		assertTrue(stack.isEmpty());
+		try {
+			stack.pop();
+			fail("popped an empty stack");
+		} catch (NoSuchElementException e) {
+		}
+		try {
+			stack.peek();
+			fail("peeked at an empty stack");
+		} catch (NoSuchElementException e) {
+		}
+		stack.push(7);
+		assertEquals(7, stack.pop());
+	}
+}
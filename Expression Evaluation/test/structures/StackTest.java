@@ -0,0 +1,76 @@
+package structures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the array-backed Stack against java.util.ArrayDeque used as a stack, through
+ * growth, clear and empty pops.
+ */
+public class StackTest {
+
+	private final Random random = new Random(5);
+
+	@Test
+	public void matchesArrayDeque() {
+		Stack<String> stack = new Stack<String>();
+		ArrayDeque<String> expected = new ArrayDeque<String>();
+		for (int step = 0; step < 20000; step++) {
+			int what = random.nextInt(10);
+			if (what < 6) {
+				String item = "item" + step;
+				stack.push(item);
+				expected.push(item);
+			} else if (what < 9 && !expected.isEmpty()) {
+				assertSame(expected.peek(), stack.peek());
+				assertSame(expected.pop(), stack.pop());
+			} else if (random.nextInt(50) == 0) {
+				stack.clear();
+				expected.clear();
+			}
+			assertEquals(expected.size(), stack.size());
+			assertEquals(expected.isEmpty(), stack.isEmpty());
+		}
+	}
+
+	@Test
+	public void nullItems() {
+		Stack<Object> stack = new Stack<Object>();
+		stack.push(null);
+		assertEquals(1, stack.size());
+		assertNull(stack.peek());
+		assertNull(stack.pop());
+		assertTrue(stack.isEmpty());
+	}
+
+	@Test
+	public void empty() {
+		Stack<Integer> stack = new Stack<Integer>();
+		for (int i = 0; i < 100; i++) {
+			stack.push(i);
+		}
+		stack.clear();
+		assertTrue(stack.isEmpty());
+		try {
+			stack.pop();
+			fail("popped an empty stack");
+		} catch (NoSuchElementException e) {
+		}
+		try {
+			stack.peek();
+			fail("peeked at an empty stack");
+		} catch (NoSuchElementException e) {
+		}
+		stack.push(7);
+		assertEquals(Integer.valueOf(7), stack.pop());
+	}
+}
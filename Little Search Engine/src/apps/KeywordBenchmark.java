@@ -0,0 +1,121 @@
+package apps;
+
+import search.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Compares reading the keywords of a large document with Scanner and getKeyWord, one String
+ * per word, against loadKeyWords. The document is AliceCh1.txt and WowCh1.txt repeated
+ * until it reaches the size given in megabytes as the first argument (1024 if none), and
+ * is written to the temporary directory. Run from the project directory so the text files
+ * are found.
+ */
+public class KeywordBenchmark {
+
+	/**
+	 * Number of timed rounds of each reader
+	 */
+	static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException {
+		long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+		File doc = File.createTempFile("keywords", ".txt");
+		doc.deleteOnExit();
+		write(doc, megabytes << 20, "AliceCh1.txt", "WowCh1.txt");
+		System.out.println(doc + ": " + (doc.length() >> 20) + " MB");
+
+		LittleSearchEngine engine = new LittleSearchEngine();
+		engine.makeIndex("docs.txt", "noisewords.txt");
+		for (int i = 0; i < 20; i++) {
+			scan(engine, "AliceCh1.txt");
+			engine.loadKeyWords("WowCh1.txt");
+		}
+
+		HashMap<String,Integer> expected = null;
+		for (int round = 0; round < ROUNDS; round++) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			HashMap<String,Integer> counts = scan(engine, doc.getPath());
+			report("Scanner + getKeyWord", doc, start, allocated, counts.size());
+			expected = counts;
+
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			HashMap<String,?> kws = engine.loadKeyWords(doc.getPath());
+			report("loadKeyWords", doc, start, allocated, kws.size());
+			if (!kws.keySet().equals(expected.keySet())) {
+				System.out.println("\tkeywords differ from Scanner + getKeyWord");
+			}
+		}
+	}
+
+	/**
+	 * Reads the keywords of a document the way loadKeyWords used to.
+	 */
+	static HashMap<String,Integer> scan(LittleSearchEngine engine, String docFile)
+	throws FileNotFoundException {
+		HashMap<String,Integer> counts = new HashMap<String,Integer>();
+		Scanner sc = new Scanner(new File(docFile));
+		while (sc.hasNext()) {
+			String word = engine.getKeyWord(sc.next());
+			if (word != null) {
+				Integer n = counts.get(word);
+				counts.put(word, n == null ? 1 : n + 1);
+			}
+		}
+		sc.close();
+		return counts;
+	}
+
+	/**
+	 * Writes the given files over and over to a document until it has at least size bytes.
+	 */
+	static void write(File doc, long size, String... sources)
+	throws IOException {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		for (String source : sources) {
+			InputStream in = new FileInputStream(source);
+			try {
+				byte[] buf = new byte[8192];
+				for (int n; (n = in.read(buf)) > 0; ) {
+					text.write(buf, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			text.write('\n');
+		}
+		byte[] bytes = text.toByteArray();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(doc), 1 << 20);
+		try {
+			for (long written = 0; written < size; written += bytes.length) {
+				out.write(bytes);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	static void report(String reader, File doc, long start, long allocated, int keywords) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long garbage = allocatedBytes() - allocated;
+		System.out.printf("%-22s %8.2f s %8.1f MB/s %10.1f MB allocated %6d keywords%n", reader,
+				seconds, (doc.length() >> 20) / seconds, garbage / 1048576.0, keywords);
+	}
+
+	/**
+	 * Returns the bytes allocated by this thread so far, or 0 if the JVM does not count them.
+	 */
+	static long allocatedBytes() {
+		try {
+			com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		} catch (ClassCastException e) {
+			return 0;
+		}
+	}
+}
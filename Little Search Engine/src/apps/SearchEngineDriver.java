@@ -10,14 +10,25 @@ public class SearchEngineDriver {
 	static BufferedReader keyboard = new BufferedReader(new InputStreamReader(System.in));
 	
 	public static void main(String[] args) throws IOException {
-		System.out.print("Enter document file name => ");
-		String document = keyboard.readLine();
-		System.out.print("Enter noisewords file name => ");
-		String noiseWords = keyboard.readLine();
+		System.out.print("Enter index file name, or hit return to index without saving => ");
+		String index = keyboard.readLine();
 		
-		LittleSearchEngine engine = new LittleSearchEngine();
-		
-		engine.makeIndex(document, noiseWords);
+		LittleSearchEngine engine;
+		if (index.length() > 0 && new File(index).exists()) {
+			engine = new LittleSearchEngine(index);
+		} else {
+			System.out.print("Enter document file name => ");
+			String document = keyboard.readLine();
+			System.out.print("Enter noisewords file name => ");
+			String noiseWords = keyboard.readLine();
+			
+			engine = new LittleSearchEngine();
+			
+			engine.makeIndex(document, noiseWords, Runtime.getRuntime().availableProcessors());
+			if (index.length() > 0) {
+				engine.saveIndex(index);
+			}
+		}
 		
 		String quit = "";
 		
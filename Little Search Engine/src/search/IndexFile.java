@@ -0,0 +1,377 @@
+package search;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * An index saved by LittleSearchEngine.saveIndex: the noise words, the document names, a
+ * dictionary of keywords sorted by their UTF-8 bytes, and the posting list of each keyword.
+ * All ints are big-endian; varints are 7 bits per byte, low bits first:
+ *
+ * <pre>
+ * file     := MAGIC VERSION noiseCount documentCount termCount
+ *             noiseOffset documentOffset{documentCount} term{termCount}
+ *             text... postings...
+ * term     := textOffset postingsOffset postingCount
+ * text     := varint length, then that many bytes of UTF-8
+ * postings := (varint frequencyDrop, varint zigzag documentDelta){postingCount}
+ * </pre>
+ *
+ * Noise words are noiseCount texts starting at noiseOffset, and documents are numbered in
+ * the order of the offsets of their names. A posting list is in the order of the keyword's
+ * Occurrence list, so frequencies do not go up: the first is stored as it is and each of
+ * the others as how much it drops from the previous one, and each document number as the
+ * difference from the previous one. Opening the file maps it and reads only the header and
+ * noise words; a keyword's posting list is found by binary search of the dictionary and
+ * decoded when it is first asked for.
+ */
+class IndexFile {
+
+	/**
+	 * First int of every index file ("LSEI")
+	 */
+	static final int MAGIC = 0x4C534549;
+
+	/**
+	 * Format version
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * Bytes in the header, and in a dictionary entry
+	 */
+	static final int HEADER = 24, TERM = 12;
+
+	private final String name;
+	private final ByteBuffer in;
+	private final int noiseCount, documentCount, termCount, terms;
+
+	/**
+	 * Document names read so far, by number
+	 */
+	private final String[] documents;
+
+	/**
+	 * Opens an index file.
+	 *
+	 * @param f Index file
+	 * @throws IOException If the file cannot be read or is not an index file
+	 */
+	IndexFile(File f)
+	throws IOException {
+		name = f.getPath();
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(name + " is too large for an index file");
+			}
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+		if (in.capacity() < HEADER || in.getInt(0) != MAGIC || in.getInt(4) != VERSION) {
+			throw new IOException(name + " is not an index file");
+		}
+		noiseCount = in.getInt(8);
+		documentCount = in.getInt(12);
+		termCount = in.getInt(16);
+		if ((noiseCount | documentCount | termCount) < 0
+				|| HEADER + 4L * documentCount + (long) TERM * termCount > in.capacity()) {
+			throw new IOException(name + " is truncated");
+		}
+		terms = HEADER + 4 * documentCount;
+		documents = new String[documentCount];
+	}
+
+	/**
+	 * Reads the noise words.
+	 *
+	 * @return Noise words, each mapped to itself
+	 * @throws IOException If the file is corrupt
+	 */
+	HashMap<String,String> noiseWords()
+	throws IOException {
+		try {
+			HashMap<String,String> words = new HashMap<String,String>(100,2.0f);
+			int at = in.getInt(20);
+			for (int i = 0; i < noiseCount; i++) {
+				int n = varint(at);
+				at = skip(at);
+				String word = text(at, n);
+				words.put(word, word);
+				at += n;
+			}
+			return words;
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException(name + " is truncated");
+		}
+	}
+
+	/**
+	 * Reads the posting list of a keyword.
+	 *
+	 * @param keyword Keyword, in lower case
+	 * @return Occurrences of the keyword, in decreasing frequency; null if it is not in the index
+	 * @throws IllegalStateException If the dictionary or the posting list is corrupt
+	 */
+	ArrayList<Occurrence> postings(String keyword) {
+		byte[] key = utf8(keyword);
+		int lo = 0, hi = termCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c;
+			try {
+				c = compare(mid, key);
+			} catch (IndexOutOfBoundsException e) {
+				throw new IllegalStateException(name + " is corrupt");
+			}
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return postings(mid);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds every keyword of the file that is not in an index yet to it.
+	 *
+	 * @param index Index to fill
+	 * @throws IllegalStateException If the dictionary or a posting list is corrupt
+	 */
+	void readAll(HashMap<String,ArrayList<Occurrence>> index) {
+		for (int t = 0; t < termCount; t++) {
+			String keyword;
+			try {
+				int at = in.getInt(terms + TERM * t);
+				keyword = text(skip(at), varint(at));
+			} catch (IndexOutOfBoundsException e) {
+				throw new IllegalStateException(name + " is corrupt");
+			}
+			if (!index.containsKey(keyword)) {
+				index.put(keyword, postings(t));
+			}
+		}
+	}
+
+	/**
+	 * Writes an index file.
+	 *
+	 * @param index Keywords index, each list in decreasing frequency
+	 * @param noiseWords Noise words
+	 * @param out Index file to write
+	 * @throws IOException If there is a problem writing the file
+	 */
+	static void write(HashMap<String,ArrayList<Occurrence>> index, HashMap<String,String> noiseWords, File out)
+	throws IOException {
+		/* Dictionary order is by UTF-8 bytes, the order postings(String) searches in */
+		byte[][] keys = new byte[index.size()][];
+		String[] keywords = new String[keys.length];
+		int k = 0;
+		for (String keyword : index.keySet()) {
+			keys[k] = utf8(keyword);
+			keywords[k++] = keyword;
+		}
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final byte[][] sortKeys = keys;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return IndexFile.compare(sortKeys[a], sortKeys[b]);
+			}
+		});
+
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		ByteArrayOutputStream postings = new ByteArrayOutputStream();
+		HashMap<String,Integer> numbers = new HashMap<String,Integer>();
+		ArrayList<String> documents = new ArrayList<String>();
+		int[] textOffsets = new int[keys.length], postingsOffsets = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			int t = order[i];
+			textOffsets[i] = text.size();
+			writeText(text, keys[t]);
+			postingsOffsets[i] = postings.size();
+			int frequency = 0, document = 0;
+			boolean first = true;
+			for (Occurrence o : index.get(keywords[t])) {
+				Integer number = numbers.get(o.document);
+				if (number == null) {
+					number = documents.size();
+					numbers.put(o.document, number);
+					documents.add(o.document);
+				}
+				writeVarint(postings, first ? o.frequency : frequency - o.frequency);
+				int delta = number - document;
+				writeVarint(postings, (delta << 1) ^ (delta >> 31));
+				frequency = o.frequency;
+				document = number;
+				first = false;
+			}
+		}
+		int noiseOffset = text.size();
+		for (String word : noiseWords.keySet()) {
+			writeText(text, utf8(word));
+		}
+		int[] documentOffsets = new int[documents.size()];
+		for (int d = 0; d < documentOffsets.length; d++) {
+			documentOffsets[d] = text.size();
+			writeText(text, utf8(documents.get(d)));
+		}
+
+		long base = HEADER + 4L * documentOffsets.length + (long) TERM * keys.length;
+		if (base + text.size() + postings.size() > Integer.MAX_VALUE) {
+			throw new IOException("index is too large for an index file");
+		}
+		int textBase = (int) base, postingsBase = textBase + text.size();
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(noiseWords.size());
+			dos.writeInt(documentOffsets.length);
+			dos.writeInt(keys.length);
+			dos.writeInt(textBase + noiseOffset);
+			for (int offset : documentOffsets) {
+				dos.writeInt(textBase + offset);
+			}
+			for (int i = 0; i < keys.length; i++) {
+				dos.writeInt(textBase + textOffsets[i]);
+				dos.writeInt(postingsBase + postingsOffsets[i]);
+				dos.writeInt(index.get(keywords[order[i]]).size());
+			}
+			text.writeTo(dos);
+			postings.writeTo(dos);
+		} finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Decodes the posting list of the t'th keyword of the dictionary.
+	 */
+	private ArrayList<Occurrence> postings(int t) {
+		try {
+			int at = in.getInt(terms + TERM * t + 4);
+			int count = in.getInt(terms + TERM * t + 8);
+			ArrayList<Occurrence> occs = new ArrayList<Occurrence>(count);
+			int frequency = 0, document = 0;
+			for (int i = 0; i < count; i++) {
+				int drop = varint(at);
+				at = skip(at);
+				int delta = varint(at);
+				at = skip(at);
+				frequency = i == 0 ? drop : frequency - drop;
+				document += (delta >>> 1) ^ -(delta & 1);
+				occs.add(new Occurrence(document(document), frequency));
+			}
+			return occs;
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalStateException(name + " is corrupt");
+		}
+	}
+
+	/**
+	 * Returns the name of a document, reading it the first time.
+	 */
+	private String document(int d) {
+		String doc = documents[d];
+		if (doc == null) {
+			int at = in.getInt(HEADER + 4 * d);
+			doc = text(skip(at), varint(at));
+			documents[d] = doc;
+		}
+		return doc;
+	}
+
+	/**
+	 * Compares the t'th keyword of the dictionary with a key, both as UTF-8 bytes.
+	 */
+	private int compare(int t, byte[] key) {
+		int at = in.getInt(terms + TERM * t);
+		int n = varint(at);
+		at = skip(at);
+		for (int i = 0; i < n && i < key.length; i++) {
+			int c = (in.get(at + i) & 0xFF) - (key[i] & 0xFF);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return n - key.length;
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * Reads the varint at a given offset.
+	 */
+	private int varint(int at) {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get(at++);
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset just past the varint at a given offset.
+	 */
+	private int skip(int at) {
+		while (in.get(at++) < 0);
+		return at;
+	}
+
+	/**
+	 * Reads n bytes of UTF-8 text at a given offset.
+	 */
+	private String text(int at, int n) {
+		byte[] bytes = new byte[n];
+		for (int i = 0; i < n; i++) {
+			bytes[i] = in.get(at + i);
+		}
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeText(ByteArrayOutputStream out, byte[] bytes) {
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write(value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+}
@@ -0,0 +1,454 @@
+package search;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Reads the keywords of a document straight from its bytes, for loadKeyWords. The file is
+ * read through a FileChannel (mapped into memory a window at a time if it is large), and
+ * each byte is classified by a lookup table as white space, a letter, punctuation or
+ * anything else, and lower-cased into a word buffer. When a word ends, the keyword test of
+ * getKeyWord is decided from the classes seen, noise words are looked up by their bytes,
+ * and keywords are counted in a table keyed by bytes, so the only Strings made are one per
+ * distinct keyword of the document. A word with bytes outside ASCII is decoded as Scanner
+ * would and passed to getKeyWord.
+ *
+ * Each thread has its own reader, so the buffers are reused from one document to the next.
+ */
+class KeywordReader {
+
+	/**
+	 * Byte classes
+	 */
+	static final byte OTHER = 0, SPACE = 1, LETTER = 2, PUNCTUATION = 3, HIGH = 4;
+
+	/**
+	 * Class of each byte value, and its ASCII lower case
+	 */
+	static final byte[] CLASS = new byte[256];
+	static final byte[] LOWER = new byte[256];
+	static {
+		for (int b = 0; b < 256; b++) {
+			LOWER[b] = (byte) b;
+			if (b >= 0x80) {
+				CLASS[b] = HIGH;
+			} else if (Character.isWhitespace((char) b)) {
+				CLASS[b] = SPACE;
+			} else if (b >= 'a' && b <= 'z') {
+				CLASS[b] = LETTER;
+			} else if (b >= 'A' && b <= 'Z') {
+				CLASS[b] = LETTER;
+				LOWER[b] = (byte) (b + 'a' - 'A');
+			} else if (".,?:;!".indexOf(b) >= 0) {
+				CLASS[b] = PUNCTUATION;
+			}
+		}
+	}
+
+	/**
+	 * Charset Scanner decodes documents with
+	 */
+	static final Charset CHARSET = Charset.defaultCharset();
+
+	/**
+	 * Whether documents can be read a byte at a time: the default charset encodes ASCII as
+	 * ASCII, and the default locale lower-cases ASCII letters to ASCII letters. If not,
+	 * loadKeyWords goes through Scanner and getKeyWord.
+	 */
+	static final boolean USABLE = usable();
+
+	/**
+	 * Files up to this size are read into a buffer; larger ones are mapped
+	 */
+	static final int BUFFER = 1 << 16;
+
+	/**
+	 * Size of the windows a large file is mapped in
+	 */
+	static final int WINDOW = 1 << 28;
+
+	/**
+	 * State of the word being read: still in its leading letters, past its first
+	 * punctuation with no letter since, or not a keyword
+	 */
+	private static final int LEADING = 0, TRAILING = 1, REJECTED = 2;
+
+	private static final ThreadLocal<KeywordReader> READERS = new ThreadLocal<KeywordReader>() {
+		protected KeywordReader initialValue() {
+			return new KeywordReader();
+		}
+	};
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+	private final WordTable keywords = new WordTable();
+	private byte[] word = new byte[64];
+	private int length, letters, state;
+	private boolean high;
+
+	/* Per document */
+	private LittleSearchEngine engine;
+	private WordTable noise;
+	private String docFile;
+	private HashMap<String,Occurrence> decoded;
+
+	/**
+	 * Loads all keywords of a document, as loadKeyWords does.
+	 *
+	 * @param engine Search engine whose noise words and getKeyWord are used
+	 * @param docFile Name of the document file to be scanned
+	 * @return Hash table of keywords in the given document, each associated with an Occurrence object
+	 * @throws FileNotFoundException If the document file is not found on disk
+	 */
+	static HashMap<String,Occurrence> read(LittleSearchEngine engine, String docFile)
+	throws FileNotFoundException {
+		return READERS.get().load(engine, docFile);
+	}
+
+	private HashMap<String,Occurrence> load(LittleSearchEngine engine, String docFile)
+	throws FileNotFoundException {
+		this.engine = engine;
+		this.noise = engine.noiseTable();
+		this.docFile = docFile;
+		RandomAccessFile file = new RandomAccessFile(docFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size <= BUFFER) {
+				buffer.clear();
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+				scan(buffer, buffer.position());
+			} else {
+				for (long at = 0; at < size; at += WINDOW) {
+					int n = (int) Math.min(WINDOW, size - at);
+					scan(channel.map(FileChannel.MapMode.READ_ONLY, at, n), n);
+				}
+			}
+			if (length > 0) {
+				endWord();
+			}
+
+			HashMap<String,Occurrence> kws = new HashMap<String,Occurrence>(keywords.size() * 4 / 3 + 1);
+			for (int i = 0; i < keywords.size(); i++) {
+				kws.put(keywords.word(i), keywords.occurrence(i));
+			}
+			if (decoded != null) {
+				kws.putAll(decoded);
+			}
+			return kws;
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read " + docFile, e);
+		} finally {
+			try {
+				file.close();
+			} catch (IOException e) {
+				/* Nothing was written; the keywords read are still good */
+			}
+			keywords.clear();
+			length = 0;
+			this.engine = null;
+			this.noise = null;
+			this.docFile = null;
+			decoded = null;
+		}
+	}
+
+	/**
+	 * Reads the first n bytes of a buffer, ending each word at white space.
+	 */
+	private void scan(ByteBuffer in, int n) {
+		for (int i = 0; i < n; i++) {
+			int b = in.get(i) & 0xFF;
+			byte c = CLASS[b];
+			if (c == SPACE) {
+				if (length > 0) {
+					endWord();
+				}
+				continue;
+			}
+			if (length == 0) {
+				letters = 0;
+				state = LEADING;
+				high = false;
+			} else if (length == word.length) {
+				word = Arrays.copyOf(word, length * 2);
+			}
+			word[length++] = LOWER[b];
+			if (c == LETTER) {
+				if (state == LEADING) {
+					letters++;
+				} else if (state == TRAILING) {
+					state = REJECTED;
+				}
+			} else if (c == HIGH) {
+				high = true;
+			} else if (state == LEADING) {
+				state = c == PUNCTUATION ? TRAILING : REJECTED;
+			}
+		}
+	}
+
+	/**
+	 * Counts the word in the buffer if it is a keyword.
+	 */
+	private void endWord() {
+		int n = length;
+		length = 0;
+		if (high) {
+			decode(n);
+			return;
+		}
+		if (state == REJECTED || letters == 0) {
+			return;
+		}
+		int h = WordTable.hash(word, letters);
+		if (noise.find(word, letters, h) >= 0) {
+			return;
+		}
+		int i = keywords.find(word, letters, h);
+		if (i >= 0) {
+			keywords.occurrence(i).frequency++;
+		} else {
+			keywords.add(word, letters, h, new Occurrence(docFile, 1));
+		}
+	}
+
+	/**
+	 * Decodes a word with bytes outside ASCII, splits it at any white space that is not
+	 * ASCII, and counts each part that getKeyWord accepts.
+	 */
+	private void decode(int n) {
+		String text = new String(word, 0, n, CHARSET);
+		int start = 0;
+		for (int i = 0; i <= text.length(); i++) {
+			if (i < text.length() && !Character.isWhitespace(text.charAt(i))) {
+				continue;
+			}
+			if (i > start) {
+				String kw = engine.getKeyWord(text.substring(start, i));
+				if (kw != null) {
+					count(kw);
+				}
+			}
+			start = i + 1;
+		}
+	}
+
+	/**
+	 * Counts a keyword returned by getKeyWord.
+	 */
+	private void count(String kw) {
+		boolean ascii = true;
+		for (int i = 0; i < kw.length() && ascii; i++) {
+			ascii = kw.charAt(i) < 0x80;
+		}
+		if (ascii) {
+			/* Same table as the words read a byte at a time */
+			byte[] bytes = new byte[kw.length()];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) kw.charAt(i);
+			}
+			int h = WordTable.hash(bytes, bytes.length);
+			int i = keywords.find(bytes, bytes.length, h);
+			if (i >= 0) {
+				keywords.occurrence(i).frequency++;
+			} else {
+				keywords.add(bytes, bytes.length, h, new Occurrence(docFile, 1));
+			}
+			return;
+		}
+		if (decoded == null) {
+			decoded = new HashMap<String,Occurrence>();
+		}
+		Occurrence o = decoded.get(kw);
+		if (o == null) {
+			decoded.put(kw, new Occurrence(docFile, 1));
+		} else {
+			o.frequency++;
+		}
+	}
+
+	/**
+	 * Returns a table of the noise words that are all ASCII. Others can only match words
+	 * that are decoded, and getKeyWord looks those up in the noise words hash table.
+	 *
+	 * @param noiseWords Noise words
+	 * @return Table of noise words
+	 */
+	static WordTable noiseTable(HashMap<String,String> noiseWords) {
+		WordTable table = new WordTable();
+		byte[] bytes = new byte[16];
+		for (String w : noiseWords.keySet()) {
+			if (w.length() > bytes.length) {
+				bytes = new byte[w.length()];
+			}
+			int i = 0;
+			while (i < w.length() && w.charAt(i) < 0x80) {
+				bytes[i] = (byte) w.charAt(i);
+				i++;
+			}
+			if (i == w.length()) {
+				table.add(bytes, i, WordTable.hash(bytes, i), null);
+			}
+		}
+		table.sources = noiseWords.size();
+		return table;
+	}
+
+	private static boolean usable() {
+		ByteBuffer ascii = CHARSET.encode(CharBuffer.wrap(new char[] { 'A', 'z', '.', ' ', '\n', '~' }));
+		if (ascii.remaining() != 6 || ascii.get(0) != 'A' || ascii.get(1) != 'z' || ascii.get(2) != '.'
+				|| ascii.get(3) != ' ' || ascii.get(4) != '\n' || ascii.get(5) != '~') {
+			return false;
+		}
+		String letters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+		String lower = letters.toLowerCase();
+		for (int i = 0; i < letters.length(); i++) {
+			if (lower.length() != letters.length() || lower.charAt(i) != (char) LOWER[letters.charAt(i)]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Open-addressing hash table of words given as ASCII bytes, each with an Occurrence.
+	 * Entries are numbered in the order they were added; the bytes of all words are kept
+	 * in one array, and a word's String is made when it is added.
+	 */
+	static class WordTable {
+
+		private int[] slots = new int[64];
+		private int[] hashes = new int[32], starts = new int[32], lengths = new int[32];
+		private String[] words = new String[32];
+		private Occurrence[] occurrences = new Occurrence[32];
+		private byte[] bytes = new byte[256];
+		private int size, used;
+
+		/**
+		 * Size of the noise words table this was built from
+		 */
+		int sources;
+
+		/**
+		 * Returns the hash of a word, which is also the hashCode of its String.
+		 */
+		static int hash(byte[] w, int n) {
+			int h = 0;
+			for (int i = 0; i < n; i++) {
+				h = 31 * h + w[i];
+			}
+			return h;
+		}
+
+		int size() {
+			return size;
+		}
+
+		String word(int i) {
+			return words[i];
+		}
+
+		Occurrence occurrence(int i) {
+			return occurrences[i];
+		}
+
+		/**
+		 * Returns the number of the entry for the first n bytes of w, or -1 if there is none.
+		 */
+		int find(byte[] w, int n, int h) {
+			int mask = slots.length - 1;
+			for (int s = spread(h) & mask; slots[s] != 0; s = (s + 1) & mask) {
+				int i = slots[s] - 1;
+				if (hashes[i] == h && lengths[i] == n && same(w, n, starts[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Adds an entry for the first n bytes of w, which must not be in the table yet.
+		 */
+		void add(byte[] w, int n, int h, Occurrence o) {
+			if (size == hashes.length) {
+				hashes = Arrays.copyOf(hashes, size * 2);
+				starts = Arrays.copyOf(starts, size * 2);
+				lengths = Arrays.copyOf(lengths, size * 2);
+				words = Arrays.copyOf(words, size * 2);
+				occurrences = Arrays.copyOf(occurrences, size * 2);
+			}
+			if (used + n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + n));
+			}
+			System.arraycopy(w, 0, bytes, used, n);
+			char[] chars = new char[n];
+			for (int k = 0; k < n; k++) {
+				chars[k] = (char) w[k];
+			}
+			hashes[size] = h;
+			starts[size] = used;
+			lengths[size] = n;
+			words[size] = new String(chars);
+			occurrences[size] = o;
+			used += n;
+			size++;
+			if (size * 2 > slots.length) {
+				slots = new int[slots.length * 2];
+				for (int i = 0; i < size; i++) {
+					place(i);
+				}
+			} else {
+				place(size - 1);
+			}
+		}
+
+		/**
+		 * Empties the table, keeping its arrays.
+		 */
+		void clear() {
+			if (size * 16 < slots.length) {
+				/* Few entries in a table grown by an earlier large document */
+				int mask = slots.length - 1;
+				for (int i = 0; i < size; i++) {
+					int s = spread(hashes[i]) & mask;
+					while (slots[s] != i + 1) {
+						s = (s + 1) & mask;
+					}
+					slots[s] = 0;
+				}
+			} else {
+				Arrays.fill(slots, 0);
+			}
+			Arrays.fill(words, 0, size, null);
+			Arrays.fill(occurrences, 0, size, null);
+			size = 0;
+			used = 0;
+		}
+
+		private void place(int i) {
+			int mask = slots.length - 1;
+			int s = spread(hashes[i]) & mask;
+			while (slots[s] != 0) {
+				s = (s + 1) & mask;
+			}
+			slots[s] = i + 1;
+		}
+
+		private boolean same(byte[] w, int n, int start) {
+			for (int k = 0; k < n; k++) {
+				if (bytes[start + k] != w[k]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int spread(int h) {
+			h ^= h >>> 16;
+			return h * 0x9E3779B1;
+		}
+	}
+}
@@ -2,44 +2,7 @@ package search;
 
 import java.io.*;
 import java.util.*;
-
-/**
- * This class encapsulates an occurrence of a keyword in a document. It stores the
- * document name, and the frequency of occurrence in that document. Occurrences are
- * associated with keywords in an index hash table.
- * 
- * @author Sesh Venugopal
- * 
- */
-class Occurrence {
-	/**
-	 * Document in which a keyword occurs.
-	 */
-	String document;
-	
-	/**
-	 * The frequency (number of times) the keyword occurs in the above document.
-	 */
-	int frequency;
-	
-	/**
-	 * Initializes this occurrence with the given document,frequency pair.
-	 * 
-	 * @param doc Document name
-	 * @param freq Frequency
-	 */
-	public Occurrence(String doc, int freq) {
-		document = doc;
-		frequency = freq;
-	}
-	
-	/* (non-Javadoc)
-	 * @see java.lang.Object#toString()
-	 */
-	public String toString() {
-		return "(" + document + "," + frequency + ")";
-	}
-}
+import java.util.concurrent.*;
 
 /**
  * This class builds an index of keywords. Each keyword maps to a set of documents in
@@ -61,6 +24,25 @@ public class LittleSearchEngine {
 	 */
 	HashMap<String,String> noiseWords;
 	
+	/**
+	 * The noise words as KeywordReader looks them up, built when first needed.
+	 */
+	private volatile KeywordReader.WordTable noiseTable;
+	
+	/**
+	 * The index file this engine was opened from, while some of its keywords are not in
+	 * keywordsIndex yet; null once they all are.
+	 */
+	private IndexFile indexFile;
+	
+	/**
+	 * The keywords of each indexed document, with their occurrences, so that a document can
+	 * be removed without searching every list. Built from keywordsIndex the first time a
+	 * single document is added, updated or removed, and kept up to date by mergeKeyWords;
+	 * null until then, and again after a parallel makeIndex.
+	 */
+	private HashMap<String,HashMap<String,Occurrence>> documentKeyWords;
+	
 	/**
 	 * Creates the keyWordsIndex and noiseWords hash tables.
 	 */
@@ -69,6 +51,68 @@ public class LittleSearchEngine {
 		noiseWords = new HashMap<String,String>(100,2.0f);
 	}
 	
+	/**
+	 * Opens an index saved by saveIndex, instead of indexing the documents again. The file is
+	 * mapped into memory and only its noise words are read; the occurrences of a keyword are
+	 * read from it the first time the keyword is searched for, so opening takes about the
+	 * same time however large the index is. Changing the index (makeIndex or mergeKeyWords)
+	 * reads the rest of it first.
+	 * 
+	 * @param indexFile Name of the index file
+	 * @throws IOException If the file cannot be read or is not an index file
+	 */
+	public LittleSearchEngine(String indexFile) 
+	throws IOException {
+		this();
+		IndexFile file = new IndexFile(new File(indexFile));
+		noiseWords.putAll(file.noiseWords());
+		this.indexFile = file;
+	}
+	
+	/**
+	 * Saves the keywords index and the noise words to an index file, which a new engine can
+	 * open with LittleSearchEngine(indexFile). Keywords are stored in a dictionary sorted for
+	 * binary search, and each one's occurrences as a list of varints: document numbers and
+	 * frequencies, each as the difference from the previous occurrence.
+	 * 
+	 * @param indexFile Name of the index file to write
+	 * @throws IOException If there is a problem writing the file
+	 */
+	public void saveIndex(String indexFile) 
+	throws IOException {
+		readIndexFile();
+		IndexFile.write(keywordsIndex, noiseWords, new File(indexFile));
+	}
+	
+	/**
+	 * Returns the occurrences of a keyword, reading them from the index file this engine was
+	 * opened from if they are not in keywordsIndex yet.
+	 * 
+	 * @param keyword Keyword, in lower case
+	 * @return Occurrences in decreasing frequency, or null if the keyword is not in the index
+	 */
+	ArrayList<Occurrence> occurrences(String keyword) {
+		ArrayList<Occurrence> occs = keywordsIndex.get(keyword);
+		if (occs == null && indexFile != null) {
+			occs = indexFile.postings(keyword);
+			if (occs != null) {
+				keywordsIndex.put(keyword, occs);
+			}
+		}
+		return occs;
+	}
+	
+	/**
+	 * Reads every keyword of the index file this engine was opened from into keywordsIndex,
+	 * before the index is changed.
+	 */
+	private void readIndexFile() {
+		if (indexFile != null) {
+			indexFile.readAll(keywordsIndex);
+			indexFile = null;
+		}
+	}
+	
 	/**
 	 * This method indexes all keywords found in all the input documents. When this
 	 * method is done, the keywordsIndex hash table will be filled with all keywords,
@@ -81,6 +125,8 @@ public class LittleSearchEngine {
 	 */
 	public void makeIndex(String docsFile, String noiseWordsFile) 
 	throws FileNotFoundException {
+		readIndexFile();
+		
 		// load noise words to hash table
 		Scanner sc = new Scanner(new File(noiseWordsFile));
 		while (sc.hasNext()) {
@@ -97,9 +143,156 @@ public class LittleSearchEngine {
 		}
 	}
 
+	/**
+	 * Number of stripes the parallel makeIndex splits keywords into, each with its own lock
+	 */
+	static final int STRIPES = 64;
+
+	/**
+	 * Indexes all keywords found in all the input documents, like makeIndex, using the given
+	 * number of threads. Documents are scanned concurrently, one task per document, and each
+	 * document's keywords are appended to the posting lists of a striped table: a keyword
+	 * belongs to one of STRIPES stripes by its hash, and only that stripe is locked while
+	 * the occurrence is added, so threads merging different keywords do not wait for each
+	 * other. When every document is in, each stripe's lists are sorted, also in parallel, in
+	 * decreasing frequency, with ties in the order of the documents in docsFile. Sorting
+	 * each list once replaces the shifting that insertLastOccurrence does per insertion.
+	 * 
+	 * @param docsFile Name of file that has a list of all the document file names, one name per line
+	 * @param noiseWordsFile Name of file that has a list of noise words, one noise word per line
+	 * @param threads Number of threads; 1 or less indexes on the calling thread, as makeIndex does
+	 * @throws FileNotFoundException If there is a problem locating any of the input files on disk
+	 */
+	public void makeIndex(String docsFile, String noiseWordsFile, int threads) 
+	throws FileNotFoundException {
+		if (threads <= 1) {
+			makeIndex(docsFile, noiseWordsFile);
+			return;
+		}
+		readIndexFile();
+		documentKeyWords = null;
+		Scanner sc = new Scanner(new File(noiseWordsFile));
+		while (sc.hasNext()) {
+			String word = sc.next();
+			noiseWords.put(word,word);
+		}
+		
+		/* The position of each document breaks ties between equal frequencies, so the index
+		 * does not depend on which thread finished first */
+		final HashMap<String,Integer> position = new HashMap<String,Integer>();
+		ArrayList<String> docs = new ArrayList<String>();
+		sc = new Scanner(new File(docsFile));
+		while (sc.hasNext()) {
+			String docFile = sc.next();
+			position.put(docFile, docs.size());
+			docs.add(docFile);
+		}
+		
+		final ArrayList<HashMap<String,ArrayList<Occurrence>>> stripes =
+			new ArrayList<HashMap<String,ArrayList<Occurrence>>>(STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes.add(new HashMap<String,ArrayList<Occurrence>>());
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Object>> scans = new ArrayList<Future<Object>>(docs.size());
+			for (final String docFile : docs) {
+				scans.add(pool.submit(new Callable<Object>() {
+					public Object call() throws FileNotFoundException {
+						HashMap<String,Occurrence> kws = loadKeyWords(docFile);
+						for (Map.Entry<String,Occurrence> e : kws.entrySet()) {
+							HashMap<String,ArrayList<Occurrence>> stripe = stripes.get(stripe(e.getKey()));
+							synchronized (stripe) {
+								ArrayList<Occurrence> occs = stripe.get(e.getKey());
+								if (occs == null) {
+									occs = new ArrayList<Occurrence>();
+									stripe.put(e.getKey(), occs);
+								}
+								occs.add(e.getValue());
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			await(scans);
+			
+			final Comparator<Occurrence> order = new Comparator<Occurrence>() {
+				public int compare(Occurrence o1, Occurrence o2) {
+					if (o1.frequency != o2.frequency) {
+						return o1.frequency > o2.frequency ? -1 : 1;
+					}
+					return rank(o1) - rank(o2);
+				}
+				private int rank(Occurrence o) {
+					/* Occurrences already in the index from an earlier makeIndex come first */
+					Integer p = position.get(o.document);
+					return p == null ? -1 : p;
+				}
+			};
+			ArrayList<Future<Object>> sorts = new ArrayList<Future<Object>>(STRIPES);
+			for (final HashMap<String,ArrayList<Occurrence>> stripe : stripes) {
+				final HashMap<String,ArrayList<Occurrence>> index = keywordsIndex;
+				sorts.add(pool.submit(new Callable<Object>() {
+					public Object call() {
+						for (Map.Entry<String,ArrayList<Occurrence>> e : stripe.entrySet()) {
+							ArrayList<Occurrence> occs = e.getValue();
+							ArrayList<Occurrence> old = index.get(e.getKey());
+							if (old != null) {
+								occs.addAll(0, old);
+							}
+							Collections.sort(occs, order);
+						}
+						return null;
+					}
+				}));
+			}
+			await(sorts);
+		} finally {
+			pool.shutdownNow();
+		}
+		for (HashMap<String,ArrayList<Occurrence>> stripe : stripes) {
+			keywordsIndex.putAll(stripe);
+		}
+	}
+	
+	/**
+	 * Returns the stripe a keyword belongs to in the parallel makeIndex.
+	 */
+	static int stripe(String keyword) {
+		int h = keyword.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+	
+	/**
+	 * Waits for tasks of the parallel makeIndex, and rethrows the first failure.
+	 */
+	private static void await(ArrayList<Future<Object>> tasks) 
+	throws FileNotFoundException {
+		try {
+			for (Future<Object> task : tasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while indexing");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof FileNotFoundException) {
+				throw (FileNotFoundException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
 	/**
 	 * Scans a document, and loads all keywords found into a hash table of keyword occurrences
-	 * in the document. Uses the getKeyWord method to separate keywords from other words.
+	 * in the document. Keywords are the words that getKeyWord accepts; they are read from the
+	 * document's bytes by a KeywordReader, which makes no String for words that are not
+	 * keywords and one per distinct keyword.
 	 * 
 	 * @param docFile Name of the document file to be scanned and loaded
 	 * @return Hash table of keywords in the given document, each associated with an Occurrence object
@@ -107,6 +300,9 @@ public class LittleSearchEngine {
 	 */
 	public HashMap<String,Occurrence> loadKeyWords(String docFile) 
 	throws FileNotFoundException {
+		if (KeywordReader.USABLE) {
+			return KeywordReader.read(this, docFile);
+		}
 		
 		HashMap<String,Occurrence> keyWords = new HashMap<String,Occurrence>();
 		
@@ -125,10 +321,24 @@ public class LittleSearchEngine {
 			}
 			
 		}
+		sc.close();
 		
 		return keyWords;
 	}
 	
+	/**
+	 * Returns the noise words as a table keyed by bytes, for KeywordReader. It is built again
+	 * if the number of noise words has changed since.
+	 */
+	KeywordReader.WordTable noiseTable() {
+		KeywordReader.WordTable table = noiseTable;
+		if (table == null || table.sources != noiseWords.size()) {
+			table = KeywordReader.noiseTable(noiseWords);
+			noiseTable = table;
+		}
+		return table;
+	}
+	
 	private void printHashMap (HashMap<String, ArrayList<Occurrence>> hash) {
 		for (String key : hash.keySet()) {
 			System.out.println(key + " " + hash.get(key));
@@ -145,6 +355,16 @@ public class LittleSearchEngine {
 	 * @param kws Keywords hash table for a document
 	 */
 	public void mergeKeyWords(HashMap<String,Occurrence> kws) {
+		readIndexFile();
+		if (documentKeyWords != null && !kws.isEmpty()) {
+			String doc = kws.values().iterator().next().document;
+			HashMap<String,Occurrence> old = documentKeyWords.get(doc);
+			if (old == null) {
+				documentKeyWords.put(doc, new HashMap<String,Occurrence>(kws));
+			} else {
+				old.putAll(kws);
+			}
+		}
 		
 		for (String key: kws.keySet()) {
 			Occurrence o = kws.get(key);
@@ -165,6 +385,120 @@ public class LittleSearchEngine {
 		
 	}
 	
+	/**
+	 * Adds one document to the index. Its keywords are loaded, and each occurrence is
+	 * inserted in place in its keyword's list by insertLastOccurrence, as makeIndex does.
+	 * 
+	 * @param docFile Name of the document file
+	 * @throws FileNotFoundException If the document file is not found on disk
+	 * @throws IllegalArgumentException If the document is already in the index; use updateDocument
+	 */
+	public void addDocument(String docFile) 
+	throws FileNotFoundException {
+		if (documentKeyWords().containsKey(docFile)) {
+			throw new IllegalArgumentException(docFile + " is already indexed");
+		}
+		mergeKeyWords(loadKeyWords(docFile));
+	}
+	
+	/**
+	 * Indexes the current contents of a document: its old occurrences are removed from the
+	 * lists they are in, and the keywords now in the document are inserted. A document that
+	 * is not in the index yet is added. If the file cannot be read, the index is unchanged.
+	 * 
+	 * @param docFile Name of the document file
+	 * @throws FileNotFoundException If the document file is not found on disk
+	 */
+	public void updateDocument(String docFile) 
+	throws FileNotFoundException {
+		HashMap<String,Occurrence> kws = loadKeyWords(docFile);
+		removeDocument(docFile);
+		mergeKeyWords(kws);
+	}
+	
+	/**
+	 * Removes a document from the index. Each of its occurrences is found in its keyword's
+	 * list by binary search on its frequency, and removed; a keyword left with no
+	 * occurrences is removed from the index.
+	 * 
+	 * @param docFile Name of the document file, as it was indexed
+	 * @return True if the document had keywords in the index, false otherwise
+	 */
+	public boolean removeDocument(String docFile) {
+		HashMap<String,Occurrence> kws = documentKeyWords().remove(docFile);
+		if (kws == null) {
+			return false;
+		}
+		for (Map.Entry<String,Occurrence> e : kws.entrySet()) {
+			ArrayList<Occurrence> occs = keywordsIndex.get(e.getKey());
+			if (occs == null) {
+				continue;
+			}
+			int i = indexOf(occs, e.getValue());
+			if (i >= 0) {
+				occs.remove(i);
+				if (occs.isEmpty()) {
+					keywordsIndex.remove(e.getKey());
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the keywords of each indexed document, building the table the first time.
+	 */
+	private HashMap<String,HashMap<String,Occurrence>> documentKeyWords() {
+		readIndexFile();
+		if (documentKeyWords == null) {
+			documentKeyWords = new HashMap<String,HashMap<String,Occurrence>>();
+			for (Map.Entry<String,ArrayList<Occurrence>> e : keywordsIndex.entrySet()) {
+				for (Occurrence o : e.getValue()) {
+					HashMap<String,Occurrence> kws = documentKeyWords.get(o.document);
+					if (kws == null) {
+						kws = new HashMap<String,Occurrence>();
+						documentKeyWords.put(o.document, kws);
+					}
+					kws.put(e.getKey(), o);
+				}
+			}
+		}
+		return documentKeyWords;
+	}
+	
+	/**
+	 * Returns the position of an occurrence in a list in descending order of frequencies,
+	 * or -1 if it is not there. Binary search finds an occurrence of the same frequency,
+	 * and the run of equal frequencies around it is searched for this one.
+	 */
+	private static int indexOf(ArrayList<Occurrence> occs, Occurrence o) {
+		int lo = 0;
+		int hi = occs.size() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) / 2;
+			int f = occs.get(mid).frequency;
+			if (o.frequency > f) {
+				hi = mid - 1;
+			} else if (o.frequency < f) {
+				lo = mid + 1;
+			} else {
+				for (int i = mid; i < occs.size() && occs.get(i).frequency == f; i++) {
+					if (occs.get(i) == o) {
+						return i;
+					}
+				}
+				for (int i = mid - 1; i >= 0 && occs.get(i).frequency == f; i--) {
+					if (occs.get(i) == o) {
+						return i;
+					}
+				}
+				break;
+			}
+		}
+		/* Not where its frequency puts it, e.g. if its frequency was changed */
+		return occs.indexOf(o);
+	}
+	
 	/**
 	 * Given a word, returns it as a keyword if it passes the keyword test,
 	 * otherwise returns null. A keyword is any word that, after being stripped of any
@@ -235,124 +569,154 @@ public class LittleSearchEngine {
 		int hi = occs.size() -2;
 		int mid = (lo + hi) / 2;
 		
+		/* An equal frequency moves the search on past it, so a tie goes after the run of
+		 * equal frequencies, and lists end up in the order the documents were merged in */
 		while (lo <= hi) {
 			mid = (lo + hi) / 2;
-			
+			indices.add(mid);
 			if (o.frequency > occs.get(mid).frequency) {
-				indices.add(mid);
 				hi = mid - 1;
 			}
-			else if (o.frequency < occs.get(mid).frequency) {
-				indices.add(mid);
+			else {
 				lo = mid + 1;
 			}
-			else if (o.frequency == occs.get(mid).frequency) {
-				indices.add(mid);
-				break;
-			}
-						
 		}
 		
-		if(occs.get(mid).frequency <= o.frequency) {
-			for (int i = occs.size()-1; i > mid; i--) {
-				occs.set(i, occs.get(i-1));
-			}
-		
-			occs.set(mid, o);
+		/* lo is just past the last occurrence of higher or equal frequency */
+		int at = lo;
+		for (int i = occs.size()-1; i > at; i--) {
+			occs.set(i, occs.get(i-1));
 		}
+		occs.set(at, o);
 		return indices;
 	}
 	
 	/**
-	 * Search result for "kw1 or kw2". A document is in the result set if kw1 or kw2 occurs in that
-	 * document. Result set is arranged in descending order of occurrence frequencies. (Note that a
-	 * matching document will only appear once in the result.) Ties in frequency values are broken
-	 * in favor of the first keyword. (That is, if kw1 is in doc1 with frequency f1, and kw2 is in doc2
-	 * also with the same frequency f1, then doc1 will appear before doc2 in the result. 
-	 * The result set is limited to 5 entries. If there are no matching documents, the result is null.
+	 * Search result for "kw1 or kw2": the same as topKSearch with the two keywords and k = 5.
+	 * A document is in the result set if kw1 or kw2 occurs in that document; a keyword that
+	 * is not in the index just matches nothing. Result set is arranged in descending order of
+	 * occurrence frequencies, and a matching document only appears once. Ties in frequency
+	 * values are broken in favor of the first keyword. (That is, if kw1 is in doc1 with
+	 * frequency f1, and kw2 is in doc2 also with the same frequency f1, then doc1 will appear
+	 * before doc2 in the result.)
 	 * 
 	 * @param kw1 First keyword
-	 * @param kw1 Second keyword
+	 * @param kw2 Second keyword
 	 * @return List of NAMES of documents in which either kw1 or kw2 occurs, arranged in descending order of
 	 *         frequencies. The result size is limited to 5 documents. If there are no matching documents,
-	 *         the result is null.
+	 *         the result is empty.
 	 */
 	public ArrayList<String> top5search(String kw1, String kw2) {
-		// COMPLETE THIS METHOD
-		// THE FOLLOWING LINE HAS BEEN ADDED TO MAKE THE METHOD COMPILE
-		
-		//Get the ordered arraylists for both keywords
-		//iterate thru both of them
-		//If doc1 > doc2 - if topfive doesn't contain doc1, add doc1. 
-		//increment doc1
-		//If doc2 > doc1 -- if topfive doesn't contain doc2, add doc2.
-		//increment doc2
-		//If doc1 == doc2 -- if topfive doesn't contain doc1, add doc1.
-		//increment both
-		//Do this until arraylists are exhausted or new arraylist has 5 items
-		//Return new arraylist
-		
-		ArrayList<String> topFive = new ArrayList<String>();
-		
-		ArrayList<Occurrence> arrOne = keywordsIndex.get(kw1.toLowerCase());
-		ArrayList<Occurrence> arrTwo = keywordsIndex.get(kw2.toLowerCase());
-		int i = 0;
-		int j = 0;
+		return topKSearch(Arrays.asList(kw1, kw2), 5);
+	}
+	
+	/**
+	 * Search result for "kw1 or kw2 or ...". A document is in the result set if any of the
+	 * keywords occurs in it, and documents are arranged in descending order of the highest
+	 * frequency of any keyword in them. Ties are broken in favor of the keyword that comes
+	 * first in the list, and then by the order of that keyword's occurrences.
+	 * 
+	 * @param keywords Keywords, in any case; repeated keywords count once
+	 * @param k Maximum number of documents in the result
+	 * @return List of NAMES of at most k matching documents; empty if there are none
+	 */
+	public ArrayList<String> topKSearch(List<String> keywords, int k) {
+		return topKSearch(keywords, k, false);
+	}
+	
+	/**
+	 * Search result for "kw1 or kw2 or ..." (as topKSearch(keywords, k)) or, if all is true,
+	 * for "kw1 and kw2 and ...". With all, a document is in the result set only if every
+	 * keyword occurs in it, and documents are arranged in descending order of the LOWEST
+	 * frequency of the keywords in them.
+	 * 
+	 * The occurrence lists of the keywords are merged with a heap holding the next
+	 * occurrence of each list, so the occurrences come out in descending frequency across
+	 * all lists, and the merge stops as soon as k documents are found. A hash table of the
+	 * documents seen so far makes a document appear only once; for "and", it counts the
+	 * keywords seen in each document, and a document is found when its count reaches the
+	 * number of keywords, which is at its lowest frequency.
+	 * 
+	 * @param keywords Keywords, in any case; repeated keywords count once
+	 * @param k Maximum number of documents in the result
+	 * @param all True if every keyword must occur in a document, false if any one may
+	 * @return List of NAMES of at most k matching documents; empty if there are none
+	 */
+	public ArrayList<String> topKSearch(List<String> keywords, int k, boolean all) {
+		ArrayList<String> result = new ArrayList<String>();
 		
-		if (arrOne == null && arrTwo == null)
-			return topFive;
-		else if (arrOne == null) {
-			while (j < arrTwo.size() && topFive.size() < 5)	{
-				topFive.add(arrTwo.get(j).document);
-				j++;
+		/* One list per distinct keyword, numbered in query order for breaking ties */
+		LinkedHashMap<String,ArrayList<Occurrence>> lists = new LinkedHashMap<String,ArrayList<Occurrence>>();
+		for (String kw : keywords) {
+			String key = kw.toLowerCase();
+			if (lists.containsKey(key)) {
+				continue;
 			}
-				
-		}
-		else if (arrTwo == null) {
-			while (i < arrOne.size() && topFive.size() < 5) {
-				topFive.add(arrOne.get(i).document);
-				i++;
+			ArrayList<Occurrence> occs = occurrences(key);
+			if (occs == null && all) {
+				return result;
 			}
-			
+			lists.put(key, occs);
+		}
+		if (k <= 0 || lists.isEmpty()) {
+			return result;
 		}
-		else {	
 		
-			while ((i < arrOne.size() && j  < arrTwo.size()) && topFive.size() < 5) {
-			
-				if (arrOne.get(i).frequency > arrTwo.get(j).frequency) {
-					if (!topFive.contains(arrOne.get(i).document))
-					topFive.add(arrOne.get(i).document);
-					i++;
-				}
-				else if (arrTwo.get(j).frequency > arrOne.get(i).frequency) {
-					if (!topFive.contains(arrTwo.get(j).document))
-					topFive.add(arrTwo.get(j).document);
-				j++;
+		PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(lists.size(), Cursor.ORDER);
+		int term = 0;
+		for (ArrayList<Occurrence> occs : lists.values()) {
+			if (occs != null && !occs.isEmpty()) {
+				heap.add(new Cursor(occs, term));
+			}
+			term++;
+		}
+		int needed = all ? lists.size() : 1;
+		HashMap<String,Integer> seen = new HashMap<String,Integer>();
+		while (!heap.isEmpty() && result.size() < k) {
+			Cursor c = heap.poll();
+			String doc = c.occs.get(c.next).document;
+			Integer count = seen.get(doc);
+			int n = count == null ? 1 : count + 1;
+			if (count == null || all) {
+				seen.put(doc, n);
+				if (n == needed) {
+					result.add(doc);
 				}
-				else if (arrOne.get(i).frequency == arrTwo.get(j).frequency) {
-					if (!topFive.contains(arrOne.get(i).document))
-					topFive.add(arrOne.get(i).document);
-				j++;
 			}
-			
+			if (++c.next < c.occs.size()) {
+				heap.add(c);
 			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Position in the occurrence list of one keyword, for topKSearch.
+	 */
+	private static class Cursor {
 		
-			if (i != arrOne.size()) {
-			while (i < arrOne.size() && topFive.size() < 5) {
-				if(!topFive.contains(arrOne.get(i).document))
-					topFive.add(arrOne.get(i).document);
-				i++;
-			}
-			}
-			else if (j != arrTwo.size()) {
-				while (j < arrTwo.size() && topFive.size() < 5) {
-				if(!topFive.contains(arrTwo.get(j).document))
-					topFive.add(arrTwo.get(j).document);
-				j++;
+		/**
+		 * Orders cursors by the frequency of their next occurrence, highest first, then by
+		 * the position of their keyword in the query
+		 */
+		static final Comparator<Cursor> ORDER = new Comparator<Cursor>() {
+			public int compare(Cursor c1, Cursor c2) {
+				int f1 = c1.occs.get(c1.next).frequency;
+				int f2 = c2.occs.get(c2.next).frequency;
+				if (f1 != f2) {
+					return f1 > f2 ? -1 : 1;
 				}
+				return c1.term - c2.term;
 			}
-		}
+		};
+		
+		final ArrayList<Occurrence> occs;
+		final int term;
+		int next;
 		
-		return topFive;
+		Cursor(ArrayList<Occurrence> occs, int term) {
+			this.occs = occs;
+			this.term = term;
+		}
 	}
 }
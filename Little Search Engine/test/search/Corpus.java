@@ -0,0 +1,166 @@
+package search;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Documents and index comparisons shared by the checks in this folder. Each check is a
+ * program that prints what it compared and exits with status 1 if anything differed. Run
+ * them from the project directory, so the text files are found, for example
+ *
+ * <pre>
+ * javac -d /tmp/lse src/search/*.java test/search/*.java
+ * java -cp /tmp/lse search.ParallelIndexCheck
+ * </pre>
+ */
+class Corpus {
+
+	/**
+	 * Noise words file of the project
+	 */
+	static final String NOISE_WORDS = "noisewords.txt";
+
+	/**
+	 * Number of failed checks so far
+	 */
+	private static int failures = 0;
+
+	/**
+	 * Lines of the sample chapters, read the first time they are needed
+	 */
+	private static ArrayList<String> lines;
+
+	/**
+	 * Counts a failed check, and says what it was.
+	 */
+	static void check(boolean ok, String what) {
+		if (!ok) {
+			failures++;
+			System.out.println("FAILED: " + what);
+		}
+	}
+
+	/**
+	 * Prints the outcome of a check program, and exits with status 1 if anything failed.
+	 */
+	static void finish(String check) {
+		if (failures == 0) {
+			System.out.println(check + ": all checks passed");
+		} else {
+			System.out.println(check + ": " + failures + " checks failed");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Writes documents made of random lines of AliceCh1.txt and WowCh1.txt to a new
+	 * temporary directory, with a docs.txt that lists the first listed of them.
+	 *
+	 * @param count Number of documents, named d0.txt, d1.txt, ...
+	 * @param listed Number of documents listed in docs.txt
+	 * @param random Source of the lines
+	 * @return Directory
+	 */
+	static File write(int count, int listed, Random random)
+	throws IOException {
+		File dir = File.createTempFile("corpus", "");
+		dir.delete();
+		dir.mkdir();
+		PrintWriter list = new PrintWriter(new File(dir, "docs.txt"));
+		try {
+			for (int d = 0; d < count; d++) {
+				File doc = new File(dir, "d" + d + ".txt");
+				writeDocument(doc, random);
+				if (d < listed) {
+					list.println(doc.getPath());
+				}
+			}
+		} finally {
+			list.close();
+		}
+		return dir;
+	}
+
+	/**
+	 * Writes a document of random lines. Every document starts with "zebra", so none is
+	 * without keywords.
+	 */
+	static void writeDocument(File doc, Random random)
+	throws IOException {
+		if (lines == null) {
+			lines = new ArrayList<String>();
+			for (String f : new String[] { "AliceCh1.txt", "WowCh1.txt" }) {
+				BufferedReader in = new BufferedReader(new FileReader(f));
+				try {
+					for (String line; (line = in.readLine()) != null; ) {
+						lines.add(line);
+					}
+				} finally {
+					in.close();
+				}
+			}
+		}
+		PrintWriter out = new PrintWriter(doc);
+		try {
+			out.println("zebra");
+			int n = 1 + random.nextInt(60);
+			for (int i = 0; i < n; i++) {
+				out.println(lines.get(random.nextInt(lines.size())));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns an index with the occurrences of each keyword sorted by document, for
+	 * comparing indexes whose lists may order equal frequencies differently.
+	 */
+	static TreeMap<String,List<String>> canonical(HashMap<String,ArrayList<Occurrence>> index) {
+		TreeMap<String,List<String>> canonical = new TreeMap<String,List<String>>();
+		for (Map.Entry<String,ArrayList<Occurrence>> e : index.entrySet()) {
+			List<String> occs = new ArrayList<String>();
+			for (Occurrence o : e.getValue()) {
+				occs.add(o.toString());
+			}
+			Collections.sort(occs);
+			canonical.put(e.getKey(), occs);
+		}
+		return canonical;
+	}
+
+	/**
+	 * Returns an index with its lists as they are, in keyword order, for comparing indexes
+	 * that must order equal frequencies the same way.
+	 */
+	static String lists(HashMap<String,ArrayList<Occurrence>> index) {
+		return new TreeMap<String,ArrayList<Occurrence>>(index).toString();
+	}
+
+	/**
+	 * Returns whether every occurrence list of an index is in descending frequency.
+	 */
+	static boolean sorted(HashMap<String,ArrayList<Occurrence>> index) {
+		for (ArrayList<Occurrence> occs : index.values()) {
+			for (int i = 1; i < occs.size(); i++) {
+				if (occs.get(i - 1).frequency < occs.get(i).frequency) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes a directory written by write, and its files.
+	 */
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,89 @@
+package search;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks addDocument, updateDocument and removeDocument: after a few hundred random calls on
+ * an index opened from a file, the index must be the one makeIndex builds from the
+ * documents that are left, with every list still in descending frequency.
+ */
+public class DocumentUpdateCheck {
+
+	/**
+	 * Number of documents, of which half are indexed at first, and number of random calls
+	 */
+	static final int DOCUMENTS = 400, CALLS = 600;
+
+	public static void main(String[] args)
+	throws IOException {
+		Random random = new Random(5);
+		File dir = Corpus.write(DOCUMENTS, DOCUMENTS / 2, random);
+		try {
+			ArrayList<String> live = new ArrayList<String>();
+			for (int d = 0; d < DOCUMENTS / 2; d++) {
+				live.add(document(dir, d));
+			}
+			LittleSearchEngine built = new LittleSearchEngine();
+			built.makeIndex(new File(dir, "docs.txt").getPath(), Corpus.NOISE_WORDS);
+			File index = new File(dir, "index");
+			built.saveIndex(index.getPath());
+
+			LittleSearchEngine engine = new LittleSearchEngine(index.getPath());
+			for (int call = 0; call < CALLS; call++) {
+				String doc = document(dir, random.nextInt(DOCUMENTS));
+				switch (random.nextInt(3)) {
+					case 0:
+						try {
+							engine.addDocument(doc);
+							Corpus.check(!live.contains(doc), "adding " + doc + " twice throws");
+							live.add(doc);
+						} catch (IllegalArgumentException e) {
+							Corpus.check(live.contains(doc), "adding new " + doc);
+						}
+						break;
+					case 1:
+						Corpus.writeDocument(new File(doc), random);
+						engine.updateDocument(doc);
+						if (!live.contains(doc)) {
+							live.add(doc);
+						}
+						break;
+					default:
+						Corpus.check(engine.removeDocument(doc) == live.contains(doc), "removing " + doc);
+						live.remove(doc);
+						break;
+				}
+			}
+
+			File liveDocs = new File(dir, "live.txt");
+			PrintWriter out = new PrintWriter(liveDocs);
+			try {
+				for (String doc : live) {
+					out.println(doc);
+				}
+			} finally {
+				out.close();
+			}
+			LittleSearchEngine expected = new LittleSearchEngine();
+			expected.makeIndex(liveDocs.getPath(), Corpus.NOISE_WORDS);
+			System.out.println(CALLS + " calls, " + live.size() + " documents left");
+			Corpus.check(Corpus.canonical(engine.keywordsIndex).equals(Corpus.canonical(expected.keywordsIndex)),
+					"index matches makeIndex of the documents left");
+			Corpus.check(Corpus.sorted(engine.keywordsIndex), "lists are in descending frequency");
+
+			try {
+				engine.updateDocument(new File(dir, "missing.txt").getPath());
+				Corpus.check(false, "updating a missing document throws FileNotFoundException");
+			} catch (FileNotFoundException e) {
+			}
+		} finally {
+			Corpus.delete(dir);
+		}
+		Corpus.finish("DocumentUpdateCheck");
+	}
+
+	static String document(File dir, int d) {
+		return new File(dir, "d" + d + ".txt").getPath();
+	}
+}
@@ -0,0 +1,147 @@
+package search;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Checks that an index saved with saveIndex and opened again gives back the same noise
+ * words and occurrences, searches the same, can be saved again and changed by makeIndex
+ * like an index built in memory, and that damaged index files are rejected.
+ */
+public class IndexFileCheck {
+
+	public static void main(String[] args)
+	throws IOException {
+		File dir = Corpus.write(1000, 1000, new Random(1));
+		File index = new File(dir, "index");
+		File again = new File(dir, "again");
+		File third = new File(dir, "third");
+		try {
+			for (String docs : new String[] { "docs.txt", new File(dir, "docs.txt").getPath() }) {
+				LittleSearchEngine built = build(docs);
+				built.saveIndex(index.getPath());
+				LittleSearchEngine opened = new LittleSearchEngine(index.getPath());
+				System.out.println(docs + ": " + built.keywordsIndex.size() + " keywords, " + index.length() + " bytes");
+
+				Corpus.check(opened.noiseWords.equals(built.noiseWords), "noise words");
+				for (String keyword : built.keywordsIndex.keySet()) {
+					Corpus.check(built.keywordsIndex.get(keyword).toString().equals(String.valueOf(opened.occurrences(keyword))),
+							"occurrences of " + keyword);
+				}
+				for (String missing : new String[] { "zzznope", "", "a" }) {
+					Corpus.check(opened.occurrences(missing) == null, "no occurrences of \"" + missing + "\"");
+				}
+
+				String[] keywords = built.keywordsIndex.keySet().toArray(new String[0]);
+				Random random = new Random(1);
+				for (int i = 0; i < 200; i++) {
+					String kw1 = keywords[random.nextInt(keywords.length)], kw2 = keywords[random.nextInt(keywords.length)];
+					LittleSearchEngine fresh = new LittleSearchEngine(index.getPath());
+					Corpus.check(built.top5search(kw1, kw2).equals(fresh.top5search(kw1.toUpperCase(), kw2)),
+							"top5search " + kw1 + " " + kw2);
+				}
+
+				/* Saving an opened index, with one keyword already read, writes the whole of it */
+				LittleSearchEngine partial = new LittleSearchEngine(index.getPath());
+				partial.occurrences(keywords[0]);
+				partial.saveIndex(again.getPath());
+				LittleSearchEngine reopened = new LittleSearchEngine(again.getPath());
+				reopened.saveIndex(third.getPath());
+				Corpus.check(sorted(reopened).equals(sorted(built)), "index saved from an opened index");
+
+				/* makeIndex adds to an opened index as it does to one built in memory */
+				LittleSearchEngine changed = new LittleSearchEngine(again.getPath());
+				changed.makeIndex("docs2.txt", Corpus.NOISE_WORDS);
+				LittleSearchEngine expected = build(docs);
+				expected.makeIndex("docs2.txt", Corpus.NOISE_WORDS);
+				Corpus.check(sorted(changed).equals(sorted(expected)), "makeIndex on an opened index");
+			}
+
+			build("docs.txt").saveIndex(index.getPath());
+			byte[] bytes = readAll(index);
+			for (int cut : new int[] { 0, 10, 30, bytes.length / 2 }) {
+				OutputStream out = new FileOutputStream(index);
+				try {
+					out.write(bytes, 0, cut);
+				} finally {
+					out.close();
+				}
+				try {
+					new LittleSearchEngine(index.getPath()).saveIndex(again.getPath());
+					Corpus.check(false, "index cut to " + cut + " bytes is rejected");
+				} catch (IOException e) {
+				} catch (IllegalStateException e) {
+				}
+			}
+
+			/* Dictionary entries pointing past the end of the file fail lookups and saves alike */
+			ByteBuffer patched = ByteBuffer.wrap(bytes.clone());
+			int terms = IndexFile.HEADER + 4 * patched.getInt(12), termCount = patched.getInt(16);
+			for (int t = 0; t < termCount; t++) {
+				patched.putInt(terms + IndexFile.TERM * t, t % 2 == 0 ? bytes.length : Integer.MAX_VALUE);
+			}
+			OutputStream out = new FileOutputStream(index);
+			try {
+				out.write(patched.array());
+			} finally {
+				out.close();
+			}
+			for (String keyword : new String[] { "zzznope", "a", "\u00fcber" }) {
+				try {
+					new LittleSearchEngine(index.getPath()).occurrences(keyword);
+					Corpus.check(false, "lookup of " + keyword + " in a corrupt dictionary is rejected");
+				} catch (IllegalStateException e) {
+					Corpus.check(e.getMessage().equals(index.getPath() + " is corrupt"), e.getMessage());
+				}
+			}
+			try {
+				new LittleSearchEngine(index.getPath()).saveIndex(again.getPath());
+				Corpus.check(false, "saving a corrupt dictionary is rejected");
+			} catch (IllegalStateException e) {
+				Corpus.check(e.getMessage().equals(index.getPath() + " is corrupt"), e.getMessage());
+			}
+
+			try {
+				new LittleSearchEngine("docs.txt");
+				Corpus.check(false, "a text file is not opened as an index");
+			} catch (IOException e) {
+			}
+		} finally {
+			Corpus.delete(dir);
+		}
+		Corpus.finish("IndexFileCheck");
+	}
+
+	/**
+	 * Builds the index of a list of documents, plus a keyword whose documents and
+	 * frequencies need more than one byte to encode.
+	 */
+	static LittleSearchEngine build(String docs)
+	throws FileNotFoundException {
+		LittleSearchEngine engine = new LittleSearchEngine();
+		engine.makeIndex(docs, Corpus.NOISE_WORDS, 3);
+		engine.keywordsIndex.put("\u00fcber", new ArrayList<Occurrence>(Arrays.asList(
+				new Occurrence("d\u00f6\u20acc", 1000000), new Occurrence("x", 7), new Occurrence("y", 5))));
+		return engine;
+	}
+
+	/**
+	 * Returns the whole index of an engine, in keyword order.
+	 */
+	static String sorted(LittleSearchEngine engine) {
+		return new TreeMap<String,ArrayList<Occurrence>>(engine.keywordsIndex).toString();
+	}
+
+	static byte[] readAll(File f)
+	throws IOException {
+		byte[] bytes = new byte[(int) f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+}
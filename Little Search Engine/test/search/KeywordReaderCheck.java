@@ -0,0 +1,115 @@
+package search;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Checks that loadKeyWords finds the same keywords, with the same frequencies, as reading
+ * the document with Scanner and getKeyWord one word at a time, on the project's text files
+ * and on generated documents full of punctuation, non-ASCII letters and odd whitespace.
+ * The documents are written in the default charset, and the non-ASCII pieces that it
+ * cannot encode become '?'; run with -Dfile.encoding=UTF-8 to check them all.
+ */
+public class KeywordReaderCheck {
+
+	/**
+	 * Pieces the generated documents are made of
+	 */
+	static final String[] PIECES = {
+		"word", "Word", "WORD", "the", "The", "a", "A", "x.", "x.,", "x.5", "x.)", "x.y", "x-y",
+		"x'", "'x", "..", ".", ",", "!?", "ab:c", "Alice's", "\u00fcber", "\u00dcber.", "na\u00efve",
+		"na\u00efve,", "caf\u00e9", "x\u3000y", "the cat", " ", "\u00e9", "\u00c9!", "hello\u0085world",
+		";;x", "x;;", "\t", "\r\n", "\n", "\u001c", "\u000b", "\u0000", "\u0391\u0392\u0393",
+		"stra\u00dfe", "\u0130stanbul", "x.\u00e9",
+	};
+
+	public static void main(String[] args)
+	throws IOException {
+		System.out.println("KeywordReader.USABLE = " + KeywordReader.USABLE + ", default charset "
+				+ Charset.defaultCharset());
+		LittleSearchEngine engine = new LittleSearchEngine();
+		Scanner sc = new Scanner(new File(Corpus.NOISE_WORDS));
+		while (sc.hasNext()) {
+			String word = sc.next();
+			engine.noiseWords.put(word, word);
+		}
+		sc.close();
+		engine.noiseWords.put("\u00dcber", "\u00dcber");
+		engine.noiseWords.put("\u00fcber", "\u00fcber");
+
+		ArrayList<String> files = new ArrayList<String>(Arrays.asList("AliceCh1.txt", "WowCh1.txt",
+				"doc1.txt", "test1.txt", "docs.txt", Corpus.NOISE_WORDS));
+		File dir = File.createTempFile("keywords", "");
+		dir.delete();
+		dir.mkdir();
+		try {
+			/* Small documents, and a few larger than the reader's buffer */
+			Random random = new Random(3);
+			for (int d = 0; d < 300; d++) {
+				File doc = new File(dir, "k" + d + ".txt");
+				Writer out = new OutputStreamWriter(new FileOutputStream(doc));
+				try {
+					int n = d < 250 ? random.nextInt(200) : 20000 + random.nextInt(60000);
+					for (int i = 0; i < n; i++) {
+						out.write(PIECES[random.nextInt(PIECES.length)]);
+						if (random.nextInt(3) > 0) {
+							out.write(random.nextBoolean() ? " " : "\n");
+						}
+					}
+				} finally {
+					out.close();
+				}
+				files.add(doc.getPath());
+			}
+			File empty = new File(dir, "empty.txt");
+			new FileOutputStream(empty).close();
+			files.add(empty.getPath());
+
+			for (String f : files) {
+				Corpus.check(scan(engine, f).equals(load(engine, f)), f);
+			}
+			System.out.println(files.size() + " documents");
+		} finally {
+			Corpus.delete(dir);
+		}
+
+		try {
+			engine.loadKeyWords(new File(dir, "missing.txt").getPath());
+			Corpus.check(false, "a missing document throws FileNotFoundException");
+		} catch (FileNotFoundException e) {
+		}
+		Corpus.finish("KeywordReaderCheck");
+	}
+
+	/**
+	 * Counts the keywords of a document the way loadKeyWords did before KeywordReader.
+	 */
+	static HashMap<String,Integer> scan(LittleSearchEngine engine, String docFile)
+	throws FileNotFoundException {
+		HashMap<String,Integer> counts = new HashMap<String,Integer>();
+		Scanner sc = new Scanner(new File(docFile));
+		while (sc.hasNext()) {
+			String keyword = engine.getKeyWord(sc.next());
+			if (keyword != null) {
+				Integer n = counts.get(keyword);
+				counts.put(keyword, n == null ? 1 : n + 1);
+			}
+		}
+		sc.close();
+		return counts;
+	}
+
+	/**
+	 * Counts the keywords of a document with loadKeyWords.
+	 */
+	static HashMap<String,Integer> load(LittleSearchEngine engine, String docFile)
+	throws FileNotFoundException {
+		HashMap<String,Integer> counts = new HashMap<String,Integer>();
+		for (Map.Entry<String,Occurrence> e : engine.loadKeyWords(docFile).entrySet()) {
+			Corpus.check(e.getValue().document.equals(docFile), "occurrence of " + e.getKey() + " names " + docFile);
+			counts.put(e.getKey(), e.getValue().frequency);
+		}
+		return counts;
+	}
+}
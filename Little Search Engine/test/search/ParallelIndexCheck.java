@@ -0,0 +1,63 @@
+package search;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that makeIndex with several threads builds the same index as the sequential
+ * makeIndex, list for list: every list in descending frequency, with equal frequencies in
+ * the order of the documents in docsFile, whatever the number of threads.
+ */
+public class ParallelIndexCheck {
+
+	public static void main(String[] args)
+	throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1500;
+		File dir = Corpus.write(count, count, new Random(1));
+		try {
+			String docs = new File(dir, "docs.txt").getPath();
+			LittleSearchEngine sequential = new LittleSearchEngine();
+			sequential.makeIndex(docs, Corpus.NOISE_WORDS);
+			LittleSearchEngine four = new LittleSearchEngine();
+			four.makeIndex(docs, Corpus.NOISE_WORDS, 4);
+			LittleSearchEngine seven = new LittleSearchEngine();
+			seven.makeIndex(docs, Corpus.NOISE_WORDS, 7);
+			System.out.println(count + " documents, " + sequential.keywordsIndex.size() + " keywords");
+
+			Corpus.check(Corpus.lists(sequential.keywordsIndex).equals(Corpus.lists(four.keywordsIndex)),
+					"4 threads build identical lists to 1");
+			Corpus.check(Corpus.sorted(four.keywordsIndex), "lists are in descending frequency");
+			Corpus.check(Corpus.lists(four.keywordsIndex).equals(Corpus.lists(seven.keywordsIndex)),
+					"4 and 7 threads build identical lists");
+		} finally {
+			Corpus.delete(dir);
+		}
+
+		/* The project's own documents, searched the same way */
+		LittleSearchEngine sequential = new LittleSearchEngine();
+		sequential.makeIndex("docs.txt", Corpus.NOISE_WORDS);
+		LittleSearchEngine parallel = new LittleSearchEngine();
+		parallel.makeIndex("docs.txt", Corpus.NOISE_WORDS, 3);
+		Corpus.check(Corpus.lists(sequential.keywordsIndex).equals(Corpus.lists(parallel.keywordsIndex)),
+				"docs.txt: 3 threads build identical lists to 1");
+		ArrayList<String> keywords = new ArrayList<String>(new TreeSet<String>(sequential.keywordsIndex.keySet()));
+		keywords.add("nosuchword");
+		int mismatches = 0;
+		for (String kw1 : keywords) {
+			for (String kw2 : keywords) {
+				if (!sequential.top5search(kw1, kw2).equals(parallel.top5search(kw1, kw2))) {
+					mismatches++;
+				}
+			}
+		}
+		Corpus.check(mismatches == 0, "docs.txt: top5search of every pair of keywords (" + mismatches + " differ)");
+
+		/* A document that cannot be read fails the whole index, as it does sequentially */
+		try {
+			new LittleSearchEngine().makeIndex(Corpus.NOISE_WORDS, Corpus.NOISE_WORDS, 2);
+			Corpus.check(false, "missing documents throw FileNotFoundException");
+		} catch (FileNotFoundException e) {
+		}
+		Corpus.finish("ParallelIndexCheck");
+	}
+}
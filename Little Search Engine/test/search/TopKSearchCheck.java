@@ -0,0 +1,105 @@
+package search;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks topKSearch, with OR and with AND, against a brute-force search that ranks every
+ * matching document by looking at every occurrence of every keyword, on random queries
+ * over 1500 generated documents: common and rare keywords, repeated keywords, keywords in
+ * upper case and keywords that are not in the index.
+ */
+public class TopKSearchCheck {
+
+	public static void main(String[] args)
+	throws IOException {
+		File dir = Corpus.write(1500, 1500, new Random(1));
+		try {
+			LittleSearchEngine engine = new LittleSearchEngine();
+			engine.makeIndex(new File(dir, "docs.txt").getPath(), Corpus.NOISE_WORDS, 2);
+			String[] keywords = engine.keywordsIndex.keySet().toArray(new String[0]);
+			Arrays.sort(keywords);
+
+			Random random = new Random(9);
+			int queries = 3000;
+			for (int i = 0; i < queries; i++) {
+				ArrayList<String> query = new ArrayList<String>();
+				int n = 1 + random.nextInt(i % 3 == 0 ? 25 : 4);
+				for (int j = 0; j < n; j++) {
+					String keyword = random.nextInt(30) == 0 ? "nosuchword"
+							: keywords[random.nextInt(random.nextBoolean() ? Math.min(40, keywords.length) : keywords.length)];
+					query.add(random.nextInt(5) == 0 ? keyword.toUpperCase() : keyword);
+					if (random.nextInt(10) == 0) {
+						query.add(keyword);
+					}
+				}
+				int k = random.nextInt(4) == 0 ? 1000 : 1 + random.nextInt(10);
+				boolean all = random.nextBoolean();
+				Corpus.check(engine.topKSearch(query, k, all).equals(search(engine, query, k, all)),
+						(all ? "AND " : "OR ") + query + " k = " + k);
+			}
+			System.out.println(queries + " queries");
+
+			Corpus.check(engine.topKSearch(Arrays.asList("alice"), 0).isEmpty(), "k = 0 finds nothing");
+			Corpus.check(engine.topKSearch(new ArrayList<String>(), 5).isEmpty(), "no keywords find nothing");
+			Corpus.check(engine.top5search("nosuchword", "nosuchthing").isEmpty(), "top5search finds nothing");
+		} finally {
+			Corpus.delete(dir);
+		}
+		Corpus.finish("TopKSearchCheck");
+	}
+
+	/**
+	 * Ranks every document by the occurrence that places it: with OR the best one, that is
+	 * the highest frequency, then the earliest keyword, then the earliest position in that
+	 * keyword's list; with AND the worst of the best one of each keyword, and only documents
+	 * that have every keyword.
+	 */
+	static List<String> search(LittleSearchEngine engine, List<String> query, int k, boolean all) {
+		LinkedHashSet<String> terms = new LinkedHashSet<String>();
+		for (String keyword : query) {
+			terms.add(keyword.toLowerCase());
+		}
+		final HashMap<String,long[]> rank = new HashMap<String,long[]>();
+		HashMap<String,Integer> count = new HashMap<String,Integer>();
+		int t = 0;
+		for (String term : terms) {
+			ArrayList<Occurrence> occs = engine.keywordsIndex.get(term);
+			if (occs == null && all) {
+				return new ArrayList<String>();
+			}
+			for (int i = 0; occs != null && i < occs.size(); i++) {
+				String doc = occs.get(i).document;
+				long[] key = { -occs.get(i).frequency, t, i };
+				long[] best = rank.get(doc);
+				if (best == null || (all ? compare(key, best) > 0 : compare(key, best) < 0)) {
+					rank.put(doc, key);
+				}
+				Integer c = count.get(doc);
+				count.put(doc, c == null ? 1 : c + 1);
+			}
+			t++;
+		}
+		List<String> docs = new ArrayList<String>();
+		for (String doc : rank.keySet()) {
+			if (!all || count.get(doc) == terms.size()) {
+				docs.add(doc);
+			}
+		}
+		Collections.sort(docs, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return TopKSearchCheck.compare(rank.get(a), rank.get(b));
+			}
+		});
+		return docs.subList(0, Math.min(k, docs.size()));
+	}
+
+	static int compare(long[] a, long[] b) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				return a[i] < b[i] ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+}